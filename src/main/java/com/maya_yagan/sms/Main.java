@@ -3,6 +3,11 @@ package com.maya_yagan.sms;
 import atlantafx.base.theme.NordLight;
 import com.maya_yagan.sms.payment.creditcard.StripeConfig;
 import com.maya_yagan.sms.common.ConfigManager;
+import com.maya_yagan.sms.payment.journal.JournalDrainer;
+import com.maya_yagan.sms.warehouse.service.ExpiryScanner;
+import com.maya_yagan.sms.warehouse.service.StockAlertEngine;
+import com.maya_yagan.sms.warehouse.service.StockLedgerService;
+import com.maya_yagan.sms.warehouse.service.WarehouseService;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
@@ -11,6 +16,7 @@ import javafx.stage.Stage;
 import javafx.scene.image.Image;
 
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class Main extends Application {
     
@@ -27,6 +33,14 @@ public class Main extends Application {
         } else {
             root = FXMLLoader.load(Objects.requireNonNull(getClass().getResource("/view/Login.fxml")));
             primaryStage.setTitle("Supermarket Management System");
+            JournalDrainer.getInstance(); // replay sales journaled before the last shutdown
+            CompletableFuture.runAsync(() -> {
+                WarehouseService warehouseService = new WarehouseService();
+                warehouseService.verifyAndRepairOccupancy();
+                warehouseService.backfillStockLots(); // stock from before lots existed
+            });
+            StockLedgerService.getInstance(); // start taking stock snapshots in the background
+            ExpiryScanner.getInstance();
         }
 
         primaryStage.setScene(new Scene(root));
@@ -34,6 +48,11 @@ public class Main extends Application {
         primaryStage.show();
     }
     
+    @Override
+    public void stop() {
+        StockAlertEngine.getInstance().flush(); // the writer thread is a daemon
+    }
+
     public static void main(String[] args) {
         StripeConfig.init();
         launch(args);
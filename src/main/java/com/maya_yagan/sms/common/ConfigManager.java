@@ -44,4 +44,10 @@ public class ConfigManager {
     public static String getDbPassword() {
         return config.getString("db.password");
     }
+
+    public static String getDbDialect() {
+        return config.hasPath("db.dialect")
+                ? config.getString("db.dialect")
+                : "org.hibernate.dialect.SQLServerDialect";
+    }
 }
\ No newline at end of file
@@ -2,7 +2,11 @@ package com.maya_yagan.sms.homepage.dao;
 
 import com.maya_yagan.sms.homepage.model.Notification;
 import com.maya_yagan.sms.util.HibernateUtil;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.List;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 
@@ -24,6 +28,35 @@ public class NotificationDAO {
         }
     }
 
+    /**
+     * Inserts system notifications (without a sender) in one transaction, with a
+     * single batched statement.
+     *
+     * @param messages The messages to insert
+     */
+    public void insertSystemNotifications(List<String> messages){
+        Transaction transaction = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()){
+            transaction = session.beginTransaction();
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            session.doWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "INSERT INTO Notification (message, date, sender_id) VALUES (?, ?, NULL)")) {
+                    for (String message : messages) {
+                        ps.setString(1, message);
+                        ps.setTimestamp(2, now);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            });
+            transaction.commit();
+        } catch (Exception e) {
+            if(transaction != null) transaction.rollback();
+            throw e;
+        }
+    }
+
     public Set<Notification> getNotifications(){
         try(Session session = HibernateUtil.getSessionFactory().openSession()){
             Query<Notification> query = session.createQuery("SELECT DISTINCT n FROM Notification n", Notification.class);
@@ -12,6 +12,7 @@ import com.maya_yagan.sms.warehouse.model.Warehouse;
 import java.util.*;
 import java.util.function.Predicate;
 
+import com.maya_yagan.sms.warehouse.service.DeliveryAllocator;
 import com.maya_yagan.sms.warehouse.service.WarehouseService;
 import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleStringProperty;
@@ -153,14 +154,17 @@ public class OrderManagementController extends AbstractTableController<Order> {
         ChoiceDialog<Warehouse> dialog = new ChoiceDialog<>(warehouses.get(0), warehouses);
         dialog.setTitle("Select Inventory");
         dialog.setHeaderText("Choose an Inventory");
-        dialog.setContentText("Select an inventory where the order's products will be saved:");
+        dialog.setContentText("Select the inventory to fill first; what doesn't fit goes to the others:");
         dialog.showAndWait().ifPresent(selectedWarehouse -> {
             try{
-                orderService.deliverOrder(order, selectedWarehouse);
+                DeliveryAllocator.Allocation allocation = orderService.deliverOrder(order, selectedWarehouse);
                 refresh();
                 AlertUtil.showAlert(Alert.AlertType.INFORMATION,
                         "Success",
-                        "Order's products have been added to " + selectedWarehouse.getName());
+                        allocation.warehouseNames().size() == 1
+                                ? "Order's products have been added to " + allocation.warehouseNames().get(0)
+                                : selectedWarehouse.getName() + " could not hold the whole order, so it was split:\n"
+                                        + allocation.describe());
             } catch (CustomException e){
                 ExceptionHandler.handleException(e);
                 if("INSUFFICIENT_CAPACITY".equals(e.getErrorCode()))
@@ -11,6 +11,7 @@ import com.maya_yagan.sms.supplier.model.SupplierProduct;
 import com.maya_yagan.sms.util.CustomException;
 import com.maya_yagan.sms.common.ValidationService;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
+import com.maya_yagan.sms.warehouse.service.DeliveryAllocator;
 import com.maya_yagan.sms.warehouse.service.WarehouseService;
 
 import java.math.BigDecimal;
@@ -104,8 +105,8 @@ public class OrderService {
         orderDAO.updateOrder(order);
     }
 
-    public void deliverOrder(Order order, Warehouse warehouse){
-        warehouseService.allocateOrder(order, warehouse);
+    public DeliveryAllocator.Allocation deliverOrder(Order order, Warehouse warehouse){
+        DeliveryAllocator.Allocation allocation = warehouseService.allocateOrder(order, warehouse);
         double totalCost = getPrice(order);
         boolean ok = cashBoxService.recordTransaction(BigDecimal.valueOf(totalCost), TransactionType.EXPENSE, "Supplier payment for: " + order.getSupplier().getName());
         if(!ok)
@@ -115,6 +116,7 @@ public class OrderService {
             );
         order.setDeliveryDate(LocalDate.now());
         orderDAO.updateOrder(order);
+        return allocation;
     }
 
     public double getSupplierPrice(Order order, OrderProduct op) {
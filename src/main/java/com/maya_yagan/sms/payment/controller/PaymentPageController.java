@@ -5,6 +5,7 @@ import com.google.zxing.WriterException;
 import com.maya_yagan.sms.common.AbstractTableController;
 import com.maya_yagan.sms.common.ValidationService;
 import com.maya_yagan.sms.payment.creditcard.CreditCardPaymentController;
+import com.maya_yagan.sms.payment.model.Basket;
 import com.maya_yagan.sms.payment.model.PaymentMethod;
 import com.maya_yagan.sms.payment.model.Receipt;
 import com.maya_yagan.sms.payment.service.PaymentService;
@@ -17,6 +18,7 @@ import com.maya_yagan.sms.user.service.UserService;
 import com.maya_yagan.sms.util.*;
 import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
+import com.maya_yagan.sms.warehouse.service.StockReservationService;
 import com.maya_yagan.sms.warehouse.service.WarehouseService;
 import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyObjectWrapper;
@@ -73,7 +75,9 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
     private final ProductService productService = new ProductService();
     private final PaymentService paymentService = new PaymentService();
     private final Settings settings = settingsService.getSettings();
-    private final Map<ProductWarehouse, Double> basket = new HashMap<>();
+    private final Basket basket = paymentService.newBasket();
+    private final StockReservationService reservations = StockReservationService.getInstance();
+    private final String reservationHolder = reservations.newHolder();
     private final String moneyUnit = settingsService.getSettings().getMoneyUnit();
 
     private boolean selectionHandled = false;
@@ -174,7 +178,7 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
 
         TableViewUtil.setupCheckboxColumn(
                 addColumn,
-                basket,
+                basket::contains,
                 (productWarehouse, selected) -> {
                     if(selected)
                         promptForAmountAndSelect(productWarehouse);
@@ -204,6 +208,10 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
         setupEventHandlers();
         setStaticHeaderFields();
         modalPane = ViewUtil.initializeModalPane(stackPane);
+        // the page leaves the scene when another page is opened; its basket is abandoned
+        stackPane.sceneProperty().addListener((obs, oldScene, newScene) -> {
+            if (newScene == null) clearBasket();
+        });
     }
 
     private void setupEventHandlers(){
@@ -312,7 +320,12 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
         File file = new File(receiptsDir, "receipt_" +
                 LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss")) + ".pdf");
 
-        PdfExportUtil.exportReceiptToPdf(this, file);
+        ReceiptPdfRenderer.renderAsync(currentReceipt, settings,
+                        paymentService.generateSimpleBarcodeData(currentReceipt.getCode()), file)
+                .exceptionally(e -> {
+                    e.printStackTrace();
+                    return null;
+                });
     }
 
     private void promptForAmountAndSelect(ProductWarehouse productWarehouse){
@@ -324,6 +337,7 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
                 "Amount",
                 newAmt -> {
                     try {
+                        reservations.reserve(reservationHolder, productWarehouse, newAmt);
                         basket.put(productWarehouse, newAmt);
                         refresh();
                         refreshPaymentSection();
@@ -347,13 +361,31 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
             return;
         }
 
-        warehouseService.findProductWarehouseByName(selectedWarehouse, key)
-                .ifPresentOrElse(pw -> {
-                    promptForAmountAndSelect(pw);
+        Optional<ProductWarehouse> exact = warehouseService.findProductWarehouseByName(selectedWarehouse, key);
+        if (exact.isPresent()) {
+            promptForAmountAndSelect(exact.get());
+            Platform.runLater(this::clearEditor);
+            return;
+        }
+
+        // close matches are only offered, the cashier has to pick one
+        Map<String, ProductWarehouse> suggestions = new LinkedHashMap<>();
+        for (ProductWarehouse pw : warehouseService.suggestProductWarehouses(selectedWarehouse, key))
+            suggestions.putIfAbsent(pw.getProduct().getName(), pw);
+        if (suggestions.isEmpty()) {
+            AlertUtil.showAlert(Alert.AlertType.ERROR,
+                    "Product Not Found",
+                    "There is no product named \""+key+"\" in the selected inventory.");
+            return;
+        }
+        ViewUtil.showChoiceDialog("Product Not Found",
+                "There is no product named \""+key+"\" in the selected inventory.",
+                "Did you mean:",
+                new ArrayList<>(suggestions.keySet()),
+                name -> {
+                    promptForAmountAndSelect(suggestions.get(name));
                     Platform.runLater(this::clearEditor);
-                }, () -> AlertUtil.showAlert(Alert.AlertType.ERROR,
-                        "Product Not Found",
-                        "There is no product named \""+key+"\" in the selected inventory."));
+                });
     }
 
     private void clearEditor() {
@@ -439,20 +471,31 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
     }
 
     private void onInventorySelected(Warehouse warehouse){
+        // the basket holds stock of the previous inventory only
+        if (selectedWarehouse != null && selectedWarehouse.getId() != warehouse.getId()) {
+            clearBasket();
+            refreshPaymentSection();
+        }
         selectedWarehouse = warehouse;
         refresh();
     }
 
+    private void clearBasket() {
+        reservations.releaseAll(reservationHolder);
+        basket.clear();
+    }
+
     private void onProductDeselected(ProductWarehouse product) {
+        reservations.release(reservationHolder, product);
         basket.remove(product);
         refreshPaymentSection();
     }
 
     private void refreshPaymentSection() {
         populateGridPane();
-        BigDecimal subtotal = paymentService.calculateSubtotal(basket);
-        BigDecimal tax = paymentService.calculateTotalTax(basket);
-        BigDecimal totalCost = paymentService.calculateTotalCost(basket);
+        BigDecimal subtotal = basket.getSubtotal();
+        BigDecimal tax = basket.getTax();
+        BigDecimal totalCost = basket.getTotal();
 
         subtotalLabel.setText(String.format("%.2f", subtotal) + " "+ moneyUnit);
         taxLabel.setText(String.format("%.2f", tax) + " "+ moneyUnit);
@@ -481,12 +524,12 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
         gridPane.add(taxHeader, 4, 0);
 
         int row = 1;
-        for (var entry : basket.entrySet()) {
-            ProductWarehouse pw = entry.getKey();
-            double amount = entry.getValue();
-            BigDecimal unitPrice = paymentService.calculateDiscountedPrice(pw);
+        for (Basket.Line line : basket.getLines()) {
+            ProductWarehouse pw = line.getProductWarehouse();
+            double amount = line.getQuantity();
+            BigDecimal unitPrice = line.getUnitPrice();
             float taxRate = pw.getProduct().getTaxPercentage();
-            BigDecimal total =  unitPrice.multiply(BigDecimal.valueOf(amount));
+            BigDecimal total = line.getGross();
             String amountWithUnit = String.format("%.2f %s", amount, pw.getProduct().getUnit().getShortName());
 
             gridPane.add(createWrappedLabel(pw.getProduct().getName()), 0, row);
@@ -507,6 +550,7 @@ public class PaymentPageController extends AbstractTableController<ProductWareho
     }
 
     private void refreshAfterPayment(){
+        reservations.commit(reservationHolder);
         basket.clear();
         refresh();
         refreshPaymentSection();
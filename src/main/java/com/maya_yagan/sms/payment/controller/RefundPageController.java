@@ -3,8 +3,10 @@ package com.maya_yagan.sms.payment.controller;
 import atlantafx.base.controls.ModalPane;
 import com.maya_yagan.sms.common.AbstractTableController;
 import com.maya_yagan.sms.common.ValidationService;
+import com.maya_yagan.sms.payment.model.CompactBasket;
 import com.maya_yagan.sms.payment.model.Receipt;
 import com.maya_yagan.sms.payment.model.ReceiptItem;
+import com.maya_yagan.sms.payment.pricing.Quantity;
 import com.maya_yagan.sms.payment.service.PaymentService;
 import com.maya_yagan.sms.payment.service.RefundService;
 import com.maya_yagan.sms.util.*;
@@ -19,9 +21,7 @@ import org.apache.commons.logging.LogFactory;
 
 import java.math.BigDecimal;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class RefundPageController extends AbstractTableController<ReceiptItem> {
     private static final Log log = LogFactory.getLog(RefundPageController.class);
@@ -35,7 +35,7 @@ public class RefundPageController extends AbstractTableController<ReceiptItem> {
     private final WarehouseService warehouseService = new WarehouseService();
     private final ValidationService validationService = new ValidationService();
     private final RefundService refundService = new RefundService();
-    private final Map<ReceiptItem, Double> basket = new HashMap<>();
+    private final CompactBasket<ReceiptItem> basket = new CompactBasket<>();
     private Receipt receipt;
     private Runnable onCloseAction;
     private ModalPane modalPane;
@@ -58,12 +58,12 @@ public class RefundPageController extends AbstractTableController<ReceiptItem> {
 
         TableViewUtil.setupCheckboxColumn(
                 selectColumn,
-                basket,
+                receiptItem -> basket.contains(receiptItem.getProduct().getId()),
                 ((receiptItem, selected) -> {
                     if(selected)
                         promptForAmountAndSelect(receiptItem);
                     else{
-                        basket.remove(receiptItem);
+                        basket.remove(receiptItem.getProduct().getId());
                         refresh();
                         updateTotals();
                     }
@@ -102,7 +102,7 @@ public class RefundPageController extends AbstractTableController<ReceiptItem> {
                 newAmt ->{
                     try{
                         validationService.validateRefundQuantity(receiptItem, newAmt);
-                        basket.put(receiptItem, newAmt);
+                        basket.put(receiptItem.getProduct().getId(), receiptItem, Quantity.of(newAmt).getMilli());
                         refresh();
                         updateTotals();
                     } catch (CustomException e){
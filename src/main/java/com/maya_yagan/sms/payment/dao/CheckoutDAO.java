@@ -0,0 +1,186 @@
+package com.maya_yagan.sms.payment.dao;
+
+import com.maya_yagan.sms.finance.model.CashBox;
+import com.maya_yagan.sms.finance.model.FinancialRecord;
+import com.maya_yagan.sms.finance.model.TransactionType;
+import com.maya_yagan.sms.payment.journal.JournaledSale;
+import com.maya_yagan.sms.payment.model.Receipt;
+import com.maya_yagan.sms.payment.model.ReceiptItem;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.user.model.User;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.util.StatementCounter;
+import com.maya_yagan.sms.warehouse.dao.StockDeltaDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLedgerDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLotDAO;
+import com.maya_yagan.sms.warehouse.model.MovementType;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data Access Object (DAO) for committing a completed sale.
+ * Writes the receipt, its items, the stock decrements and the cash-box record
+ * in a single transaction so a failure never leaves a sale half-applied.
+ *
+ * @author Maya Yagan
+ */
+public class CheckoutDAO {
+    private final StockDeltaDAO stockDeltaDAO = new StockDeltaDAO();
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+
+    /**
+     * Result of committing a journaled sale.
+     *
+     * @param stock The product-warehouse rows after the decrement; rows with an
+     *              amount of zero were deleted
+     * @param shortfalls Products the warehouse had less of than was sold
+     * @param duplicate Whether the receipt had already been recorded
+     */
+    public record CommittedSale(List<ProductWarehouse> stock, List<String> shortfalls, boolean duplicate) {}
+
+    /**
+     * Commits a journaled sale as one unit of work. Replaying a sale whose
+     * receipt code is already recorded changes nothing, so the journal may be
+     * drained more than once. The sale already happened at the till, so stock
+     * that the database no longer has is taken down to zero and reported rather
+     * than failing the sale.
+     *
+     * @param sale The sale read from the journal
+     * @param counter Listener collecting the JDBC work done for the sale
+     * @return the updated stock rows and any shortfalls
+     * @throws CustomException if the cash box of the sale no longer exists
+     */
+    public CommittedSale commitSale(JournaledSale sale, StatementCounter counter) {
+        Transaction tx = null;
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            session.addEventListeners(counter);
+            tx = session.beginTransaction();
+
+            Long existing = session.createQuery(
+                            "SELECT COUNT(r) FROM Receipt r WHERE r.code = :code", Long.class)
+                    .setParameter("code", sale.getCode())
+                    .uniqueResult();
+            if (existing != null && existing > 0) {
+                tx.commit();
+                return new CommittedSale(List.of(), List.of(), true);
+            }
+
+            CashBox cashBox = session.get(CashBox.class, sale.getCashBoxId());
+            if (cashBox == null)
+                throw new CustomException("Cash box of receipt " + sale.getCode() + " was not found.", "NOT_FOUND");
+
+            List<String> shortfalls = new ArrayList<>();
+            List<ProductWarehouse> stock = decreaseStock(session, sale, shortfalls);
+
+            User cashier = session.load(User.class, sale.getCashierId());
+            Receipt receipt = new Receipt(sale.getCode(), sale.getDateTime(), cashier, sale.getPaymentMethod());
+            receipt.setStatus(sale.getStatus());
+            receipt.setPaidAmount(sale.getPaidAmount());
+            receipt.setChangeGiven(sale.getChangeGiven());
+            receipt.setTotalCost(sale.getTotalCost());
+            receipt.setCashBox(cashBox);
+            List<ReceiptItem> items = new ArrayList<>(sale.getLines().size());
+            for (JournaledSale.Line line : sale.getLines()) {
+                ReceiptItem item = new ReceiptItem();
+                item.setReceipt(receipt);
+                item.setProduct(session.load(Product.class, line.productId()));
+                item.setProductName(line.productName());
+                item.setUnitPrice(line.unitPrice());
+                item.setQuantity(line.quantity());
+                item.setDiscount(line.discount());
+                item.setPromotionDiscount(line.promotionDiscount());
+                item.setPromotions(line.promotions());
+                items.add(item);
+            }
+            receipt.setItems(items);
+
+            FinancialRecord record = new FinancialRecord();
+            record.setDateTime(sale.getDateTime());
+            record.setAmount(sale.getTotalCost());
+            record.setType(TransactionType.INCOME);
+            record.setCashBox(cashBox);
+            record.setDescription(sale.getDescription());
+            record.setIssuedBy(cashier);
+            session.save(record);
+            cashBox.setTotalBalance(cashBox.getTotalBalance().add(sale.getTotalCost()));
+
+            session.persist(receipt);
+
+            tx.commit();
+            return new CommittedSale(stock, shortfalls, false);
+        } catch (Exception e) {
+            if (tx != null) {
+                try {
+                    tx.rollback();
+                } catch (Exception ignore) {}
+            }
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    private List<ProductWarehouse> decreaseStock(Session session, JournaledSale sale, List<String> shortfalls) {
+        Map<Integer, Double> summed = new LinkedHashMap<>();
+        for (JournaledSale.Line line : sale.getLines())
+            summed.merge(line.productId(), line.quantity(), Double::sum);
+        Map<Integer, Integer> quantities = new LinkedHashMap<>();
+        summed.forEach((productId, quantity) -> quantities.put(productId, quantity.intValue()));
+
+        int warehouseId = sale.getWarehouseId();
+        List<Integer> shortProducts = stockDeltaDAO.decrease(session, warehouseId, quantities);
+        Map<Integer, Integer> sold = new LinkedHashMap<>();
+        quantities.forEach((productId, quantity) -> {
+            if (!shortProducts.contains(productId)) sold.put(productId, -quantity);
+        });
+        // a short product loses whatever was left of it
+        if (!shortProducts.isEmpty())
+            for (Object[] row : session.createQuery(
+                            "SELECT pw.product.id, pw.amount FROM ProductWarehouse pw " +
+                                    "WHERE pw.warehouse.id = :warehouseId AND pw.product.id IN (:productIds)",
+                            Object[].class)
+                    .setParameter("warehouseId", warehouseId)
+                    .setParameterList("productIds", shortProducts)
+                    .getResultList())
+                sold.put((Integer) row[0], -(Integer) row[1]);
+        stockDeltaDAO.empty(session, warehouseId, shortProducts);
+        // the lots give up what the stock rows did, not what was sold
+        Map<Integer, Integer> taken = new LinkedHashMap<>();
+        sold.forEach((productId, delta) -> taken.put(productId, -delta));
+        stockLotDAO.pick(session, warehouseId, taken);
+        stockLedgerDAO.record(session, MovementType.SALE, warehouseId, sold, sale.getCode());
+
+        List<ProductWarehouse> updated = session.createQuery(
+                        "SELECT pw FROM ProductWarehouse pw " +
+                                "JOIN FETCH pw.warehouse " +
+                                "JOIN FETCH pw.product p " +
+                                "LEFT JOIN FETCH p.category " +
+                                "WHERE pw.warehouse.id = :warehouseId AND p.id IN (:productIds)",
+                        ProductWarehouse.class)
+                .setParameter("warehouseId", warehouseId)
+                .setParameterList("productIds", quantities.keySet())
+                .getResultList();
+        for (int productId : shortProducts)
+            shortfalls.add(productName(sale, productId));
+
+        stockDeltaDAO.deleteEmpty(session, warehouseId, quantities.keySet());
+        return updated;
+    }
+
+    private String productName(JournaledSale sale, int productId) {
+        return sale.getLines().stream()
+                .filter(line -> line.productId() == productId)
+                .map(JournaledSale.Line::productName)
+                .findFirst()
+                .orElse(String.valueOf(productId));
+    }
+}
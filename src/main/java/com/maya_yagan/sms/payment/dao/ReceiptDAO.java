@@ -8,7 +8,6 @@ import com.maya_yagan.sms.product.model.Product;
 import com.maya_yagan.sms.user.model.User;
 import com.maya_yagan.sms.util.HibernateUtil;
 
-import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.List;
 import org.hibernate.Session;
@@ -87,6 +86,20 @@ public class ReceiptDAO {
         }
     }
 
+    /**
+     * Reads only the status of a receipt, without its items.
+     *
+     * @param code The receipt code
+     * @return the current status, or null if the receipt is not in the database
+     */
+    public ReceiptStatus getReceiptStatus(String code) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return session.createQuery("SELECT r.status FROM Receipt r WHERE r.code = :code", ReceiptStatus.class)
+                    .setParameter("code", code)
+                    .uniqueResult();
+        }
+    }
+
     /**
      * Retrieves all receipts created by a specific cashier.
      *
@@ -168,25 +181,6 @@ public class ReceiptDAO {
         }
     }
 
-    public void markAsRefunded(long receiptId, BigDecimal changeGiven) {
-
-        Transaction tx = null;
-        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
-            tx = session.beginTransaction();
-
-            Receipt managed = session.get(Receipt.class, receiptId);
-            if (managed != null) {
-                managed.setStatus(ReceiptStatus.REFUNDED);
-                managed.setChangeGiven(changeGiven);
-            }
-
-            tx.commit();
-        } catch (Exception e) {
-            if (tx != null) tx.rollback();
-            throw e;
-        }
-    }
-
     public List<Receipt> getReceiptsForPeriod(LocalDateTime from, LocalDateTime to) {
         try (Session session = HibernateUtil.getSessionFactory().openSession()) {
             return session.createQuery("""
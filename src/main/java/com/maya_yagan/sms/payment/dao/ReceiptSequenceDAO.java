@@ -0,0 +1,64 @@
+package com.maya_yagan.sms.payment.dao;
+
+import com.maya_yagan.sms.payment.model.ReceiptSequence;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.HibernateUtil;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Data Access Object (DAO) for the ReceiptSequence entity.
+ *
+ * @author Maya Yagan
+ */
+public class ReceiptSequenceDAO {
+
+    /**
+     * Reserves a block of sequence numbers. The row is locked for the update, so
+     * concurrent lanes always get disjoint blocks.
+     *
+     * @param name The sequence name
+     * @param blockSize How many numbers to reserve
+     * @return the first number of the reserved block
+     */
+    public long reserveBlock(String name, int blockSize) {
+        try {
+            return tryReserveBlock(name, blockSize);
+        } catch (Exception e) {
+            // another lane may have created the row at the same time
+            try {
+                return tryReserveBlock(name, blockSize);
+            } catch (Exception retry) {
+                retry.printStackTrace();
+                throw new CustomException("Could not reserve receipt numbers. Please check the database connection.",
+                        "GENERAL");
+            }
+        }
+    }
+
+    private long tryReserveBlock(String name, int blockSize) {
+        Transaction tx = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            tx = session.beginTransaction();
+            ReceiptSequence sequence = session.get(ReceiptSequence.class, name, LockMode.PESSIMISTIC_WRITE);
+            long start;
+            if (sequence == null) {
+                start = 1;
+                session.persist(new ReceiptSequence(name, start + blockSize));
+            } else {
+                start = sequence.getNextValue();
+                sequence.setNextValue(start + blockSize);
+            }
+            tx.commit();
+            return start;
+        } catch (Exception e) {
+            if (tx != null) {
+                try {
+                    tx.rollback();
+                } catch (Exception ignore) {}
+            }
+            throw e;
+        }
+    }
+}
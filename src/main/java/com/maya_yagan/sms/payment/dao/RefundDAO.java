@@ -0,0 +1,120 @@
+package com.maya_yagan.sms.payment.dao;
+
+import com.maya_yagan.sms.finance.model.CashBox;
+import com.maya_yagan.sms.finance.model.CashBoxStatus;
+import com.maya_yagan.sms.finance.model.FinancialRecord;
+import com.maya_yagan.sms.finance.model.TransactionType;
+import com.maya_yagan.sms.payment.model.Receipt;
+import com.maya_yagan.sms.payment.model.ReceiptStatus;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.user.model.User;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.warehouse.dao.StockDeltaDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLedgerDAO;
+import com.maya_yagan.sms.warehouse.model.MovementType;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import javax.persistence.LockModeType;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data Access Object (DAO) for committing a refund.
+ * Puts the refunded products back into stock, records the refund in the open
+ * cash box and marks the receipt as refunded in a single transaction. The receipt
+ * row is locked for the transaction, so a receipt is refunded at most once. The
+ * stock of all lines is added with one batch of relative updates.
+ *
+ * @author Maya Yagan
+ */
+public class RefundDAO {
+    private final StockDeltaDAO stockDeltaDAO = new StockDeltaDAO();
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+
+    /**
+     * Commits a refund as one unit of work.
+     *
+     * @param receiptCode The code of the refunded receipt
+     * @param warehouseId The warehouse the products go back to
+     * @param quantities Quantity to put back per product id
+     * @param refundAmount The amount paid back to the customer
+     * @param description Description of the financial record
+     * @param issuedBy The user giving the refund
+     * @return the restocked product-warehouse rows
+     * @throws CustomException if no cash box is open, the receipt does not exist
+     *                         or was already refunded, or the warehouse lacks the capacity
+     */
+    public List<ProductWarehouse> commitRefund(String receiptCode, int warehouseId, Map<Integer, Integer> quantities,
+                                               BigDecimal refundAmount, String description, User issuedBy) {
+        Transaction tx = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            tx = session.beginTransaction();
+
+            CashBox cashBox = session.createQuery("FROM CashBox WHERE status = :status", CashBox.class)
+                    .setParameter("status", CashBoxStatus.OPEN)
+                    .setMaxResults(1)
+                    .uniqueResult();
+            if (cashBox == null)
+                throw new CustomException("Cannot record expense. No open cash box.", "NO_OPEN_CASH_BOX");
+
+            // sales are saved from the journal in the background, so a receipt from
+            // the last few seconds may not be in the database yet
+            Receipt receipt = session.createQuery("FROM Receipt r WHERE r.code = :code", Receipt.class)
+                    .setParameter("code", receiptCode)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .uniqueResult();
+            if (receipt == null)
+                throw new CustomException(
+                        "Receipt " + receiptCode + " is still being saved. Please try again in a few seconds.",
+                        "NOT_FOUND");
+            // the row stays locked until commit, so two tills cannot refund the same receipt
+            if (receipt.getStatus() == ReceiptStatus.REFUNDED)
+                throw new CustomException("This receipt has already been refunded.", "ALREADY_REFUNDED");
+
+            List<ProductWarehouse> stock = List.of();
+            if (!quantities.isEmpty()) {
+                Warehouse warehouse = session.load(Warehouse.class, warehouseId);
+                for (int productId : stockDeltaDAO.increase(session, warehouseId, quantities))
+                    session.persist(new ProductWarehouse(warehouse,
+                            session.load(Product.class, productId), quantities.get(productId)));
+                stockLedgerDAO.record(session, MovementType.REFUND, warehouseId, quantities, receiptCode);
+                session.flush();
+
+                stock = session.createQuery(
+                                "SELECT pw FROM ProductWarehouse pw " +
+                                        "JOIN FETCH pw.product p " +
+                                        "WHERE pw.warehouse.id = :warehouseId AND p.id IN (:productIds)",
+                                ProductWarehouse.class)
+                        .setParameter("warehouseId", warehouseId)
+                        .setParameterList("productIds", quantities.keySet())
+                        .getResultList();
+            }
+
+            FinancialRecord record = new FinancialRecord();
+            record.setDateTime(LocalDateTime.now());
+            record.setAmount(refundAmount);
+            record.setType(TransactionType.REFUND);
+            record.setCashBox(cashBox);
+            record.setDescription(description);
+            record.setIssuedBy(session.load(User.class, issuedBy.getId()));
+            session.save(record);
+            cashBox.setTotalBalance(cashBox.getTotalBalance().subtract(refundAmount));
+
+            receipt.setStatus(ReceiptStatus.REFUNDED);
+            receipt.setChangeGiven(refundAmount.negate());
+
+            tx.commit();
+            return stock;
+        } catch (Exception e) {
+            if (tx != null) tx.rollback();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.maya_yagan.sms.payment.journal;
+
+import com.maya_yagan.sms.homepage.service.HomePageService;
+import com.maya_yagan.sms.payment.dao.CheckoutDAO;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.OptimisticRetry;
+import com.maya_yagan.sms.util.StatementCounter;
+import com.maya_yagan.sms.warehouse.service.WarehouseService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.DataException;
+
+import javax.persistence.EntityNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background worker that writes journaled sales to the database in order.
+ * A sale that fails because the database is slow or unreachable stays at the
+ * head of the journal and is retried. A sale the database can never accept
+ * (e.g. its cashier or cash box was deleted) is written to a reject file, a
+ * notification is raised, and draining moves on.
+ *
+ * @author Maya Yagan
+ */
+public class JournalDrainer {
+    private static final Log log = LogFactory.getLog(JournalDrainer.class);
+    private static final Path REJECT_FILE = Paths.get("journal", "rejected-sales.log");
+    private static final long RETRY_DELAY_SECONDS = 5;
+
+    private static JournalDrainer instance;
+
+    private final SalesJournal journal = SalesJournal.getInstance();
+    private final CheckoutDAO checkoutDAO = new CheckoutDAO();
+    private final WarehouseService warehouseService = new WarehouseService();
+    private final HomePageService homePageService = new HomePageService();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sales-journal-drainer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private JournalDrainer() {
+        executor.scheduleWithFixedDelay(this::drainSafely, 0, RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the drainer, starting it on first use. Anything left in the journal
+     * from an earlier run is drained right away.
+     *
+     * @return the drainer
+     */
+    public static synchronized JournalDrainer getInstance() {
+        if (instance == null) instance = new JournalDrainer();
+        return instance;
+    }
+
+    /**
+     * Asks the drainer to write new journal entries without waiting for the next
+     * scheduled run.
+     */
+    public void wake() {
+        executor.execute(this::drainSafely);
+    }
+
+    private void drainSafely() {
+        try {
+            drain();
+        } catch (Throwable t) {
+            // never let an exception cancel the scheduled runs
+            log.error("Draining the sales journal failed", t);
+        }
+    }
+
+    private void drain() {
+        JournaledSale sale;
+        while ((sale = journal.peek()) != null) {
+            StatementCounter counter = new StatementCounter();
+            CheckoutDAO.CommittedSale committed;
+            try {
+                committed = checkoutDAO.commitSale(sale, counter);
+            } catch (Exception e) {
+                if (isPermanent(e)) {
+                    reject(sale, e);
+                    journal.advance();
+                    continue;
+                }
+                log.warn("Receipt " + sale.getCode() + " could not be saved yet, retrying in "
+                        + RETRY_DELAY_SECONDS + " seconds: " + e.getMessage());
+                return;
+            }
+            journal.advance();
+
+            if (committed.duplicate()) {
+                log.info("Receipt " + sale.getCode() + " was already saved, skipping");
+                continue;
+            }
+            log.info("Receipt " + sale.getCode() + " committed with " + sale.getLines().size()
+                    + " lines: " + counter);
+            try {
+                for (String product : committed.shortfalls())
+                    homePageService.notify(String.format(
+                            "Receipt %s sold more %s than the warehouse had. Please count the stock.",
+                            sale.getCode(), product), true, true);
+                warehouseService.applySale(committed.stock());
+            } catch (Exception e) {
+                log.warn("Stock notifications for receipt " + sale.getCode() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Hibernate wraps flush and commit failures in a PersistenceException, so the
+     * whole cause chain is checked.
+     */
+    private boolean isPermanent(Exception e) {
+        if (OptimisticRetry.isConflict(e)) return false;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CustomException
+                    || t instanceof ConstraintViolationException
+                    || t instanceof DataException
+                    || t instanceof EntityNotFoundException)
+                return true;
+        }
+        return false;
+    }
+
+    private void reject(JournaledSale sale, Exception e) {
+        log.error("Receipt " + sale.getCode() + " was rejected by the database", e);
+        String line = String.format("%s\t%s\t%s\t%s%n",
+                LocalDateTime.now(), sale.getCode(), sale.getTotalCost(), e.getMessage());
+        try {
+            Files.writeString(REJECT_FILE, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
+        try {
+            homePageService.notify("Receipt " + sale.getCode() + " could not be saved and was written to "
+                    + REJECT_FILE + ". Please record it manually.", true, true);
+        } catch (Exception ignore) {}
+    }
+}
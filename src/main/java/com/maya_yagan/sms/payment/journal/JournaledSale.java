@@ -0,0 +1,208 @@
+package com.maya_yagan.sms.payment.journal;
+
+import com.maya_yagan.sms.payment.model.PaymentMethod;
+import com.maya_yagan.sms.payment.model.Receipt;
+import com.maya_yagan.sms.payment.model.ReceiptItem;
+import com.maya_yagan.sms.payment.model.ReceiptStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A completed sale as it is stored in the sales journal.
+ * Holds only ids and values, so it can be written before anything reaches the
+ * database and replayed later in a fresh session.
+ *
+ * @author Maya Yagan
+ */
+public class JournaledSale {
+    private final String code;
+    private final LocalDateTime dateTime;
+    private final int cashierId;
+    private final PaymentMethod paymentMethod;
+    private final ReceiptStatus status;
+    private final BigDecimal paidAmount;
+    private final BigDecimal changeGiven;
+    private final BigDecimal totalCost;
+    private final long cashBoxId;
+    private final int warehouseId;
+    private final String description;
+    private final List<Line> lines;
+
+    public record Line(int productId, String productName, BigDecimal unitPrice,
+                       double quantity, BigDecimal discount,
+                       BigDecimal promotionDiscount, String promotions) {}
+
+    private JournaledSale(String code, LocalDateTime dateTime, int cashierId,
+                          PaymentMethod paymentMethod, ReceiptStatus status,
+                          BigDecimal paidAmount, BigDecimal changeGiven, BigDecimal totalCost,
+                          long cashBoxId, int warehouseId, String description, List<Line> lines) {
+        this.code = code;
+        this.dateTime = dateTime;
+        this.cashierId = cashierId;
+        this.paymentMethod = paymentMethod;
+        this.status = status;
+        this.paidAmount = paidAmount;
+        this.changeGiven = changeGiven;
+        this.totalCost = totalCost;
+        this.cashBoxId = cashBoxId;
+        this.warehouseId = warehouseId;
+        this.description = description;
+        this.lines = lines;
+    }
+
+    /**
+     * Captures a completed receipt. The sale stays with the cash box the receipt
+     * was made in, even if it is closed before the sale reaches the database.
+     *
+     * @param receipt The completed receipt, with its cash box set
+     * @param warehouseId The warehouse the products are sold from
+     * @param description Description of the cash-box income record
+     * @return the journal entry for the sale
+     */
+    public static JournaledSale from(Receipt receipt, int warehouseId, String description) {
+        List<Line> lines = new ArrayList<>(receipt.getItems().size());
+        for (ReceiptItem item : receipt.getItems())
+            lines.add(new Line(item.getProduct().getId(), item.getProductName(), item.getUnitPrice(),
+                    item.getQuantity(), item.getDiscount(), item.getPromotionDiscount(), item.getPromotions()));
+
+        return new JournaledSale(receipt.getCode(), receipt.getDateTime(), receipt.getCashier().getId(),
+                receipt.getPaymentMethod(), receipt.getStatus(), receipt.getPaidAmount(),
+                receipt.getChangeGiven(), receipt.getTotalCost(), receipt.getCashBox().getId(),
+                warehouseId, description, lines);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + lines.size() * 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(code);
+            out.writeUTF(dateTime.toString());
+            out.writeInt(cashierId);
+            out.writeUTF(paymentMethod.name());
+            out.writeUTF(status.name());
+            writeDecimal(out, paidAmount);
+            writeDecimal(out, changeGiven);
+            writeDecimal(out, totalCost);
+            out.writeLong(cashBoxId);
+            out.writeInt(warehouseId);
+            out.writeUTF(description);
+            out.writeInt(lines.size());
+            for (Line line : lines) {
+                out.writeInt(line.productId());
+                out.writeUTF(line.productName());
+                writeDecimal(out, line.unitPrice());
+                out.writeDouble(line.quantity());
+                writeDecimal(out, line.discount());
+            }
+            // promotions come after all lines so entries written before them still decode
+            for (Line line : lines) {
+                writeDecimal(out, line.promotionDiscount());
+                out.writeBoolean(line.promotions() != null);
+                if (line.promotions() != null) out.writeUTF(line.promotions());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static JournaledSale decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            String code = in.readUTF();
+            LocalDateTime dateTime = LocalDateTime.parse(in.readUTF());
+            int cashierId = in.readInt();
+            PaymentMethod paymentMethod = PaymentMethod.valueOf(in.readUTF());
+            ReceiptStatus status = ReceiptStatus.valueOf(in.readUTF());
+            BigDecimal paidAmount = readDecimal(in);
+            BigDecimal changeGiven = readDecimal(in);
+            BigDecimal totalCost = readDecimal(in);
+            long cashBoxId = in.readLong();
+            int warehouseId = in.readInt();
+            String description = in.readUTF();
+            int count = in.readInt();
+            List<Line> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                lines.add(new Line(in.readInt(), in.readUTF(), readDecimal(in), in.readDouble(), readDecimal(in),
+                        null, null));
+            if (in.available() > 0) {
+                for (int i = 0; i < count; i++) {
+                    Line line = lines.get(i);
+                    BigDecimal promotionDiscount = readDecimal(in);
+                    String promotions = in.readBoolean() ? in.readUTF() : null;
+                    lines.set(i, new Line(line.productId(), line.productName(), line.unitPrice(),
+                            line.quantity(), line.discount(), promotionDiscount, promotions));
+                }
+            }
+
+            return new JournaledSale(code, dateTime, cashierId, paymentMethod, status,
+                    paidAmount, changeGiven, totalCost, cashBoxId, warehouseId, description, lines);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value.toPlainString());
+    }
+
+    private static BigDecimal readDecimal(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new BigDecimal(in.readUTF()) : null;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public LocalDateTime getDateTime() {
+        return dateTime;
+    }
+
+    public int getCashierId() {
+        return cashierId;
+    }
+
+    public PaymentMethod getPaymentMethod() {
+        return paymentMethod;
+    }
+
+    public ReceiptStatus getStatus() {
+        return status;
+    }
+
+    public BigDecimal getPaidAmount() {
+        return paidAmount;
+    }
+
+    public BigDecimal getChangeGiven() {
+        return changeGiven;
+    }
+
+    public BigDecimal getTotalCost() {
+        return totalCost;
+    }
+
+    public long getCashBoxId() {
+        return cashBoxId;
+    }
+
+    public int getWarehouseId() {
+        return warehouseId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<Line> getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,168 @@
+package com.maya_yagan.sms.payment.journal;
+
+import com.maya_yagan.sms.util.CustomException;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of completed sales, kept in a memory-mapped file.
+ * A sale is appended and forced to disk before the cashier sees it as done, and
+ * the {@link JournalDrainer} writes the entries to the database in the order they
+ * were appended. Whatever was not drained is picked up again on the next start.
+ *
+ * <p>File layout: a 16-byte header (magic, version, offset of the first entry not
+ * yet drained) followed by entries of the form length, CRC32, payload. A torn
+ * write at the end of the file fails its checksum and is ignored.</p>
+ *
+ * <p>The file is locked exclusively while the application runs, so a second
+ * instance started in the same directory cannot append to or drain it.</p>
+ *
+ * @author Maya Yagan
+ */
+public class SalesJournal {
+    private static final Path FILE = Paths.get("journal", "sales.journal");
+    private static final int MAGIC = 0x534D534A;
+    private static final int VERSION = 1;
+    private static final int DRAINED_OFFSET_POSITION = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private static final long INITIAL_SIZE = 16L * 1024 * 1024;
+
+    private static SalesJournal instance;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private MappedByteBuffer buffer;
+    private int writeOffset;
+    private int drainedOffset;
+
+    private SalesJournal() throws IOException {
+        Files.createDirectories(FILE.getParent());
+        channel = FileChannel.open(FILE, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new CustomException("The sales journal " + FILE.toAbsolutePath()
+                    + " is in use by another running instance.", "JOURNAL_LOCKED");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(DRAINED_OFFSET_POSITION, HEADER_SIZE);
+            buffer.force(0, HEADER_SIZE);
+        }
+        writeOffset = scanEnd();
+        drainedOffset = (int) Math.min(buffer.getLong(DRAINED_OFFSET_POSITION), writeOffset);
+    }
+
+    public static synchronized SalesJournal getInstance() {
+        if (instance == null) {
+            try {
+                instance = new SalesJournal();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new CustomException("The sales journal could not be opened: " + e.getMessage(), "GENERAL");
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Appends a sale and forces it to disk.
+     *
+     * @param sale The completed sale
+     */
+    public synchronized void append(JournaledSale sale) {
+        byte[] payload = sale.encode();
+        ensureCapacity(ENTRY_HEADER_SIZE + payload.length);
+
+        int offset = writeOffset;
+        buffer.putInt(offset + 4, checksum(payload));
+        buffer.put(offset + ENTRY_HEADER_SIZE, payload);
+        // length goes last so a torn entry reads as the end of the journal
+        buffer.putInt(offset, payload.length);
+        buffer.force(offset, ENTRY_HEADER_SIZE + payload.length);
+        writeOffset = offset + ENTRY_HEADER_SIZE + payload.length;
+    }
+
+    /**
+     * @return the oldest sale not yet drained to the database, or null if there is none
+     */
+    public synchronized JournaledSale peek() {
+        if (drainedOffset >= writeOffset) return null;
+        byte[] payload = new byte[buffer.getInt(drainedOffset)];
+        buffer.get(drainedOffset + ENTRY_HEADER_SIZE, payload);
+        return JournaledSale.decode(payload);
+    }
+
+    /**
+     * Marks the sale returned by {@link #peek()} as drained. Once every entry is
+     * drained the journal starts over from the beginning of the file.
+     */
+    public synchronized void advance() {
+        if (drainedOffset >= writeOffset) return;
+        drainedOffset += ENTRY_HEADER_SIZE + buffer.getInt(drainedOffset);
+
+        if (drainedOffset == writeOffset) {
+            // clear the old entries first; if we stop before the header is reset,
+            // the drained offset is clamped to the (now empty) end on the next start
+            for (int i = HEADER_SIZE; i < writeOffset; i++) buffer.put(i, (byte) 0);
+            buffer.force(HEADER_SIZE, writeOffset - HEADER_SIZE);
+            writeOffset = HEADER_SIZE;
+            drainedOffset = HEADER_SIZE;
+        }
+        buffer.putLong(DRAINED_OFFSET_POSITION, drainedOffset);
+        buffer.force(DRAINED_OFFSET_POSITION, Long.BYTES);
+    }
+
+    public synchronized boolean isEmpty() {
+        return drainedOffset >= writeOffset;
+    }
+
+    private int scanEnd() {
+        int offset = HEADER_SIZE;
+        while (offset + ENTRY_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + ENTRY_HEADER_SIZE + length > buffer.capacity()) break;
+
+            byte[] payload = new byte[length];
+            buffer.get(offset + ENTRY_HEADER_SIZE, payload);
+            if (checksum(payload) != buffer.getInt(offset + 4)) break;
+            offset += ENTRY_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private void ensureCapacity(int bytes) {
+        long needed = (long) writeOffset + bytes;
+        if (needed <= buffer.capacity()) return;
+        if (needed > Integer.MAX_VALUE)
+            throw new CustomException("The sales journal is full. Please check the database connection.", "GENERAL");
+
+        long size = buffer.capacity();
+        while (size < needed) size *= 2;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new CustomException("The sales journal could not be extended: " + e.getMessage(), "GENERAL");
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,252 @@
+package com.maya_yagan.sms.payment.model;
+
+import com.maya_yagan.sms.payment.pricing.Money;
+import com.maya_yagan.sms.payment.pricing.Quantity;
+import com.maya_yagan.sms.payment.pricing.Rate;
+import com.maya_yagan.sms.promotion.model.Promotion;
+import com.maya_yagan.sms.promotion.service.PromotionEvaluator;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * The products a customer is buying, with running totals.
+ * Subtotal, tax and total are kept up to date on every change, so reading them
+ * never walks the basket. Rounding matches PaymentService: the subtotal is
+ * rounded once over the exact line sums, while tax is rounded per line and again
+ * over the sum. All sums are kept in whole cents (1/1000 cent for line amounts),
+ * and quantities are rounded to three decimals when they enter the basket.
+ * Lines are kept in a {@link CompactBasket} keyed by product id, so scanning a
+ * product that is already in the basket does not hash the product entity.
+ * Promotions, if any, are kept current by a PromotionEvaluator that only looks
+ * at the promotions of the product that changed; their discount is taken off
+ * the total and their tax reduction off the tax.
+ *
+ * @author Maya Yagan
+ */
+public class Basket {
+    private final Function<ProductWarehouse, Money> unitPricer;
+    private final CompactBasket<Line> lines = new CompactBasket<>();
+    private final IntFunction<Line> lineOf = lines::get;
+    private final PromotionEvaluator promotions;
+
+    private long grossSum;
+    private long taxSum;
+
+    /**
+     * @param unitPricer Computes the discounted unit price of a product
+     */
+    public Basket(Function<ProductWarehouse, Money> unitPricer) {
+        this(unitPricer, null);
+    }
+
+    /**
+     * @param unitPricer Computes the discounted unit price of a product
+     * @param promotions Evaluates the promotions of this basket, or null for none
+     */
+    public Basket(Function<ProductWarehouse, Money> unitPricer, PromotionEvaluator promotions) {
+        this.unitPricer = unitPricer;
+        this.promotions = promotions;
+    }
+
+    /**
+     * Adds a product to the basket or changes its quantity.
+     *
+     * @param productWarehouse The product being bought
+     * @param quantity The quantity being bought
+     */
+    public void put(ProductWarehouse productWarehouse, double quantity) {
+        int productId = productId(productWarehouse);
+        Line line = lines.get(productId);
+        if (line != null) subtract(line);
+        if (line == null || line.productWarehouse != productWarehouse)
+            line = new Line(productWarehouse, unitPricer.apply(productWarehouse));
+        line.setQuantity(Quantity.of(quantity));
+        lines.put(productId, line, line.quantity.getMilli());
+        grossSum += line.gross;
+        taxSum += line.tax;
+        updatePromotions(productId);
+    }
+
+    public void remove(ProductWarehouse productWarehouse) {
+        int productId = productId(productWarehouse);
+        Line line = lines.remove(productId);
+        if (line == null) return;
+        subtract(line);
+        updatePromotions(productId);
+    }
+
+    public void clear() {
+        lines.clear();
+        grossSum = 0;
+        taxSum = 0;
+        if (promotions != null) promotions.clear();
+    }
+
+    public boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    /**
+     * @return the lines, in the order the products were added
+     */
+    public List<Line> getLines() {
+        return lines.values();
+    }
+
+    public boolean contains(ProductWarehouse productWarehouse) {
+        return lines.contains(productId(productWarehouse));
+    }
+
+    /**
+     * @param productWarehouse The product
+     * @return the quantity of the product in the basket, or 0 if it is not in it
+     */
+    public double getQuantity(ProductWarehouse productWarehouse) {
+        return lines.getQuantityMilli(productId(productWarehouse)) / 1000.0;
+    }
+
+    public BigDecimal getSubtotal() {
+        return subtotal().toBigDecimal();
+    }
+
+    public BigDecimal getTax() {
+        return tax().toBigDecimal();
+    }
+
+    /**
+     * @return the discount of all promotions applied to the basket
+     */
+    public BigDecimal getPromotionDiscount() {
+        return promotionDiscount().toBigDecimal();
+    }
+
+    public BigDecimal getTotal() {
+        return subtotal().minus(promotionDiscount()).plus(tax()).toBigDecimal();
+    }
+
+    /**
+     * @param line A line of this basket
+     * @return the part of the promotion discount that falls on the line
+     */
+    public BigDecimal getPromotionDiscount(Line line) {
+        if (promotions == null) return BigDecimal.ZERO;
+        return Money.ofCents(promotions.getDiscountCents(productId(line.productWarehouse))).toBigDecimal();
+    }
+
+    /**
+     * @param line A line of this basket
+     * @return the promotions applied to the line
+     */
+    public List<Promotion> getPromotions(Line line) {
+        return promotions == null ? List.of() : promotions.getPromotions(productId(line.productWarehouse));
+    }
+
+    private Money subtotal() {
+        return Money.ofFraction(grossSum, 1000, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * The tax reduction of promotions is capped per line by the evaluator, and
+     * here again so rounding never takes the tax below zero.
+     */
+    private Money tax() {
+        if (promotions == null) return Money.ofCents(taxSum);
+        return Money.ofCents(taxSum - Math.min(promotions.getTaxCents(), taxSum));
+    }
+
+    /**
+     * Promotions never take the basket below zero.
+     */
+    private Money promotionDiscount() {
+        if (promotions == null) return Money.ZERO;
+        return Money.ofCents(Math.min(promotions.getDiscountCents(), subtotal().getCents()));
+    }
+
+    private void updatePromotions(int productId) {
+        if (promotions != null) promotions.update(productId, lineOf);
+    }
+
+    private static int productId(ProductWarehouse productWarehouse) {
+        return productWarehouse.getProduct().getId();
+    }
+
+    private void subtract(Line line) {
+        grossSum -= line.gross;
+        taxSum -= line.tax;
+    }
+
+    /**
+     * A single product in the basket with its cached price figures.
+     */
+    public static final class Line {
+        private final ProductWarehouse productWarehouse;
+        private final Money unitPrice;
+        private final Rate taxRate;
+        private Quantity quantity;
+        private long gross;
+        private long tax;
+
+        private Line(ProductWarehouse productWarehouse, Money unitPrice) {
+            this.productWarehouse = productWarehouse;
+            this.unitPrice = unitPrice;
+            this.taxRate = Rate.of(productWarehouse.getProduct().getTaxPercentage());
+        }
+
+        private void setQuantity(Quantity quantity) {
+            this.quantity = quantity;
+            this.gross = unitPrice.times(quantity);
+            this.tax = taxRate.applyToCents(gross, 5, RoundingMode.HALF_UP);
+        }
+
+        public ProductWarehouse getProductWarehouse() {
+            return productWarehouse;
+        }
+
+        public BigDecimal getUnitPrice() {
+            return unitPrice.toBigDecimal();
+        }
+
+        public double getQuantity() {
+            return quantity.toDouble();
+        }
+
+        /**
+         * @return unit price × quantity, not rounded
+         */
+        public BigDecimal getGross() {
+            return BigDecimal.valueOf(gross, 5);
+        }
+
+        public BigDecimal getTax() {
+            return Money.ofCents(tax).toBigDecimal();
+        }
+
+        public long getUnitPriceCents() {
+            return unitPrice.getCents();
+        }
+
+        public long getQuantityMilli() {
+            return quantity.getMilli();
+        }
+
+        /**
+         * @return unit price × quantity in 1/1000 cent
+         */
+        public long getGrossMillicents() {
+            return gross;
+        }
+
+        public Rate getTaxRate() {
+            return taxRate;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.maya_yagan.sms.payment.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Product id → quantity table for baskets.
+ * Ids and quantities (in 1/1000 unit) are kept in primitive arrays, in the
+ * order the products were added, next to the object the basket shows for the
+ * product. Lookups go through an open-addressing table of indexes into those
+ * arrays, so scanning a product already in the basket allocates nothing and
+ * never hashes a Hibernate entity. Removed products leave a hole that is
+ * compacted away when the arrays are full.
+ *
+ * @param <V> What the basket keeps for each product, e.g. its line
+ * @author Maya Yagan
+ */
+public final class CompactBasket<V> {
+    private static final int FREE = 0;
+    private static final int DELETED = -1;
+
+    private int[] table;          // entry index + 1, FREE or DELETED
+    private int[] ids;
+    private long[] quantities;
+    private Object[] values;      // null marks a removed entry
+    private int used;             // entries written, holes included
+    private int size;
+
+    public CompactBasket() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of products the basket is expected to hold
+     */
+    public CompactBasket(int expectedSize) {
+        int capacity = Math.max(4, expectedSize);
+        ids = new int[capacity];
+        quantities = new long[capacity];
+        values = new Object[capacity];
+        table = new int[tableSize(capacity)];
+    }
+
+    /**
+     * Adds a product or replaces its value and quantity, keeping its position.
+     *
+     * @param productId The product id
+     * @param value What to keep for the product; not null
+     * @param quantityMilli The quantity in 1/1000 unit
+     */
+    public void put(int productId, V value, long quantityMilli) {
+        Objects.requireNonNull(value, "value");
+        int mask = table.length - 1, reuse = -1, slot = hash(productId) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == FREE) break;
+            if (entry == DELETED) {
+                if (reuse < 0) reuse = slot;
+            } else if (ids[entry - 1] == productId) {
+                values[entry - 1] = value;
+                quantities[entry - 1] = quantityMilli;
+                return;
+            }
+        }
+        if (used == ids.length) {
+            rebuild();
+            put(productId, value, quantityMilli);
+            return;
+        }
+        ids[used] = productId;
+        quantities[used] = quantityMilli;
+        values[used] = value;
+        table[reuse >= 0 ? reuse : slot] = ++used;
+        size++;
+    }
+
+    /**
+     * @param productId The product id
+     * @return what was kept for the product, or null if it was not in the basket
+     */
+    public V remove(int productId) {
+        int slot = slotOf(productId);
+        if (slot < 0) return null;
+        int index = table[slot] - 1;
+        V value = value(index);
+        table[slot] = DELETED;
+        values[index] = null;
+        if (--size == 0) clear();
+        return value;
+    }
+
+    /**
+     * @param productId The product id
+     * @return what is kept for the product, or null if it is not in the basket
+     */
+    public V get(int productId) {
+        int slot = slotOf(productId);
+        return slot < 0 ? null : value(table[slot] - 1);
+    }
+
+    public boolean contains(int productId) {
+        return slotOf(productId) >= 0;
+    }
+
+    /**
+     * @param productId The product id
+     * @return the quantity in 1/1000 unit, or 0 if the product is not in the basket
+     */
+    public long getQuantityMilli(int productId) {
+        int slot = slotOf(productId);
+        return slot < 0 ? 0 : quantities[table[slot] - 1];
+    }
+
+    public void clear() {
+        Arrays.fill(table, FREE);
+        Arrays.fill(values, 0, used, null);
+        used = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Calls the visitor for every product, in the order they were added.
+     *
+     * @param visitor Receives each product id, value and quantity
+     */
+    public void forEach(Visitor<? super V> visitor) {
+        for (int i = 0; i < used; i++)
+            if (values[i] != null) visitor.visit(ids[i], value(i), quantities[i]);
+    }
+
+    /**
+     * @return a read-only copy of the values, in the order they were added
+     */
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for (int i = 0; i < used; i++)
+            if (values[i] != null) result.add(value(i));
+        return Collections.unmodifiableList(result);
+    }
+
+    @FunctionalInterface
+    public interface Visitor<V> {
+        void visit(int productId, V value, long quantityMilli);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int index) {
+        return (V) values[index];
+    }
+
+    private int slotOf(int productId) {
+        int mask = table.length - 1;
+        for (int slot = hash(productId) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == FREE) return -1;
+            if (entry != DELETED && ids[entry - 1] == productId) return slot;
+        }
+    }
+
+    /**
+     * Drops the holes left by removed products and grows the arrays if they are
+     * still more than half full.
+     */
+    private void rebuild() {
+        int n = 0;
+        for (int i = 0; i < used; i++) {
+            if (values[i] == null) continue;
+            ids[n] = ids[i];
+            quantities[n] = quantities[i];
+            values[n] = values[i];
+            n++;
+        }
+        Arrays.fill(values, n, used, null);
+        used = n;
+
+        if (size * 2 >= ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            values = Arrays.copyOf(values, capacity);
+            table = new int[tableSize(capacity)];
+        } else {
+            Arrays.fill(table, FREE);
+        }
+
+        int mask = table.length - 1;
+        for (int i = 0; i < used; i++) {
+            int slot = hash(ids[i]) & mask;
+            while (table[slot] != FREE) slot = (slot + 1) & mask;
+            table[slot] = i + 1;
+        }
+    }
+
+    /**
+     * At least twice the capacity, so the table is never more than half full
+     * even when it holds one deleted slot per entry.
+     */
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int hash(int productId) {
+        int h = productId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -11,7 +11,7 @@ import java.util.List;
 import java.util.Objects;
 
 @Entity
-@Table(name = "Receipt")
+@Table(name = "Receipt", indexes = @Index(name = "idx_receipt_code", columnList = "code"))
 public class Receipt {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -4,7 +4,6 @@ import com.maya_yagan.sms.product.model.Product;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
-import java.util.Objects;
 
 @Entity
 @Table(name = "Receipt_Item")
@@ -33,6 +32,12 @@ public class ReceiptItem {
     @Column(precision = 5, scale = 2)
     private BigDecimal discount;               // absolute amount; null = none
 
+    @Column(precision = 12, scale = 2)
+    private BigDecimal promotionDiscount;      // share of the basket promotions; null = none
+
+    @Column(length = 255)
+    private String promotions;                 // names of the applied promotions
+
     @Column(precision = 12, scale = 2, nullable = false)
     private BigDecimal lineTotal;
 
@@ -44,6 +49,8 @@ public class ReceiptItem {
         this.lineTotal = (discount == null)
                 ? gross
                 : gross.subtract(discount);
+        if (promotionDiscount != null)
+            this.lineTotal = lineTotal.subtract(promotionDiscount);
     }
 
     public void snapshotProductData() {
@@ -105,6 +112,22 @@ public class ReceiptItem {
         this.discount = discount;
     }
 
+    public BigDecimal getPromotionDiscount() {
+        return promotionDiscount;
+    }
+
+    public void setPromotionDiscount(BigDecimal promotionDiscount) {
+        this.promotionDiscount = promotionDiscount;
+    }
+
+    public String getPromotions() {
+        return promotions;
+    }
+
+    public void setPromotions(String promotions) {
+        this.promotions = promotions;
+    }
+
     public BigDecimal getLineTotal() {
         return lineTotal;
     }
@@ -115,13 +138,15 @@ public class ReceiptItem {
 
     @Override
     public boolean equals(Object o) {
+        if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ReceiptItem that = (ReceiptItem) o;
-        return Objects.equals(id, that.id);
+        // items of a receipt that is not saved yet have no id and are only equal to themselves
+        return id != null && id.equals(that.id);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(id);
+        return id == null ? System.identityHashCode(this) : id.hashCode();
     }
 }
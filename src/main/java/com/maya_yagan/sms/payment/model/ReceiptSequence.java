@@ -0,0 +1,38 @@
+package com.maya_yagan.sms.payment.model;
+
+import javax.persistence.*;
+
+/**
+ * Shared counter that receipt numbers are reserved from, a block at a time.
+ *
+ * @author Maya Yagan
+ */
+@Entity
+@Table(name = "Receipt_Sequence")
+public class ReceiptSequence {
+    @Id
+    @Column(name = "name", length = 30)
+    private String name;
+
+    @Column(name = "nextValue", nullable = false)
+    private long nextValue;
+
+    public ReceiptSequence(){}
+
+    public ReceiptSequence(String name, long nextValue) {
+        this.name = name;
+        this.nextValue = nextValue;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getNextValue() {
+        return nextValue;
+    }
+
+    public void setNextValue(long nextValue) {
+        this.nextValue = nextValue;
+    }
+}
@@ -0,0 +1,152 @@
+package com.maya_yagan.sms.payment.pricing;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Immutable money amount stored as a whole number of cents.
+ * Conversions from floats and BigDecimals round half-up to cents exactly like
+ * {@code BigDecimal.valueOf(value).setScale(2, RoundingMode.HALF_UP)}, so the
+ * long arithmetic gives the same results as the BigDecimal pricing code.
+ *
+ * @author Maya Yagan
+ */
+public final class Money implements Comparable<Money> {
+    public static final Money ZERO = new Money(0);
+
+    private static final long BASIS_POINTS = 10_000L;
+
+    private final long cents;
+
+    private Money(long cents) {
+        this.cents = cents;
+    }
+
+    public static Money ofCents(long cents) {
+        return cents == 0 ? ZERO : new Money(cents);
+    }
+
+    public static Money of(BigDecimal amount) {
+        return ofCents(amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact());
+    }
+
+    public static Money of(float amount) {
+        return of(BigDecimal.valueOf(amount));
+    }
+
+    /**
+     * Converts an amount expressed as numerator / denominator cents into money.
+     *
+     * @param numerator The amount in units of 1 / denominator cents
+     * @param denominator A positive denominator
+     * @param mode The rounding mode applied to the fraction of a cent
+     * @return the rounded amount
+     */
+    public static Money ofFraction(long numerator, long denominator, RoundingMode mode) {
+        return ofCents(divide(numerator, denominator, mode));
+    }
+
+    /**
+     * Converts a discount percentage into basis points of the price, rounded like
+     * {@code discount.divide(100, 4, RoundingMode.HALF_UP)}.
+     *
+     * @param discountPercent The discount percentage, e.g. 12.5
+     * @return the discount in basis points, e.g. 1250
+     */
+    public static long basisPoints(float discountPercent) {
+        return BigDecimal.valueOf(discountPercent)
+                .divide(BigDecimal.valueOf(100), 4, RoundingMode.HALF_UP)
+                .unscaledValue()
+                .longValueExact();
+    }
+
+    public long getCents() {
+        return cents;
+    }
+
+    public Money plus(Money other) {
+        return ofCents(Math.addExact(cents, other.cents));
+    }
+
+    public Money minus(Money other) {
+        return ofCents(Math.subtractExact(cents, other.cents));
+    }
+
+    public Money negate() {
+        return ofCents(-cents);
+    }
+
+    /**
+     * Takes a discount off this amount.
+     *
+     * @param discountBasisPoints The discount in basis points
+     * @param mode The rounding mode applied to the discounted amount
+     * @return the discounted amount
+     */
+    public Money applyDiscount(long discountBasisPoints, RoundingMode mode) {
+        if (discountBasisPoints == 0) return this;
+        long scaled = Math.multiplyExact(cents, BASIS_POINTS - discountBasisPoints);
+        return ofFraction(scaled, BASIS_POINTS, mode);
+    }
+
+    /**
+     * Multiplies this amount by a quantity without rounding.
+     *
+     * @param quantity The quantity
+     * @return the product in units of 1/1000 cent
+     */
+    public long times(Quantity quantity) {
+        return Math.multiplyExact(cents, quantity.getMilli());
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(cents, other.cents);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return cents == ((Money) o).cents;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(cents);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+
+    /**
+     * Divides two longs and rounds the quotient with the given mode, matching
+     * {@link BigDecimal#setScale(int, RoundingMode)} on the exact quotient.
+     */
+    static long divide(long dividend, long divisor, RoundingMode mode) {
+        if (divisor <= 0) throw new IllegalArgumentException("Divisor must be positive");
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (remainder == 0) return quotient;
+
+        int sign = dividend < 0 ? -1 : 1;
+        int comparedToHalf = Long.compare(Math.abs(remainder), divisor - Math.abs(remainder));
+        boolean awayFromZero = switch (mode) {
+            case UP -> true;
+            case DOWN -> false;
+            case CEILING -> sign > 0;
+            case FLOOR -> sign < 0;
+            case HALF_UP -> comparedToHalf >= 0;
+            case HALF_DOWN -> comparedToHalf > 0;
+            case HALF_EVEN -> comparedToHalf > 0 || (comparedToHalf == 0 && (quotient & 1) != 0);
+            case UNNECESSARY -> throw new ArithmeticException("Rounding necessary");
+        };
+        return awayFromZero ? quotient + sign : quotient;
+    }
+}
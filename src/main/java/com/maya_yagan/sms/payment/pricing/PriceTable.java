@@ -0,0 +1,77 @@
+package com.maya_yagan.sms.payment.pricing;
+
+import com.maya_yagan.sms.product.model.Product;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Effective (discounted) unit price of each product, keyed by product id.
+ * A price is computed once and reused until the product's price or discount
+ * changes. ProductDAO drops the entry of a product when it is updated or
+ * deleted; an entry is also recomputed if it was made from a different price
+ * or discount than the product passed in, so a stale snapshot is never charged
+ * a newer price or the other way round.
+ *
+ * @author Maya Yagan
+ */
+public final class PriceTable {
+    private static final PriceTable instance = new PriceTable();
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    private PriceTable() {}
+
+    public static PriceTable getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param product The product being priced
+     * @return the unit price after the product's discount
+     */
+    public Money unitPrice(Product product) {
+        return entry(product).price;
+    }
+
+    /**
+     * @param product The product being priced
+     * @return the unit price after the product's discount, with two decimals
+     */
+    public BigDecimal unitPriceDecimal(Product product) {
+        return entry(product).decimal;
+    }
+
+    /**
+     * Drops the price of a product after its price or discount changed.
+     *
+     * @param productId The product
+     */
+    public void invalidate(int productId) {
+        entries.remove(productId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry entry(Product product) {
+        Entry entry = entries.get(product.getId());
+        if (entry != null && entry.matches(product)) return entry;
+
+        Money price = Money.of(product.getPrice())
+                .applyDiscount(Money.basisPoints(product.getDiscount()), RoundingMode.HALF_UP);
+        entry = new Entry(product.getPrice(), product.getDiscount(), price, price.toBigDecimal());
+        entries.put(product.getId(), entry);
+        return entry;
+    }
+
+    private record Entry(float listPrice, float discount, Money price, BigDecimal decimal) {
+        boolean matches(Product product) {
+            return Float.compare(listPrice, product.getPrice()) == 0
+                    && Float.compare(discount, product.getDiscount()) == 0;
+        }
+    }
+}
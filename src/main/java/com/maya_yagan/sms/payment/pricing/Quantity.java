@@ -0,0 +1,73 @@
+package com.maya_yagan.sms.payment.pricing;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Immutable quantity stored as a whole number of thousandths (grams, millilitres,
+ * or 1/1000 of a piece).
+ *
+ * @author Maya Yagan
+ */
+public final class Quantity {
+    private static final double MILLI = 1000d;
+
+    private final long milli;
+
+    private Quantity(long milli) {
+        this.milli = milli;
+    }
+
+    public static Quantity ofMilli(long milli) {
+        return new Quantity(milli);
+    }
+
+    /**
+     * Converts an entered quantity, rounding half-up to three decimals.
+     *
+     * @param quantity The entered quantity
+     * @return the quantity in thousandths
+     */
+    public static Quantity of(double quantity) {
+        return new Quantity(BigDecimal.valueOf(quantity)
+                .setScale(3, RoundingMode.HALF_UP)
+                .unscaledValue()
+                .longValueExact());
+    }
+
+    /**
+     * Converts a quantity only if it has at most three decimals.
+     *
+     * @param quantity The quantity
+     * @return the quantity in thousandths, or null if it has more decimals
+     */
+    public static Quantity exactly(double quantity) {
+        Quantity rounded = of(quantity);
+        return rounded.toDouble() == quantity ? rounded : null;
+    }
+
+    public long getMilli() {
+        return milli;
+    }
+
+    public double toDouble() {
+        return milli / MILLI;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return milli == ((Quantity) o).milli;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(milli);
+    }
+
+    @Override
+    public String toString() {
+        return BigDecimal.valueOf(milli, 3).toPlainString();
+    }
+}
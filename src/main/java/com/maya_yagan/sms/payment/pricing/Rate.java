@@ -0,0 +1,108 @@
+package com.maya_yagan.sms.payment.pricing;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * A multiplier such as a tax rate, taken from a float field.
+ * The rate keeps the exact value the BigDecimal code uses
+ * ({@code BigDecimal.valueOf(float)}) and a millionths approximation for long
+ * arithmetic. Results are computed with the approximation and only fall back to
+ * the exact value when it could round differently, so they always match the
+ * BigDecimal code.
+ *
+ * @author Maya Yagan
+ */
+public final class Rate {
+    private static final int MICRO_SCALE = 6;
+
+    private final BigDecimal exact;
+    private final long micros;
+    private final double errorMicros;
+
+    private Rate(BigDecimal exact) {
+        this.exact = exact;
+        BigDecimal approx = exact.setScale(MICRO_SCALE, RoundingMode.HALF_UP);
+        this.micros = approx.unscaledValue().longValueExact();
+        this.errorMicros = exact.subtract(approx).abs().movePointRight(MICRO_SCALE).doubleValue();
+    }
+
+    public static Rate of(float rate) {
+        return new Rate(BigDecimal.valueOf(rate));
+    }
+
+    public BigDecimal toBigDecimal() {
+        return exact;
+    }
+
+    /**
+     * Applies the rate to an amount and rounds the result to cents.
+     *
+     * @param amount The amount in units of 10^-amountScale
+     * @param amountScale The scale of the amount, at least 2
+     * @param mode The rounding mode applied to the result
+     * @return the result in cents
+     */
+    public long applyToCents(long amount, int amountScale, RoundingMode mode) {
+        Accumulator acc = new Accumulator(amountScale);
+        acc.add(amount, this);
+        if (acc.canRound(mode)) return acc.toCents(mode);
+        return BigDecimal.valueOf(amount, amountScale)
+                .multiply(exact)
+                .setScale(2, mode)
+                .unscaledValue()
+                .longValueExact();
+    }
+
+    /**
+     * Sums amount × rate products in long arithmetic and rounds the total once.
+     * When {@link #canRound} is false the approximation could round differently
+     * from the exact sum (or overflowed), and the caller must use BigDecimal.
+     */
+    public static final class Accumulator {
+        private final long divisor;
+        private long sum;
+        private double errorBound;
+        private boolean overflow;
+
+        /**
+         * @param amountScale The scale of the amounts that will be added, at least 2
+         */
+        public Accumulator(int amountScale) {
+            this.divisor = pow10(amountScale + MICRO_SCALE - 2);
+        }
+
+        public void add(long amount, Rate rate) {
+            if (overflow) return;
+            try {
+                sum = Math.addExact(sum, Math.multiplyExact(amount, rate.micros));
+                errorBound += Math.abs((double) amount) * rate.errorMicros;
+            } catch (ArithmeticException e) {
+                overflow = true;
+            }
+        }
+
+        public boolean canRound(RoundingMode mode) {
+            if (overflow) return false;
+            if (errorBound == 0) return true;
+            long remainder = Math.abs(sum % divisor);
+            double distance = switch (mode) {
+                case HALF_UP, HALF_DOWN, HALF_EVEN -> Math.abs(2.0 * remainder - divisor) / 2.0;
+                default -> Math.min(remainder, divisor - remainder);
+            };
+            return distance > errorBound + 1;
+        }
+
+        public long toCents(RoundingMode mode) {
+            if (!canRound(mode))
+                throw new ArithmeticException("Sum cannot be rounded without exact arithmetic");
+            return Money.divide(sum, divisor, mode);
+        }
+
+        private static long pow10(int exponent) {
+            long result = 1;
+            for (int i = 0; i < exponent; i++) result = Math.multiplyExact(result, 10L);
+            return result;
+        }
+    }
+}
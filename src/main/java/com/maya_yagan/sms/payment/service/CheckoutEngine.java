@@ -0,0 +1,226 @@
+package com.maya_yagan.sms.payment.service;
+
+import com.maya_yagan.sms.finance.model.CashBox;
+import com.maya_yagan.sms.payment.journal.JournalDrainer;
+import com.maya_yagan.sms.payment.journal.JournaledSale;
+import com.maya_yagan.sms.payment.journal.SalesJournal;
+import com.maya_yagan.sms.payment.model.Basket;
+import com.maya_yagan.sms.payment.model.PaymentMethod;
+import com.maya_yagan.sms.payment.model.Receipt;
+import com.maya_yagan.sms.payment.model.ReceiptItem;
+import com.maya_yagan.sms.payment.model.ReceiptStatus;
+import com.maya_yagan.sms.payment.pricing.Money;
+import com.maya_yagan.sms.payment.pricing.PriceTable;
+import com.maya_yagan.sms.promotion.model.Promotion;
+import com.maya_yagan.sms.promotion.service.PromotionCatalog;
+import com.maya_yagan.sms.promotion.service.PromotionEvaluator;
+import com.maya_yagan.sms.user.model.User;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+import com.maya_yagan.sms.warehouse.service.StockReservationService;
+import com.maya_yagan.sms.warehouse.service.WarehouseService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Checkout without any user interface: prices a basket, turns it into a receipt
+ * and commits the sale to the sales journal. PaymentService and the load
+ * simulator (in the test sources) both go through this class, so they share
+ * pricing, stock and cash-box behaviour. Nothing here reads the logged-in user or touches JavaFX;
+ * the cashier and cash box are passed in.
+ *
+ * @author Maya Yagan
+ */
+public class CheckoutEngine {
+    private static final Log log = LogFactory.getLog(CheckoutEngine.class);
+
+    private final WarehouseService warehouseService = new WarehouseService();
+    private final StockReservationService reservations = StockReservationService.getInstance();
+
+    /**
+     * @param productWarehouse The product being bought
+     * @return the unit price of the product after its discount
+     */
+    public static Money unitPrice(ProductWarehouse productWarehouse) {
+        return PriceTable.getInstance().unitPrice(productWarehouse.getProduct());
+    }
+
+    /**
+     * @return an empty basket that applies today's promotions
+     */
+    public Basket newBasket() {
+        return new Basket(CheckoutEngine::unitPrice, new PromotionEvaluator(PromotionCatalog.getInstance()));
+    }
+
+    /**
+     * Older receipts carry 8 hex characters; the 10-digit numbers can never
+     * collide with them.
+     */
+    public String nextReceiptCode() {
+        return String.format("RC-%010d", ReceiptNumberAllocator.getInstance().next());
+    }
+
+    /**
+     * Builds an unpaid receipt from a basket.
+     *
+     * @param basket The products being bought
+     * @param code The receipt code
+     * @param method How the customer pays
+     * @param cashier The cashier of the sale
+     * @param cashBox The open cash box the sale is recorded in
+     * @return the receipt
+     * @throws CustomException if no cash box is given
+     */
+    public Receipt createReceipt(Basket basket, String code, PaymentMethod method, User cashier, CashBox cashBox) {
+        if (cashBox == null)
+            throw new CustomException("No open cash box.\nPlease open the cash box first.", "NO_OPEN_CASH_BOX");
+
+        Receipt receipt = new Receipt(code, LocalDateTime.now(), cashier, method);
+        List<ReceiptItem> items = new ArrayList<>();
+        for (Basket.Line line : basket.getLines()) {
+            ProductWarehouse pw = line.getProductWarehouse();
+
+            ReceiptItem item = new ReceiptItem();
+            item.setReceipt(receipt);
+            item.setProduct(pw.getProduct());
+            item.setProductName(pw.getProduct().getName());
+            item.setQuantity(line.getQuantity());
+            item.setUnitPrice(line.getUnitPrice());
+            item.setDiscount(BigDecimal.valueOf(pw.getProduct().getDiscount()));
+            item.setPromotionDiscount(basket.getPromotionDiscount(line));
+            item.setPromotions(promotionNames(basket.getPromotions(line)));
+            item.calcLineTotal();
+            items.add(item);
+        }
+        receipt.setTotalCost(basket.getTotal());
+        receipt.setItems(items);
+        receipt.setCashBox(cashBox);
+        return receipt;
+    }
+
+    private static String promotionNames(List<Promotion> promotions) {
+        if (promotions.isEmpty()) return null;
+        String names = promotions.stream().map(Promotion::getName).collect(Collectors.joining(", "));
+        return names.length() > 255 ? names.substring(0, 255) : names;
+    }
+
+    /**
+     * Takes the payment of a receipt: checks the paid amount and the stock in the
+     * warehouse snapshot, appends the sale to the journal, which writes it to the
+     * database in the background, and then takes the stock out of the snapshot.
+     *
+     * @param receipt The receipt being paid
+     * @param warehouse The warehouse snapshot the products come from
+     * @param paidAmount The amount the customer paid
+     * @throws CustomException if the amount is missing or too low, or the
+     *                         snapshot lacks the stock
+     */
+    public void complete(Receipt receipt, Warehouse warehouse, BigDecimal paidAmount) {
+        if (paidAmount == null)
+            throw new CustomException("Received cash amount is required", "MISSING_CASH_RECEIVED");
+
+        BigDecimal totalCost = receipt.getTotalCost();
+        if (paidAmount.compareTo(totalCost) < 0)
+            throw new CustomException("Received amount is less than the total payable", "INSUFFICIENT_CASH");
+
+        Map<ProductWarehouse, Integer> newAmounts = warehouseService.planSaleFromSnapshot(warehouse, receipt);
+        receipt.setPaidAmount(paidAmount);
+        receipt.setChangeGiven(paidAmount.subtract(totalCost));
+
+        receipt.setStatus(ReceiptStatus.COMPLETED);
+        // the snapshot only changes once the sale is safely in the journal
+        SalesJournal.getInstance().append(JournaledSale.from(
+                receipt, warehouse.getId(), "Sale completed for receipt: " + receipt.getCode()));
+        warehouseService.takeSaleFromSnapshot(newAmounts);
+        JournalDrainer.getInstance().wake();
+        ReceiptCache.getInstance().put(receipt);
+        log.info("Receipt " + receipt.getCode() + " journaled with " + receipt.getItems().size() + " lines");
+    }
+
+    /**
+     * Opens a till that sells from the given warehouse snapshot.
+     *
+     * @param cashier The cashier working the till
+     * @param cashBox The open cash box
+     * @param warehouse The warehouse snapshot of this till; not shared with other lanes
+     * @return the lane
+     */
+    public Lane openLane(User cashier, CashBox cashBox, Warehouse warehouse) {
+        return new Lane(cashier, cashBox, warehouse);
+    }
+
+    /**
+     * One till: a basket whose stock is held while the customer shops, and the
+     * cashier, cash box and warehouse its sales go to. A lane is used by one
+     * thread at a time; different lanes can run in parallel.
+     */
+    public final class Lane {
+        private final User cashier;
+        private final CashBox cashBox;
+        private final Warehouse warehouse;
+        private final Basket basket = newBasket();
+        private final String holder = reservations.newHolder();
+
+        private Lane(User cashier, CashBox cashBox, Warehouse warehouse) {
+            this.cashier = cashier;
+            this.cashBox = cashBox;
+            this.warehouse = warehouse;
+        }
+
+        /**
+         * Holds the stock of a product and puts it in the basket.
+         *
+         * @throws CustomException if other baskets hold the stock
+         */
+        public void add(ProductWarehouse productWarehouse, double quantity) {
+            reservations.reserve(holder, productWarehouse, quantity);
+            basket.put(productWarehouse, quantity);
+        }
+
+        public void remove(ProductWarehouse productWarehouse) {
+            reservations.release(holder, productWarehouse);
+            basket.remove(productWarehouse);
+        }
+
+        /**
+         * Empties the basket and gives its stock back.
+         */
+        public void cancel() {
+            reservations.releaseAll(holder);
+            basket.clear();
+        }
+
+        /**
+         * Pays for the basket and starts a new one.
+         *
+         * @param method How the customer pays
+         * @param paidAmount The amount the customer paid
+         * @return the completed receipt
+         */
+        public Receipt checkout(PaymentMethod method, BigDecimal paidAmount) {
+            if (basket.isEmpty())
+                throw new CustomException("Please add items first.", "GENERAL");
+            Receipt receipt = createReceipt(basket, nextReceiptCode(), method, cashier, cashBox);
+            complete(receipt, warehouse, paidAmount);
+            reservations.commit(holder);
+            basket.clear();
+            return receipt;
+        }
+
+        public Basket getBasket() {
+            return basket;
+        }
+
+        public Warehouse getWarehouse() {
+            return warehouse;
+        }
+    }
+}
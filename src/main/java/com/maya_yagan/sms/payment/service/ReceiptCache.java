@@ -0,0 +1,152 @@
+package com.maya_yagan.sms.payment.service;
+
+import com.maya_yagan.sms.payment.model.Receipt;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the most recent receipts in memory, so refunds and reprints do not have
+ * to query the database. Receipts are added at checkout and when they are
+ * loaded, and can be found by their code or by the data in their barcode.
+ * A cached receipt may be refunded at another till, so its status is read
+ * again before it is refunded and the receipt is dropped once it is.
+ * The cache holds at most {@link #MAX_RECEIPTS} receipts, drops the least
+ * recently used one when full and drops receipts older than {@link #TTL_HOURS}
+ * hours.
+ *
+ * @author Maya Yagan
+ */
+public class ReceiptCache {
+    private static final Log log = LogFactory.getLog(ReceiptCache.class);
+    private static final int MAX_RECEIPTS = 1000;
+    private static final long TTL_HOURS = 12;
+    private static final int LOG_EVERY = 100;
+    private static final ReceiptCache instance = new ReceiptCache();
+
+    private final Map<String, Entry> byCode = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, String> codeByBarcode = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private ReceiptCache() {}
+
+    public static ReceiptCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds a receipt, replacing the cached one with the same code.
+     *
+     * @param receipt The receipt to cache
+     */
+    public synchronized void put(Receipt receipt) {
+        if (receipt == null || receipt.getCode() == null) return;
+        byCode.put(receipt.getCode(), new Entry(receipt, System.currentTimeMillis()));
+        codeByBarcode.put(barcodeOf(receipt.getCode()), receipt.getCode());
+        evict();
+    }
+
+    /**
+     * Finds a receipt by its code or by its barcode data.
+     *
+     * @param key The receipt code or the scanned barcode
+     * @return the cached receipt, or null if it is not cached
+     */
+    public synchronized Receipt get(String key) {
+        Receipt receipt = lookup(key);
+        if (receipt == null) misses.increment();
+        else hits.increment();
+        long lookups = hits.sum() + misses.sum();
+        if (lookups % LOG_EVERY == 0) log.info(this);
+        return receipt;
+    }
+
+    /**
+     * Drops a receipt, e.g. after it was refunded.
+     *
+     * @param code The receipt code
+     */
+    public synchronized void invalidate(String code) {
+        if (code != null) remove(code);
+    }
+
+    public synchronized void clear() {
+        byCode.clear();
+        codeByBarcode.clear();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public synchronized int size() {
+        return byCode.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Receipt cache: %d receipts, %d hits, %d misses (%.1f%% hit rate)",
+                size(), getHits(), getMisses(), getHitRate() * 100);
+    }
+
+    /**
+     * Same transformation as {@link PaymentService#generateSimpleBarcodeData(String)}.
+     */
+    static String barcodeOf(String code) {
+        return code.replaceAll("[^A-Za-z0-9]", "");
+    }
+
+    private Receipt lookup(String key) {
+        if (key == null) return null;
+        Entry entry = byCode.get(key);
+        if (entry == null) {
+            String code = codeByBarcode.get(key);
+            if (code != null) entry = byCode.get(code);
+        }
+        if (entry == null) return null;
+        if (expired(entry, System.currentTimeMillis())) {
+            remove(entry.receipt.getCode());
+            return null;
+        }
+        return entry.receipt;
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> it = byCode.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (byCode.size() <= MAX_RECEIPTS && !expired(eldest.getValue(), now)) break;
+            codeByBarcode.remove(barcodeOf(eldest.getKey()));
+            it.remove();
+        }
+    }
+
+    private void remove(String code) {
+        byCode.remove(code);
+        codeByBarcode.remove(barcodeOf(code));
+    }
+
+    private static boolean expired(Entry entry, long now) {
+        return now - entry.cachedAt > TimeUnit.HOURS.toMillis(TTL_HOURS);
+    }
+
+    private record Entry(Receipt receipt, long cachedAt) {}
+}
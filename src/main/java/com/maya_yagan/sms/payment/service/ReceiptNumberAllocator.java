@@ -0,0 +1,39 @@
+package com.maya_yagan.sms.payment.service;
+
+import com.maya_yagan.sms.payment.dao.ReceiptSequenceDAO;
+
+/**
+ * Hands out receipt numbers from blocks reserved in the database.
+ * Each block costs one round trip; the numbers in it are then used up locally,
+ * so most receipts need no database call at all. Numbers left in a block when
+ * the application stops are skipped, which leaves gaps but never duplicates.
+ *
+ * @author Maya Yagan
+ */
+public class ReceiptNumberAllocator {
+    private static final String SEQUENCE = "receipt";
+    private static final int BLOCK_SIZE = 100;
+
+    private static final ReceiptNumberAllocator instance = new ReceiptNumberAllocator();
+
+    private final ReceiptSequenceDAO sequenceDAO = new ReceiptSequenceDAO();
+    private long next;
+    private long limit;
+
+    private ReceiptNumberAllocator() {}
+
+    public static ReceiptNumberAllocator getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the next receipt number, unique across all lanes
+     */
+    public synchronized long next() {
+        if (next >= limit) {
+            next = sequenceDAO.reserveBlock(SEQUENCE, BLOCK_SIZE);
+            limit = next + BLOCK_SIZE;
+        }
+        return next++;
+    }
+}
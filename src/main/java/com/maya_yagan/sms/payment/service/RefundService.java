@@ -1,77 +1,126 @@
 package com.maya_yagan.sms.payment.service;
 
-import com.maya_yagan.sms.finance.service.CashBoxService;
+import com.maya_yagan.sms.common.UserSession;
 import com.maya_yagan.sms.payment.dao.ReceiptDAO;
+import com.maya_yagan.sms.payment.dao.RefundDAO;
+import com.maya_yagan.sms.payment.model.CompactBasket;
 import com.maya_yagan.sms.payment.model.Receipt;
 import com.maya_yagan.sms.payment.model.ReceiptItem;
 import com.maya_yagan.sms.payment.model.ReceiptStatus;
-import com.maya_yagan.sms.finance.model.TransactionType;
-import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.payment.pricing.Money;
+import com.maya_yagan.sms.payment.pricing.Quantity;
+import com.maya_yagan.sms.payment.pricing.Rate;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
 import com.maya_yagan.sms.warehouse.service.WarehouseService;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class RefundService {
     private final ReceiptDAO receiptDAO = new ReceiptDAO();
     private final WarehouseService warehouseService = new WarehouseService();
-    private final CashBoxService cashBoxService = new CashBoxService();
+    private final RefundDAO refundDAO = new RefundDAO();
 
+    private final ReceiptCache receiptCache = ReceiptCache.getInstance();
+
+    /**
+     * Finds a receipt by its code or by its scanned barcode, looking in the cache
+     * of recent receipts before the database. The status of a cached receipt is
+     * read again, since another till may have refunded it meanwhile.
+     *
+     * @param code The receipt code or barcode data
+     * @return the receipt, or null if there is none
+     */
     public Receipt getReceiptByCode(String code){
-        return receiptDAO.getReceiptByCode(code);
+        if (code == null) return null;
+        code = code.trim();
+        Receipt receipt = receiptCache.get(code);
+        if (receipt != null) {
+            // null while the sale is still in the journal
+            ReceiptStatus status = receiptDAO.getReceiptStatus(receipt.getCode());
+            if (status != null) receipt.setStatus(status);
+            return receipt;
+        }
+
+        receipt = receiptDAO.getReceiptByCode(code);
+        if (receipt == null && code.matches("[A-Za-z]{2}\\d+"))
+            receipt = receiptDAO.getReceiptByCode(code.substring(0, 2) + "-" + code.substring(2));
+        receiptCache.put(receipt);
+        return receipt;
+    }
+
+    /**
+     * @param basket The receipt items being returned, by product id
+     * @return the amount to give back, tax included
+     */
+    public BigDecimal calculateRefundTotal(CompactBasket<ReceiptItem> basket) {
+        Rate.Accumulator total = new Rate.Accumulator(5);
+        for (ReceiptItem item : basket.values()) {
+            if (item.getUnitPrice().scale() > 2 || hasPromotion(item))
+                return calculateRefundTotalExact(basket);
+            Quantity quantity = Quantity.ofMilli(basket.getQuantityMilli(item.getProduct().getId()));
+            long gross = Money.of(item.getUnitPrice()).times(quantity);
+            total.add(gross, Rate.of(1 + item.getProduct().getTaxPercentage()));
+        }
+        if (!total.canRound(RoundingMode.HALF_UP))
+            return calculateRefundTotalExact(basket);
+        return Money.ofCents(total.toCents(RoundingMode.HALF_UP)).toBigDecimal();
     }
 
-    public BigDecimal calculateRefundTotal(Map<ReceiptItem, Double> basket) {
-        return basket.entrySet().stream()
-                .map(e -> {
-                    ReceiptItem item = e.getKey();
-                    double quantity = e.getValue();
+    private BigDecimal calculateRefundTotalExact(CompactBasket<ReceiptItem> basket) {
+        return basket.values().stream()
+                .map(item -> {
+                    BigDecimal quantity = BigDecimal.valueOf(basket.getQuantityMilli(item.getProduct().getId()), 3);
 
                     BigDecimal unitPrice = item.getUnitPrice();
                     float taxPercentage = item.getProduct().getTaxPercentage();
                     BigDecimal taxMultiplier = BigDecimal.valueOf(1 + taxPercentage);
 
-                    return unitPrice
-                            .multiply(taxMultiplier)
-                            .multiply(BigDecimal.valueOf(quantity));
+                    BigDecimal gross = unitPrice.multiply(quantity);
+                    if (hasPromotion(item))
+                        // the promotion is given back in proportion to the quantity returned
+                        gross = gross.subtract(item.getPromotionDiscount()
+                                .multiply(quantity)
+                                .divide(BigDecimal.valueOf(item.getQuantity()), 10, RoundingMode.HALF_UP));
+                    return gross.multiply(taxMultiplier);
                 })
                 .reduce(BigDecimal.ZERO, BigDecimal::add)
                 .setScale(2, RoundingMode.HALF_UP);
     }
 
+    private static boolean hasPromotion(ReceiptItem item) {
+        return item.getPromotionDiscount() != null && item.getPromotionDiscount().signum() != 0
+                && item.getQuantity() != null && item.getQuantity() > 0;
+    }
+
     public void completeRefund(Receipt             receipt,
                                Warehouse           warehouse,
-                               Map<ReceiptItem,Double> basket,
+                               CompactBasket<ReceiptItem> basket,
                                BigDecimal          refundAmount) {
 
-        boolean ok = cashBoxService.recordTransaction(
-                refundAmount, TransactionType.REFUND, "Refund for receipt: " + receipt.getCode());
-        if (!ok) {
-            throw new CustomException(
-                    "Cannot record expense. No open cash box.",
-                    "NO_OPEN_CASH_BOX");
-        }
-
-        for (var entry : basket.entrySet()) {
-            ReceiptItem item = entry.getKey();
-            int         qty  = entry.getValue().intValue();
+        Map<Integer, Integer> quantities = new LinkedHashMap<>();
+        basket.forEach((productId, item, quantityMilli) -> {
+            int qty = (int) (quantityMilli / 1000);
+            if (qty > 0) quantities.put(productId, qty);
+        });
 
-            warehouseService.findProductWarehouseByName(warehouse, item.getProduct().getName())
-                    .ifPresentOrElse(
-                            pw -> {
-                                int newQty = pw.getAmount() + qty;
-                                warehouseService.updateProductStock(warehouse, pw, newQty);
-                            },
-                            () -> warehouseService.addProductToWarehouse(warehouse,
-                                    item.getProduct(),
-                                    qty)
-                    );
+        List<ProductWarehouse> restocked;
+        try {
+            restocked = refundDAO.commitRefund(
+                    receipt.getCode(), warehouse.getId(), quantities, refundAmount,
+                    "Refund for receipt: " + receipt.getCode(),
+                    UserSession.getInstance().getCurrentUser());
+        } finally {
+            // refunded now, or refunded elsewhere already; either way the cached copy is stale
+            receiptCache.invalidate(receipt.getCode());
         }
+        warehouseService.syncStock(warehouse, restocked);
 
         receipt.setStatus(ReceiptStatus.REFUNDED);
         receipt.setChangeGiven(refundAmount.negate());
-        receiptDAO.markAsRefunded(receipt.getId(), refundAmount.negate());
     }
 }
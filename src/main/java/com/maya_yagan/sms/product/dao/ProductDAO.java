@@ -1,9 +1,14 @@
 package com.maya_yagan.sms.product.dao;
 
+import com.maya_yagan.sms.payment.pricing.PriceTable;
 import com.maya_yagan.sms.product.model.Category;
 import com.maya_yagan.sms.product.model.Product;
 import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.warehouse.dao.StockLedgerDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLotDAO;
+import com.maya_yagan.sms.warehouse.service.BarcodeIndex;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
@@ -17,6 +22,9 @@ import org.hibernate.query.Query;
  * @author Maya Yagan
  */
 public class ProductDAO {
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+
     /**
      * Inserts a new product into the database.
      *
@@ -89,12 +97,14 @@ public class ProductDAO {
      * Updates an existing product in the database.
      *
      * @param product The product with updated data
+     * @return true if the product was updated, false otherwise
      */
-    public void updateProduct(Product product){
+    public boolean updateProduct(Product product){
         Transaction transaction = null;
         try (Session session = HibernateUtil.getSessionFactory().openSession()){
             transaction = session.beginTransaction();
             Product p = session.get(Product.class, product.getId());
+            boolean barcodeChanged = !Objects.equals(p.getBarcode(), product.getBarcode());
             p.setName(product.getName());
             p.setPrice(product.getPrice());
             p.setDiscount(product.getDiscount());
@@ -107,9 +117,13 @@ public class ProductDAO {
             p.setTaxPercentage(product.getTaxPercentage());
             session.update(p);
             transaction.commit();
+            PriceTable.getInstance().invalidate(product.getId());
+            if (barcodeChanged) BarcodeIndex.getInstance().invalidateAll();
+            return true;
         } catch (Exception e){
             if(transaction != null) transaction.rollback();
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -117,17 +131,25 @@ public class ProductDAO {
      * Deletes a product from the database using its unique identifier.
      *
      * @param id The unique identifier of the product to be deleted
+     * @return true if the product was deleted, false otherwise
      */
-    public void deleteProduct(int id){
+    public boolean deleteProduct(int id){
         Transaction transaction = null;
         try (Session session = HibernateUtil.getSessionFactory().openSession()){
             transaction = session.beginTransaction();
             Product product = session.get(Product.class, id);
-            if(product != null) session.delete(product);
+            if(product != null) {
+                stockLedgerDAO.recordProductRemoval(session, id);
+                stockLotDAO.removeProduct(session, id);
+                session.delete(product);
+            }
             transaction.commit();
+            PriceTable.getInstance().invalidate(id);
+            return true;
         } catch (Exception e){
             if(transaction != null) transaction.rollback();
             e.printStackTrace();
+            return false;
         }
     }
 
@@ -0,0 +1,239 @@
+package com.maya_yagan.sms.product.service;
+
+import com.maya_yagan.sms.product.dao.ProductDAO;
+import com.maya_yagan.sms.product.model.Product;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory index of product names for the checkout name search.
+ * Names are case- and accent-folded ("Süt" and "sut" are the same key). Full
+ * names and single words sit in sorted maps, so prefix matches are a range scan.
+ * Typos are handled with a trigram index: only names that share enough
+ * trigrams with the query are compared by edit distance.
+ * The catalogue is loaded once on first use; after that ProductService keeps
+ * the index current as products are added, renamed or deleted.
+ *
+ * @author Maya Yagan
+ */
+public class ProductNameIndex {
+    private static final ProductNameIndex instance = new ProductNameIndex();
+
+    private final Map<Integer, Entry> byId = new HashMap<>();
+    private final TreeMap<String, Set<Integer>> byName = new TreeMap<>();
+    private final TreeMap<String, Set<Integer>> byWord = new TreeMap<>();
+    private final Map<String, Set<Integer>> byTrigram = new HashMap<>();
+    private boolean loaded;
+
+    private ProductNameIndex() {}
+
+    public static ProductNameIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds a product, or updates it if its name changed.
+     *
+     * @param product The product to index
+     */
+    public synchronized void put(Product product) {
+        if (!loaded || product == null || product.getName() == null) return;
+        remove(product.getId());
+        Entry entry = new Entry(product, fold(product.getName()));
+        byId.put(product.getId(), entry);
+        add(byName, entry.key, product.getId());
+        for (String word : entry.words) add(byWord, word, product.getId());
+        for (String gram : trigrams(entry.key, true)) add(byTrigram, gram, product.getId());
+    }
+
+    /**
+     * @param productId The id of the deleted product
+     */
+    public synchronized void remove(int productId) {
+        Entry entry = byId.remove(productId);
+        if (entry == null) return;
+        delete(byName, entry.key, productId);
+        for (String word : entry.words) delete(byWord, word, productId);
+        for (String gram : trigrams(entry.key, true)) delete(byTrigram, gram, productId);
+    }
+
+    /**
+     * Drops the index so it is reloaded from the database on the next search.
+     */
+    public synchronized void invalidate() {
+        byId.clear();
+        byName.clear();
+        byWord.clear();
+        byTrigram.clear();
+        loaded = false;
+    }
+
+    /**
+     * @return the names of all products, sorted
+     */
+    public synchronized List<String> names() {
+        load();
+        return byId.values().stream()
+                .map(entry -> entry.product.getName())
+                .sorted(String.CASE_INSENSITIVE_ORDER)
+                .toList();
+    }
+
+    /**
+     * @param name The name, in any case
+     * @return the product with exactly this name, if any
+     */
+    public synchronized Optional<Product> find(String name) {
+        load();
+        Set<Integer> ids = byName.get(fold(name));
+        return ids == null || ids.isEmpty()
+                ? Optional.empty()
+                : Optional.of(byId.get(ids.iterator().next()).product);
+    }
+
+    /**
+     * Finds products whose name matches the text, best match first: the exact
+     * name, then names starting with the text, then names with a word starting
+     * with it, then names within one or two typos of it.
+     *
+     * @param text The text typed by the cashier
+     * @param limit The maximum number of results
+     * @return the matching products
+     */
+    public synchronized List<Product> search(String text, int limit) {
+        load();
+        String query = fold(text);
+        if (query.isEmpty() || limit <= 0) return List.of();
+
+        Map<Integer, Integer> ranks = new HashMap<>();
+        Set<Integer> exact = byName.get(query);
+        if (exact != null) exact.forEach(id -> ranks.put(id, 0));
+        prefixMatches(byName, query, ranks, 1, limit);
+        prefixMatches(byWord, query, ranks, 2, limit);
+        if (ranks.size() < limit) typoMatches(query, ranks);
+
+        return ranks.entrySet().stream()
+                .sorted(Comparator.<Map.Entry<Integer, Integer>>comparingInt(Map.Entry::getValue)
+                        .thenComparingInt(e -> byId.get(e.getKey()).key.length())
+                        .thenComparing(e -> byId.get(e.getKey()).key))
+                .limit(limit)
+                .map(e -> byId.get(e.getKey()).product)
+                .toList();
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        for (Product product : new ProductDAO().getProducts()) put(product);
+    }
+
+    private static void prefixMatches(TreeMap<String, Set<Integer>> map, String prefix,
+                                      Map<Integer, Integer> ranks, int rank, int limit) {
+        for (Set<Integer> ids : map.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            for (int id : ids) ranks.putIfAbsent(id, rank);
+            if (ranks.size() >= limit) return;
+        }
+    }
+
+    /**
+     * One edit changes at most three trigrams, so a name within {@code maxEdits}
+     * of the query shares at least {@code grams - 3 * maxEdits} of its trigrams.
+     */
+    private void typoMatches(String query, Map<Integer, Integer> ranks) {
+        int maxEdits = query.length() < 4 ? 0 : query.length() < 8 ? 1 : 2;
+        if (maxEdits == 0) return;
+        List<String> grams = trigrams(query, false);
+        int needed = Math.max(1, grams.size() - 3 * maxEdits);
+
+        Map<Integer, Integer> shared = new HashMap<>();
+        for (String gram : grams) {
+            Set<Integer> ids = byTrigram.get(gram);
+            if (ids != null) for (int id : ids) shared.merge(id, 1, Integer::sum);
+        }
+        for (var candidate : shared.entrySet()) {
+            if (candidate.getValue() < needed || ranks.containsKey(candidate.getKey())) continue;
+            Entry entry = byId.get(candidate.getKey());
+            int distance = distance(query, entry.key.substring(0, Math.min(entry.key.length(), query.length())), maxEdits);
+            distance = Math.min(distance, distance(query, entry.key, maxEdits));
+            for (String word : entry.words)
+                distance = Math.min(distance, distance(query, word, maxEdits));
+            if (distance <= maxEdits) ranks.put(candidate.getKey(), 3 + distance);
+        }
+    }
+
+    /**
+     * Levenshtein distance that gives up once it exceeds {@code max}.
+     */
+    private static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) return max + 1;
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) return max + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * @param closed Whether the text is a whole name, so its end is marked too
+     */
+    private static List<String> trigrams(String text, boolean closed) {
+        String padded = "$" + text + (closed ? "$" : "");
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) grams.add(padded.substring(i, i + 3));
+        return grams;
+    }
+
+    static String fold(String text) {
+        if (text == null) return "";
+        String lower = text.trim().toLowerCase(Locale.ROOT).replace('ı', 'i');
+        return Normalizer.normalize(lower, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "")
+                .replaceAll("\\s+", " ");
+    }
+
+    private static void add(Map<String, Set<Integer>> map, String key, int id) {
+        map.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+    }
+
+    private static void delete(Map<String, Set<Integer>> map, String key, int id) {
+        Set<Integer> ids = map.get(key);
+        if (ids == null) return;
+        ids.remove(id);
+        if (ids.isEmpty()) map.remove(key);
+    }
+
+    private static final class Entry {
+        private final Product product;
+        private final String key;
+        private final Set<String> words;
+
+        private Entry(Product product, String key) {
+            this.product = product;
+            this.key = key;
+            this.words = new LinkedHashSet<>(List.of(key.split(" ")));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.maya_yagan.sms.product.service;
 
+import com.maya_yagan.sms.payment.pricing.PriceTable;
 import com.maya_yagan.sms.product.dao.CategoryDAO;
 import com.maya_yagan.sms.product.dao.ProductDAO;
 import com.maya_yagan.sms.product.model.Category;
@@ -18,6 +19,7 @@ public class ProductService {
     private final ProductDAO productDAO = new ProductDAO();
     private final CategoryDAO categoryDAO = new CategoryDAO();
     private final ValidationService validationService = new ValidationService();
+    private final ProductNameIndex nameIndex = ProductNameIndex.getInstance();
 
 
     public Set<Product> getAllProducts(){
@@ -37,7 +39,7 @@ public class ProductService {
     }
 
     public void updateProduct(Product product){
-        productDAO.updateProduct(product);
+        if (productDAO.updateProduct(product)) nameIndex.put(product);
     }
 
     public void updateCategory(Category category){
@@ -49,7 +51,7 @@ public class ProductService {
     }
 
     public void deleteProduct(int id){
-        productDAO.deleteProduct(id);
+        if (productDAO.deleteProduct(id)) nameIndex.remove(id);
     }
 
     public void deleteCategory(int id){
@@ -81,7 +83,9 @@ public class ProductService {
         float taxPercentage = validationService.parseAndValidateFloat(tax, "Tax");
         product.setTaxPercentage(taxPercentage);
         validationService.validateProduct(product);
-        return productDAO.insertProduct(product);
+        boolean inserted = productDAO.insertProduct(product);
+        if (inserted) nameIndex.put(product);
+        return inserted;
     }
 
     public boolean addCategory(String name){
@@ -118,21 +122,26 @@ public class ProductService {
     }
 
     public List<String> getProductNames(){
-        var products = getAllProducts();
-        return products.stream().map(Product::getName).toList();
+        return nameIndex.names();
+    }
+
+    /**
+     * Finds products by name, tolerating partial names and typos.
+     *
+     * @param text The typed text
+     * @param limit The maximum number of results
+     * @return the matching products, best match first
+     */
+    public List<Product> searchProductsByName(String text, int limit){
+        return nameIndex.search(text, limit);
     }
 
     public float calculateDiscountedPrice(Product product){
-        float price = product.getPrice();
-        float discountPercent = product.getDiscount();
-        return price * (1 - discountPercent / 100f);
+        return PriceTable.getInstance().unitPriceDecimal(product).floatValue();
     }
 
     public Optional<Product> findProductByName(String name){
-        return getAllProducts()
-                .stream()
-                .filter(p -> p.getName().equalsIgnoreCase(name))
-                .findFirst();
+        return nameIndex.find(name);
     }
 
     public Optional<Product> findProductByBarcode(String barcode){
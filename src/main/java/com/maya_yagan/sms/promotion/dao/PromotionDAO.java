@@ -0,0 +1,37 @@
+package com.maya_yagan.sms.promotion.dao;
+
+import com.maya_yagan.sms.promotion.model.Promotion;
+import com.maya_yagan.sms.util.HibernateUtil;
+import org.hibernate.Session;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Data Access Object (DAO) for promotions.
+ * Promotions are set up and switched off in the database; the application only
+ * reads them, through {@link com.maya_yagan.sms.promotion.service.PromotionCatalog}.
+ *
+ * @author Maya Yagan
+ */
+public class PromotionDAO {
+
+    /**
+     * Retrieves the promotions that are switched on and not expired on a day.
+     *
+     * @param day The day to check
+     * @return the promotions that can apply on that day
+     * @throws RuntimeException if the database cannot be read
+     */
+    public List<Promotion> getActivePromotions(LocalDate day) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return session.createQuery(
+                            "SELECT DISTINCT p FROM Promotion p LEFT JOIN FETCH p.productIds " +
+                                    "WHERE p.active = true " +
+                                    "AND (p.validFrom IS NULL OR p.validFrom <= :day) " +
+                                    "AND (p.validTo IS NULL OR p.validTo >= :day)", Promotion.class)
+                    .setParameter("day", day)
+                    .getResultList();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.maya_yagan.sms.promotion.model;
+
+import javax.persistence.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A promotion on one or more products.
+ * Which fields are used depends on the type: buy and pay quantities for
+ * {@link PromotionType#MULTI_BUY}, the bundle price for {@link PromotionType#BUNDLE}
+ * and the percentage and daily hours for {@link PromotionType#TIME_WINDOW}.
+ * Every type can be limited to a range of days.
+ *
+ * @author Maya Yagan
+ */
+@Entity
+@Table(name = "Promotion")
+public class Promotion {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Integer id;
+
+    @Column(name = "name", nullable = false, length = 60)
+    private String name;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "type", nullable = false, length = 12)
+    private PromotionType type;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "Promotion_Product", joinColumns = @JoinColumn(name = "promotion_id"))
+    @Column(name = "product_id")
+    private Set<Integer> productIds = new LinkedHashSet<>();
+
+    @Column(name = "buyQuantity")
+    private int buyQuantity;
+
+    @Column(name = "payQuantity")
+    private int payQuantity;
+
+    @Column(name = "bundlePrice", precision = 12, scale = 2)
+    private BigDecimal bundlePrice;
+
+    @Column(name = "percentOff")
+    private float percentOff;
+
+    @Column(name = "startTime")
+    private LocalTime startTime;
+
+    @Column(name = "endTime")
+    private LocalTime endTime;
+
+    @Column(name = "validFrom")
+    private LocalDate validFrom;
+
+    @Column(name = "validTo")
+    private LocalDate validTo;
+
+    @Column(name = "active", nullable = false)
+    private boolean active = true;
+
+    public Promotion(){}
+
+    public Promotion(String name, PromotionType type, Set<Integer> productIds) {
+        this.name = name;
+        this.type = type;
+        this.productIds = new LinkedHashSet<>(productIds);
+    }
+
+    /**
+     * @param now The moment of the sale
+     * @return whether the promotion applies at that moment
+     */
+    public boolean isRunning(LocalDateTime now) {
+        if (!active) return false;
+        LocalDate day = now.toLocalDate();
+        if (validFrom != null && day.isBefore(validFrom)) return false;
+        if (validTo != null && day.isAfter(validTo)) return false;
+        if (type != PromotionType.TIME_WINDOW || startTime == null || endTime == null) return true;
+
+        LocalTime time = now.toLocalTime();
+        return startTime.isBefore(endTime)
+                ? !time.isBefore(startTime) && time.isBefore(endTime)
+                : !time.isBefore(startTime) || time.isBefore(endTime); // window past midnight
+    }
+
+    public int getId() {
+        return id == null ? 0 : id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public PromotionType getType() {
+        return type;
+    }
+
+    public void setType(PromotionType type) {
+        this.type = type;
+    }
+
+    public Set<Integer> getProductIds() {
+        return productIds;
+    }
+
+    public void setProductIds(Set<Integer> productIds) {
+        this.productIds = productIds;
+    }
+
+    public int getBuyQuantity() {
+        return buyQuantity;
+    }
+
+    public void setBuyQuantity(int buyQuantity) {
+        this.buyQuantity = buyQuantity;
+    }
+
+    public int getPayQuantity() {
+        return payQuantity;
+    }
+
+    public void setPayQuantity(int payQuantity) {
+        this.payQuantity = payQuantity;
+    }
+
+    public BigDecimal getBundlePrice() {
+        return bundlePrice;
+    }
+
+    public void setBundlePrice(BigDecimal bundlePrice) {
+        this.bundlePrice = bundlePrice;
+    }
+
+    public float getPercentOff() {
+        return percentOff;
+    }
+
+    public void setPercentOff(float percentOff) {
+        this.percentOff = percentOff;
+    }
+
+    public LocalTime getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(LocalTime startTime) {
+        this.startTime = startTime;
+    }
+
+    public LocalTime getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(LocalTime endTime) {
+        this.endTime = endTime;
+    }
+
+    public LocalDate getValidFrom() {
+        return validFrom;
+    }
+
+    public void setValidFrom(LocalDate validFrom) {
+        this.validFrom = validFrom;
+    }
+
+    public LocalDate getValidTo() {
+        return validTo;
+    }
+
+    public void setValidTo(LocalDate validTo) {
+        this.validTo = validTo;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null || getClass() != obj.getClass()) return false;
+        Promotion promotion = (Promotion) obj;
+        return id != null && Objects.equals(id, promotion.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id == null ? System.identityHashCode(this) : id.hashCode();
+    }
+}
@@ -0,0 +1,15 @@
+package com.maya_yagan.sms.promotion.model;
+
+/**
+ * Kinds of promotions that can run on top of a product's own discount.
+ *
+ * @author Maya Yagan
+ */
+public enum PromotionType {
+    /** Buy a number of units of a product and pay for fewer, e.g. 3 for 2. */
+    MULTI_BUY,
+    /** One unit of each product of the promotion for a fixed price. */
+    BUNDLE,
+    /** A percentage off the products of the promotion during set hours of the day. */
+    TIME_WINDOW
+}
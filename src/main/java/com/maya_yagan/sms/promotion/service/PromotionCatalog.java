@@ -0,0 +1,101 @@
+package com.maya_yagan.sms.promotion.service;
+
+import com.maya_yagan.sms.promotion.dao.PromotionDAO;
+import com.maya_yagan.sms.promotion.model.Promotion;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The promotions that can apply today, indexed by product id, so a scan only
+ * looks at the promotions of the scanned product. Promotions are managed in the
+ * database, so the index is read again every {@value #REFRESH_MINUTES} minutes
+ * to pick up changes. If the database cannot be read, the index loaded before
+ * stays in use and the read is retried after {@value #RETRY_SECONDS} seconds,
+ * so a passing failure does not switch the promotions off.
+ *
+ * @author Maya Yagan
+ */
+public class PromotionCatalog {
+    private static final Log log = LogFactory.getLog(PromotionCatalog.class);
+    private static final long REFRESH_MINUTES = 5;
+    private static final long RETRY_SECONDS = 30;
+    private static final PromotionCatalog instance =
+            new PromotionCatalog(() -> new PromotionDAO().getActivePromotions(LocalDate.now()));
+
+    private final Supplier<Collection<Promotion>> source;
+    private volatile Index index;
+    private volatile long retryAt;
+
+    private PromotionCatalog(Supplier<Collection<Promotion>> source) {
+        this.source = source;
+    }
+
+    public static PromotionCatalog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates a catalog of the given promotions that never reads the database.
+     *
+     * @param promotions The promotions
+     * @return the catalog
+     */
+    public static PromotionCatalog of(Collection<Promotion> promotions) {
+        List<Promotion> copy = List.copyOf(promotions);
+        return new PromotionCatalog(() -> copy);
+    }
+
+    /**
+     * @param productId The product
+     * @return the promotions the product takes part in
+     */
+    public List<Promotion> forProduct(int productId) {
+        return index().byProduct.getOrDefault(productId, List.of());
+    }
+
+    public int size() {
+        return index().size;
+    }
+
+    private Index index() {
+        Index current = index;
+        long now = System.currentTimeMillis();
+        if (current != null && current.isFresh(now)) return current;
+        if (now < retryAt) return current != null ? current : Index.EMPTY;
+
+        try {
+            current = Index.of(source.get(), now);
+            index = current;
+        } catch (RuntimeException e) {
+            log.warn("Could not read the promotions, retrying in " + RETRY_SECONDS + " seconds", e);
+            retryAt = now + TimeUnit.SECONDS.toMillis(RETRY_SECONDS);
+            if (current == null) current = Index.EMPTY;
+        }
+        return current;
+    }
+
+    private record Index(LocalDate day, long loadedAt, Map<Integer, List<Promotion>> byProduct, int size) {
+        static final Index EMPTY = new Index(LocalDate.MIN, 0, Map.of(), 0);
+
+        static Index of(Collection<Promotion> promotions, long now) {
+            Map<Integer, List<Promotion>> byProduct = new HashMap<>();
+            for (Promotion promotion : promotions)
+                for (int productId : promotion.getProductIds())
+                    byProduct.computeIfAbsent(productId, id -> new ArrayList<>(2)).add(promotion);
+            return new Index(LocalDate.now(), now, byProduct, promotions.size());
+        }
+
+        boolean isFresh(long now) {
+            return day.equals(LocalDate.now()) && now - loadedAt < TimeUnit.MINUTES.toMillis(REFRESH_MINUTES);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.maya_yagan.sms.promotion.service;
+
+import com.maya_yagan.sms.payment.model.Basket;
+import com.maya_yagan.sms.payment.pricing.Money;
+import com.maya_yagan.sms.promotion.model.Promotion;
+
+import java.math.RoundingMode;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps the promotions of one basket up to date as it changes.
+ * When a product is scanned or removed, only the promotions that product takes
+ * part in are evaluated again; the discount and tax reduction of every other
+ * promotion are kept as they were. Each promotion's discount is split over its
+ * products in cents, so it can be written on the receipt lines and its tax
+ * reduction uses each product's own rate. The tax of a product is reduced by
+ * at most the tax of its line, however many promotions it is in.
+ *
+ * <p>Promotions stack: a product in two promotions gets both.</p>
+ *
+ * @author Maya Yagan
+ */
+public class PromotionEvaluator {
+    private static final long BASIS_POINTS = 10_000;
+
+    private final PromotionCatalog catalog;
+    private final Clock clock;
+    private final Map<Promotion, Applied> applied = new LinkedHashMap<>();
+    private final Map<Integer, Long> discountByProduct = new HashMap<>();
+    private final Map<Integer, Long> taxByProduct = new HashMap<>();
+    private long discountCents;
+    private long taxCents;
+
+    public PromotionEvaluator(PromotionCatalog catalog) {
+        this(catalog, Clock.systemDefaultZone());
+    }
+
+    public PromotionEvaluator(PromotionCatalog catalog, Clock clock) {
+        this.catalog = catalog;
+        this.clock = clock;
+    }
+
+    /**
+     * Evaluates again the promotions of a product whose quantity changed.
+     *
+     * @param productId The product that was added, changed or removed
+     * @param lines Gives the basket line of a product id, or null if it is not in the basket
+     */
+    public void update(int productId, IntFunction<Basket.Line> lines) {
+        List<Promotion> promotions = catalog.forProduct(productId);
+        if (promotions.isEmpty()) return;
+        LocalDateTime now = LocalDateTime.now(clock);
+        Set<Integer> changed = new HashSet<>();
+        changed.add(productId);
+        for (Promotion promotion : promotions) {
+            Applied before = applied.remove(promotion);
+            if (before != null) {
+                apply(before, -1);
+                changed.addAll(before.shares.keySet());
+            }
+            Applied after = promotion.isRunning(now) ? evaluate(promotion, lines) : null;
+            if (after != null) {
+                applied.put(promotion, after);
+                apply(after, 1);
+                changed.addAll(after.shares.keySet());
+            }
+        }
+        for (int id : changed)
+            updateTax(id, lines);
+    }
+
+    public void clear() {
+        applied.clear();
+        discountByProduct.clear();
+        taxByProduct.clear();
+        discountCents = 0;
+        taxCents = 0;
+    }
+
+    /**
+     * @return the discount of all applied promotions, in cents
+     */
+    public long getDiscountCents() {
+        return discountCents;
+    }
+
+    /**
+     * @return how much less tax is due because of the promotions, in cents
+     */
+    public long getTaxCents() {
+        return taxCents;
+    }
+
+    /**
+     * @param productId A product in the basket
+     * @return the share of the promotion discount that falls on the product, in cents
+     */
+    public long getDiscountCents(int productId) {
+        return discountByProduct.getOrDefault(productId, 0L);
+    }
+
+    /**
+     * @param productId A product in the basket
+     * @return the promotions applied to the product
+     */
+    public List<Promotion> getPromotions(int productId) {
+        List<Promotion> result = new ArrayList<>(1);
+        for (Applied a : applied.values())
+            if (a.shares.containsKey(productId)) result.add(a.promotion);
+        return result;
+    }
+
+    private void apply(Applied a, int sign) {
+        discountCents += sign * a.discount;
+        for (var share : a.shares.entrySet())
+            discountByProduct.merge(share.getKey(), sign * share.getValue(), (x, y) -> x + y == 0 ? null : x + y);
+    }
+
+    /**
+     * Works out the tax reduction of a product again from its share of the
+     * discount, capped at its line subtotal like the basket discount is capped
+     * at the basket subtotal, so stacked promotions never make its tax negative.
+     */
+    private void updateTax(int productId, IntFunction<Basket.Line> lines) {
+        Long before = taxByProduct.remove(productId);
+        if (before != null) taxCents -= before;
+        Basket.Line line = lines.apply(productId);
+        long discount = getDiscountCents(productId);
+        if (line == null || discount == 0) return;
+
+        long subtotal = Money.ofFraction(line.getGrossMillicents(), 1000, RoundingMode.HALF_UP).getCents();
+        long tax = line.getTaxRate().applyToCents(Math.min(discount, subtotal), 2, RoundingMode.HALF_UP);
+        taxByProduct.put(productId, tax);
+        taxCents += tax;
+    }
+
+    private Applied evaluate(Promotion promotion, IntFunction<Basket.Line> lines) {
+        Map<Integer, Long> shares = switch (promotion.getType()) {
+            case MULTI_BUY -> multiBuy(promotion, lines);
+            case BUNDLE -> bundle(promotion, lines);
+            case TIME_WINDOW -> percentOff(promotion, lines);
+        };
+        if (shares.isEmpty()) return null;
+
+        long discount = 0;
+        for (long share : shares.values())
+            discount += share;
+        return new Applied(promotion, shares, discount);
+    }
+
+    /**
+     * Every group of buy units costs the price of pay units.
+     */
+    private static Map<Integer, Long> multiBuy(Promotion promotion, IntFunction<Basket.Line> lines) {
+        int buy = promotion.getBuyQuantity(), pay = promotion.getPayQuantity();
+        if (buy <= 0 || pay < 0 || pay >= buy) return Map.of();
+
+        Map<Integer, Long> shares = new HashMap<>(2);
+        for (int productId : promotion.getProductIds()) {
+            Basket.Line line = lines.apply(productId);
+            if (line == null) continue;
+            long units = line.getQuantityMilli() / 1000;
+            long free = units / buy * (buy - pay);
+            if (free > 0) shares.put(productId, free * line.getUnitPriceCents());
+        }
+        return shares;
+    }
+
+    /**
+     * Each complete set of one unit per product costs the bundle price. The saving
+     * is split over the products by their unit price.
+     */
+    private static Map<Integer, Long> bundle(Promotion promotion, IntFunction<Basket.Line> lines) {
+        if (promotion.getBundlePrice() == null || promotion.getProductIds().isEmpty()) return Map.of();
+
+        long sets = Long.MAX_VALUE, setPrice = 0;
+        for (int productId : promotion.getProductIds()) {
+            Basket.Line line = lines.apply(productId);
+            if (line == null) return Map.of();
+            sets = Math.min(sets, line.getQuantityMilli() / 1000);
+            setPrice += line.getUnitPriceCents();
+        }
+        long saving = setPrice - Money.of(promotion.getBundlePrice()).getCents();
+        if (sets == 0 || saving <= 0) return Map.of();
+
+        long discount = sets * saving, given = 0;
+        Map<Integer, Long> shares = new LinkedHashMap<>();
+        int remaining = promotion.getProductIds().size();
+        for (int productId : promotion.getProductIds()) {
+            long share = --remaining == 0
+                    ? discount - given
+                    : discount * lines.apply(productId).getUnitPriceCents() / setPrice;
+            given += share;
+            if (share > 0) shares.put(productId, share);
+        }
+        return shares;
+    }
+
+    /**
+     * A percentage off each product's line amount.
+     */
+    private static Map<Integer, Long> percentOff(Promotion promotion, IntFunction<Basket.Line> lines) {
+        long basisPoints = Money.basisPoints(promotion.getPercentOff());
+        if (basisPoints <= 0 || basisPoints > BASIS_POINTS) return Map.of();
+
+        Map<Integer, Long> shares = new HashMap<>(2);
+        for (int productId : promotion.getProductIds()) {
+            Basket.Line line = lines.apply(productId);
+            if (line == null) continue;
+            // gross is in 1/1000 cent
+            long share = Money.ofFraction(Math.multiplyExact(line.getGrossMillicents(), basisPoints),
+                    1000 * BASIS_POINTS, RoundingMode.HALF_UP).getCents();
+            if (share > 0) shares.put(productId, share);
+        }
+        return shares;
+    }
+
+    private record Applied(Promotion promotion, Map<Integer, Long> shares, long discount) {}
+}
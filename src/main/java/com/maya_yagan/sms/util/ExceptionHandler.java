@@ -57,6 +57,10 @@ public class ExceptionHandler {
                 alertTitle = "No Open Cash Box";
                 alertMessage = exception.getMessage();
                 break;
+            case "STOCK_CONFLICT":
+                alertTitle = "Stock Changed";
+                alertMessage = exception.getMessage();
+                break;
             case "GENERAL":
                 alertTitle = "Error";
                 alertMessage = exception.getMessage();
@@ -33,11 +33,16 @@ public class HibernateUtil {
                 config.addAnnotatedClass(com.maya_yagan.sms.homepage.model.Notification.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.payment.model.Receipt.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.payment.model.ReceiptItem.class);
+                config.addAnnotatedClass(com.maya_yagan.sms.payment.model.ReceiptSequence.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.finance.model.CashBox.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.finance.model.FinancialRecord.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.settings.model.Settings.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.user.model.Advance.class);
                 config.addAnnotatedClass(com.maya_yagan.sms.user.model.SalaryRecord.class);
+                config.addAnnotatedClass(com.maya_yagan.sms.promotion.model.Promotion.class);
+                config.addAnnotatedClass(com.maya_yagan.sms.warehouse.model.StockMovement.class);
+                config.addAnnotatedClass(com.maya_yagan.sms.warehouse.model.StockSnapshot.class);
+                config.addAnnotatedClass(com.maya_yagan.sms.warehouse.model.StockLot.class);
 
                 ServiceRegistry serviceRegistry = new StandardServiceRegistryBuilder()
                         .applySettings(config.getProperties()).build();
@@ -61,10 +66,13 @@ public class HibernateUtil {
         config.setProperty("hibernate.connection.username", ConfigManager.getDbUsername());
         config.setProperty("hibernate.connection.password", ConfigManager.getDbPassword());
 
-        config.setProperty("hibernate.dialect", "org.hibernate.dialect.SQLServerDialect");
+        config.setProperty("hibernate.dialect", ConfigManager.getDbDialect());
         config.setProperty("hibernate.hbm2ddl.auto", "update");
         config.setProperty("hibernate.c3p0.min_size", "5");
         config.setProperty("hibernate.c3p0.max_size", "20");
+        config.setProperty("hibernate.jdbc.batch_size", "50");
+        config.setProperty("hibernate.order_inserts", "true");
+        config.setProperty("hibernate.order_updates", "true");
         return config;
     }
 }
@@ -0,0 +1,58 @@
+package com.maya_yagan.sms.util;
+
+import org.hibernate.StaleStateException;
+
+import javax.persistence.OptimisticLockException;
+import java.util.function.Supplier;
+
+/**
+ * Reruns a unit of work when it loses an optimistic-lock race on a versioned row.
+ * The work must open its own session and reload what it changes, so every attempt
+ * starts from the current database state.
+ *
+ * @author Maya Yagan
+ */
+public final class OptimisticRetry {
+    public static final String CONFLICT_CODE = "STOCK_CONFLICT";
+    public static final int DEFAULT_ATTEMPTS = 5;
+
+    private OptimisticRetry() {}
+
+    public static <T> T run(Supplier<T> work) {
+        return run(DEFAULT_ATTEMPTS, work);
+    }
+
+    /**
+     * @param attempts How many times the work may run
+     * @param work The unit of work
+     * @return the result of the first attempt that did not conflict
+     * @throws CustomException with {@link #CONFLICT_CODE} if every attempt conflicted
+     */
+    public static <T> T run(int attempts, Supplier<T> work) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.get();
+            } catch (RuntimeException e) {
+                if (!isConflict(e)) throw e;
+                if (attempt >= attempts)
+                    throw new CustomException(
+                            "The stock was changed by another lane at the same time. Please try again.",
+                            CONFLICT_CODE);
+            }
+        }
+    }
+
+    /**
+     * Hibernate wraps version failures in a PersistenceException, so the whole
+     * cause chain is checked.
+     */
+    public static boolean isConflict(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof OptimisticLockException || t instanceof StaleStateException)
+                return true;
+            if (t instanceof CustomException c && CONFLICT_CODE.equals(c.getErrorCode()))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,296 @@
+package com.maya_yagan.sms.util;
+
+import com.google.zxing.oned.Code128Writer;
+import com.maya_yagan.sms.payment.model.PaymentMethod;
+import com.maya_yagan.sms.payment.model.Receipt;
+import com.maya_yagan.sms.payment.model.ReceiptItem;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.settings.model.Settings;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Renders a receipt to PDF straight from the Receipt model.
+ * Text is written with the standard PDF fonts and the barcode is drawn as
+ * vector bars, so nothing is snapshotted on the JavaFX thread and the file holds
+ * no images. Rendering runs on a single background thread, which also lets the
+ * fonts and the glyph fallback cache be shared between receipts.
+ *
+ * @author Maya Yagan
+ */
+public final class ReceiptPdfRenderer {
+    private static final Log log = LogFactory.getLog(ReceiptPdfRenderer.class);
+
+    private static final float PAGE_WIDTH = 280f;
+    private static final float MARGIN = 12f;
+    private static final float CONTENT_WIDTH = PAGE_WIDTH - 2 * MARGIN;
+    private static final float BARCODE_HEIGHT = 50f;
+    private static final PDFont FONT_BOLD = PDType1Font.HELVETICA_BOLD;
+    private static final PDFont FONT_REG = PDType1Font.HELVETICA;
+    private static final int TEXT_SIZE = 9;
+    private static final float LINE_HEIGHT = TEXT_SIZE + 3;
+
+    // right edges of the amount, unit price, total and tax columns
+    private static final float[] COLUMN_RIGHT = {148f, 188f, 236f, PAGE_WIDTH - MARGIN};
+    private static final float NAME_WIDTH = 92f;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "receipt-pdf");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<Character, String> replacements = new ConcurrentHashMap<>();
+
+    private ReceiptPdfRenderer() {}
+
+    /**
+     * Renders the receipt on the background thread.
+     *
+     * @param receipt The completed receipt
+     * @param settings Market name, address, phone and money unit
+     * @param barcodeData The data encoded in the receipt barcode
+     * @param file The PDF file to write
+     * @return a future completed with the file once it is written
+     */
+    public static CompletableFuture<File> renderAsync(Receipt receipt, Settings settings,
+                                                      String barcodeData, File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                render(receipt, settings, barcodeData, file);
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    public static void render(Receipt receipt, Settings settings,
+                              String barcodeData, File file) throws IOException {
+        long start = System.nanoTime();
+        String unit = settings.getMoneyUnit();
+        List<String[]> rows = itemRows(receipt);
+        String[] addressLines = settings.getAddress() == null ? new String[0] : settings.getAddress().split("\n");
+        BigDecimal promotions = receipt.getItems().stream()
+                .map(ReceiptItem::getPromotionDiscount)
+                .filter(Objects::nonNull)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        boolean hasPromotions = promotions.signum() != 0;
+
+        float height = MARGIN + 12 + 16 + LINE_HEIGHT * (addressLines.length + 4) + 10
+                + LINE_HEIGHT * (rows.size() + 1) + 10
+                + LINE_HEIGHT * (hasPromotions ? 8 : 7) + 10
+                + BARCODE_HEIGHT + MARGIN;
+
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage(new PDRectangle(PAGE_WIDTH, height));
+            doc.addPage(page);
+
+            float y = height - MARGIN - 12;
+            try (PDPageContentStream cs = new PDPageContentStream(doc, page)) {
+                // ---------- HEADER ----------
+                String marketName = safe(settings.getMarketName());
+                float nameWidth = FONT_BOLD.getStringWidth(marketName) / 1000 * 14;
+                text(cs, FONT_BOLD, 14, (PAGE_WIDTH - nameWidth) / 2, y, marketName);
+                y -= 16;
+                for (String line : addressLines) {
+                    text(cs, FONT_REG, TEXT_SIZE, MARGIN, y, line);
+                    y -= LINE_HEIGHT;
+                }
+                y = keyValue(cs, "Phone", settings.getPhone(), y);
+                y = keyValue(cs, "Date", DateUtil.formatDateTime(receipt.getDateTime()), y);
+                y = keyValue(cs, "Receipt No", receipt.getCode(), y);
+                y = keyValue(cs, "Cashier", receipt.getCashier().getFullName(), y);
+                y = separator(cs, y);
+
+                // ---------- ITEMS ----------
+                String[] header = {"Product", "Amount", "Unit Price", "Total", "Tax"};
+                row(cs, FONT_BOLD, header, y);
+                y -= LINE_HEIGHT;
+                for (String[] row : rows) {
+                    row(cs, FONT_REG, row, y);
+                    y -= LINE_HEIGHT;
+                }
+                y = separator(cs, y);
+
+                // ---------- TOTALS ----------
+                BigDecimal total = receipt.getTotalCost();
+                BigDecimal subtotal = receipt.getItems().stream()
+                        .map(ReceiptPdfRenderer::gross)
+                        .reduce(BigDecimal.ZERO, BigDecimal::add)
+                        .setScale(2, RoundingMode.HALF_UP);
+                y = keyValue(cs, "Sub-Total", money(subtotal, unit), y);
+                if (hasPromotions)
+                    y = keyValue(cs, "Promotions", money(promotions.negate(), unit), y);
+                y = keyValue(cs, "Tax", money(total.subtract(subtotal).add(promotions), unit), y);
+                text(cs, FONT_BOLD, TEXT_SIZE + 2, MARGIN, y, String.format("%-12s %s", "TOTAL:", money(total, unit)));
+                y -= LINE_HEIGHT;
+
+                // ---------- PAYMENT ----------
+                BigDecimal change = receipt.getPaymentMethod() == PaymentMethod.CARD
+                        ? receipt.getTotalCost()
+                        : receipt.getChangeGiven();
+                y = keyValue(cs, "Paid Amount", money(receipt.getPaidAmount(), unit), y);
+                y = keyValue(cs, "Change Given", money(change, unit), y);
+                y = keyValue(cs, "Payment Method", receipt.getPaymentMethod().name(), y);
+                y = keyValue(cs, "Receipt Status", receipt.getStatus().name(), y);
+                y = separator(cs, y);
+
+                // ---------- BARCODE ----------
+                barcode(cs, barcodeData, y - BARCODE_HEIGHT);
+            }
+            doc.save(file);
+        }
+        log.info(String.format("Receipt %s rendered in %.1f ms, %d bytes",
+                receipt.getCode(), (System.nanoTime() - start) / 1e6, file.length()));
+    }
+
+    /* ------------------------------------------------- helpers — keep private */
+
+    private static List<String[]> itemRows(Receipt receipt) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        for (ReceiptItem item : receipt.getItems()) {
+            Product product = item.getProduct();
+            List<String> name = wrap(safe(item.getProductName()), FONT_REG, TEXT_SIZE, NAME_WIDTH);
+            rows.add(new String[]{
+                    name.get(0),
+                    String.format("%.2f %s", item.getQuantity(), product.getUnit().getShortName()),
+                    String.format("%.2f", item.getUnitPrice()),
+                    String.format("%.2f", gross(item)),
+                    String.format("%.2f", product.getTaxPercentage())});
+            for (int i = 1; i < name.size(); i++)
+                rows.add(new String[]{name.get(i), "", "", "", ""});
+        }
+        return rows;
+    }
+
+    private static BigDecimal gross(ReceiptItem item) {
+        return item.getUnitPrice().multiply(BigDecimal.valueOf(item.getQuantity()));
+    }
+
+    private static List<String> wrap(String text, PDFont font, int size, float width) throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        for (String word : text.split(" ")) {
+            String candidate = line.isEmpty() ? word : line + " " + word;
+            if (!line.isEmpty() && font.getStringWidth(candidate) / 1000 * size > width) {
+                lines.add(line.toString());
+                line.setLength(0);
+                line.append(word);
+            } else {
+                line.setLength(0);
+                line.append(candidate);
+            }
+        }
+        lines.add(line.toString());
+        return lines;
+    }
+
+    private static void row(PDPageContentStream cs, PDFont font, String[] cells, float y) throws IOException {
+        text(cs, font, TEXT_SIZE, MARGIN, y, cells[0]);
+        for (int i = 1; i < cells.length; i++) {
+            float width = font.getStringWidth(cells[i]) / 1000 * TEXT_SIZE;
+            text(cs, font, TEXT_SIZE, COLUMN_RIGHT[i - 1] - width, y, cells[i]);
+        }
+    }
+
+    private static float keyValue(PDPageContentStream cs, String key, String value, float y) throws IOException {
+        text(cs, FONT_REG, TEXT_SIZE, MARGIN, y, String.format("%-12s %s", key + ':', value == null ? "" : value));
+        return y - LINE_HEIGHT;
+    }
+
+    private static void text(PDPageContentStream cs, PDFont font, float size,
+                             float x, float y, String txt) throws IOException {
+        cs.beginText();
+        cs.setFont(font, size);
+        cs.newLineAtOffset(x, y);
+        cs.showText(safe(txt));
+        cs.endText();
+    }
+
+    private static float separator(PDPageContentStream cs, float y) throws IOException {
+        cs.moveTo(MARGIN, y + LINE_HEIGHT - 3);
+        cs.lineTo(PAGE_WIDTH - MARGIN, y + LINE_HEIGHT - 3);
+        cs.stroke();
+        return y - 6;
+    }
+
+    /**
+     * Draws the Code 128 barcode as filled rectangles, one per run of dark modules.
+     */
+    private static void barcode(PDPageContentStream cs, String data, float y) throws IOException {
+        boolean[] modules = new Code128Writer().encode(data);
+        float moduleWidth = CONTENT_WIDTH / modules.length;
+        int i = 0;
+        while (i < modules.length) {
+            if (!modules[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < modules.length && modules[i]) i++;
+            cs.addRect(MARGIN + start * moduleWidth, y, (i - start) * moduleWidth, BARCODE_HEIGHT);
+        }
+        cs.fill();
+    }
+
+    private static String money(BigDecimal amount, String unit) {
+        return amount == null ? "" : String.format("%,.2f %s", amount, unit);
+    }
+
+    /**
+     * Replaces characters the standard fonts cannot encode (e.g. 'ş') with their
+     * base letter, or '?' if there is none, so text never fails to render.
+     */
+    private static String safe(String text) {
+        if (text == null) return "";
+        StringBuilder out = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = c < 0x80 ? null : replacements.computeIfAbsent(c, ReceiptPdfRenderer::replacement);
+            if (out == null) {
+                if (replacement == null || replacement.equals(String.valueOf(c))) continue;
+                out = new StringBuilder(text.length()).append(text, 0, i);
+            }
+            out.append(replacement == null ? String.valueOf(c) : replacement);
+        }
+        return out == null ? text : out.toString();
+    }
+
+    private static String replacement(char c) {
+        String s = String.valueOf(c);
+        if (canEncode(s)) return s;
+        String base = c == 'ı' ? "i" : Normalizer.normalize(s, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return !base.isEmpty() && canEncode(base) ? base : "?";
+    }
+
+    private static boolean canEncode(String s) {
+        try {
+            FONT_REG.encode(s);
+            FONT_BOLD.encode(s);
+            return true;
+        } catch (IllegalArgumentException | IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.maya_yagan.sms.util;
+
+import org.hibernate.BaseSessionEventListener;
+
+/**
+ * Hibernate session listener that counts the JDBC work done by a session.
+ * A round trip is either a single statement execution or one executed batch.
+ *
+ * @author Maya Yagan
+ */
+public class StatementCounter extends BaseSessionEventListener {
+    private int preparedStatements;
+    private int executions;
+    private int batches;
+
+    @Override
+    public void jdbcPrepareStatementStart() {
+        preparedStatements++;
+    }
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        executions++;
+    }
+
+    @Override
+    public void jdbcExecuteBatchStart() {
+        batches++;
+    }
+
+    public int getPreparedStatements() {
+        return preparedStatements;
+    }
+
+    public int getRoundTrips() {
+        return executions + batches;
+    }
+
+    @Override
+    public String toString() {
+        return preparedStatements + " statements, " + getRoundTrips() + " round trips"
+                + " (" + batches + " batches)";
+    }
+}
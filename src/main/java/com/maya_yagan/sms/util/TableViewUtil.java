@@ -6,6 +6,7 @@ import javafx.scene.control.cell.CheckBoxTableCell;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  *
@@ -16,10 +17,17 @@ public class TableViewUtil {
             TableColumn<T, Boolean> column,
             Map<T, V> backingMap,
             BiConsumer<T, Boolean> onToggle) {
+        setupCheckboxColumn(column, backingMap::containsKey, onToggle);
+    }
+
+    public static <T> void setupCheckboxColumn(
+            TableColumn<T, Boolean> column,
+            Predicate<T> isSelected,
+            BiConsumer<T, Boolean> onToggle) {
 
         column.setCellValueFactory(cellData -> {
             T item = cellData.getValue();
-            SimpleBooleanProperty prop = new SimpleBooleanProperty(backingMap.containsKey(item));
+            SimpleBooleanProperty prop = new SimpleBooleanProperty(isSelected.test(item));
 
             prop.addListener((obs, wasSelected, isNowSelected) -> {
                 onToggle.accept(item, isNowSelected);
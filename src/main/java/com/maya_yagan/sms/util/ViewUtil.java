@@ -231,6 +231,20 @@ public class ViewUtil {
         }
     }
 
+    public static void showChoiceDialog(
+            String title,
+            String header,
+            String content,
+            List<String> choices,
+            Consumer<String> onChoice) {
+
+        ChoiceDialog<String> dialog = new ChoiceDialog<>(choices.get(0), choices);
+        dialog.setTitle(title);
+        dialog.setHeaderText(header);
+        dialog.setContentText(content);
+        dialog.showAndWait().ifPresent(onChoice);
+    }
+
 
     public static ModalPane initializeModalPane(StackPane stackPane) {
         ModalPane modalPane = new ModalPane();
@@ -4,16 +4,25 @@ import atlantafx.base.controls.ModalPane;
 import com.maya_yagan.sms.common.AbstractTableController;
 import com.maya_yagan.sms.util.AlertUtil;
 import com.maya_yagan.sms.util.ContextMenuUtil;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.ExceptionHandler;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
 import com.maya_yagan.sms.util.ViewUtil;
+import java.io.File;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import com.maya_yagan.sms.warehouse.service.StockImportService;
 import com.maya_yagan.sms.warehouse.service.WarehouseService;
+import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.fxml.FXML;
+import javafx.scene.control.Alert;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.layout.StackPane;
+import javafx.stage.FileChooser;
 
 /**
  * Controller class for managing warehouses in the application.
@@ -29,6 +38,7 @@ public class WarehouseManagementController extends AbstractTableController<Wareh
 
     private ModalPane modalPane;
     private final WarehouseService warehouseService = new WarehouseService();
+    private final StockImportService stockImportService = new StockImportService();
 
     @Override
     protected void configureColumns() {
@@ -56,6 +66,7 @@ public class WarehouseManagementController extends AbstractTableController<Wareh
         return List.of(
                 new ContextMenuUtil.MenuItemConfig<>("View Products", (item, row) -> handleViewAction(item)),
                 new ContextMenuUtil.MenuItemConfig<>("Edit Inventory", (item, row) -> handleEditAction(item)),
+                new ContextMenuUtil.MenuItemConfig<>("Import Stock", (item, row) -> handleImportAction(item)),
                 new ContextMenuUtil.MenuItemConfig<>("Delete Inventory", (item,  row) -> handleDeleteAction(item))
         );
     }
@@ -81,6 +92,29 @@ public class WarehouseManagementController extends AbstractTableController<Wareh
         }, modalPane);
     }
 
+    private void handleImportAction(Warehouse warehouse) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Import Stock into " + warehouse.getName());
+        fileChooser.getExtensionFilters().add(
+                new FileChooser.ExtensionFilter("CSV / TSV Files", "*.csv", "*.tsv", "*.txt")
+        );
+        File file = fileChooser.showOpenDialog(tableView.getScene().getWindow());
+        if (file == null) return;
+
+        Path rejectFile = file.toPath().resolveSibling(file.getName() + ".rejects.csv");
+        CompletableFuture.supplyAsync(() -> stockImportService.importStock(file.toPath(), warehouse.getId(), rejectFile))
+                .whenComplete((result, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        if (error.getCause() instanceof CustomException e) ExceptionHandler.handleException(e);
+                        else AlertUtil.showAlert(Alert.AlertType.ERROR, "Import failed", error.getMessage());
+                        return;
+                    }
+                    refresh();
+                    AlertUtil.showAlert(Alert.AlertType.INFORMATION, "Stock imported",
+                            result + (result.rowsRejected() > 0 ? "\nRejected rows: " + rejectFile : ""));
+                }));
+    }
+
     private void handleViewAction(Warehouse warehouse) {
         ViewUtil.displayModalPaneView("/view/warehouse/WarehouseProducts.fxml",
                 (WarehouseProductsController controller) ->
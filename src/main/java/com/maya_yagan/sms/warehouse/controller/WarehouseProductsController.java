@@ -9,6 +9,7 @@ import com.maya_yagan.sms.product.model.Category;
 import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
 
+import java.time.LocalDate;
 import java.util.*;
 
 import com.maya_yagan.sms.warehouse.service.WarehouseService;
@@ -39,6 +40,7 @@ public class WarehouseProductsController extends AbstractTableController<Product
     private String currentCategory = "All Categories";
     private ModalPane modalPane;
     private Warehouse warehouse;
+    private Map<Integer, LocalDate> earliestExpiry = Map.of();
 
     private final ProductService productService = new ProductService();
     private final WarehouseService warehouseService = new WarehouseService();
@@ -61,7 +63,9 @@ public class WarehouseProductsController extends AbstractTableController<Product
                 new SimpleStringProperty(cell.getValue().getProduct().getProductionDate().toString())
         );
         expirationDateColumn.setCellValueFactory(cell -> {
-            var exp = cell.getValue().getProduct().getExpirationDate();
+            // the lot that expires first is the one sold next
+            var exp = earliestExpiry.getOrDefault(cell.getValue().getProduct().getId(),
+                    cell.getValue().getProduct().getExpirationDate());
             return new SimpleStringProperty(exp == null ? "No Expiry Date" : exp.toString());
         });
         unitColumn.setCellValueFactory(cell ->
@@ -75,12 +79,14 @@ public class WarehouseProductsController extends AbstractTableController<Product
     @Override
     protected Collection<ProductWarehouse> fetchData(){
         if(warehouse == null) return Collections.emptyList();
+        earliestExpiry = warehouseService.getEarliestExpiry(warehouse);
         return warehouseService.getProductWarehousesByCategory(warehouse, currentCategory);
     }
 
     @Override
     protected void postInit(){
         modalPane = ViewUtil.initializeModalPane(stackPane);
+        tableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         setupDynamicLayoutAdjustment();
         setupEventHandlers();
     }
@@ -160,9 +166,18 @@ public class WarehouseProductsController extends AbstractTableController<Product
     }
 
     private void handleTransferAction(ProductWarehouse pw){
+        // the selected rows are moved together if the clicked row is one of them
+        List<ProductWarehouse> rows = tableView.getSelectionModel().getSelectedItems().contains(pw)
+                ? List.copyOf(tableView.getSelectionModel().getSelectedItems())
+                : List.of(pw);
+
         // --- UI -----------------------------------------------------------------
-        TextField amountField = new TextField(String.valueOf(pw.getAmount()));
-        amountField.setPromptText("Amount");
+        Map<ProductWarehouse, TextField> amountFields = new LinkedHashMap<>();
+        for (ProductWarehouse row : rows) {
+            TextField amountField = new TextField(String.valueOf(row.getAmount()));
+            amountField.setPromptText("Amount");
+            amountFields.put(row, amountField);
+        }
 
         MenuButton inventoryMenu = new MenuButton("Choose inventory");
         var allWarehouses = warehouseService.getAllWarehouses()
@@ -185,29 +200,34 @@ public class WarehouseProductsController extends AbstractTableController<Product
         GridPane content = new GridPane();
         content.setHgap(15);
         content.setVgap(10);
-        content.addRow(0, new Label("Amount:"), amountField);
-        content.addRow(1, new Label("Destination:"), inventoryMenu);
+        int line = 0;
+        for (var entry : amountFields.entrySet())
+            content.addRow(line++, new Label(rows.size() == 1 ? "Amount:" : entry.getKey().getProduct().getName() + ":"),
+                    entry.getValue());
+        content.addRow(line, new Label("Destination:"), inventoryMenu);
 
         // --- Dialog -----------------------------------------------------------------
         Optional<ButtonType> result =
-                ViewUtil.showCustomDialog("Transfer Product",
-                        "Transfer " + pw.getProduct().getName(),
+                ViewUtil.showCustomDialog(rows.size() == 1 ? "Transfer Product" : "Transfer Products",
+                        rows.size() == 1 ? "Transfer " + pw.getProduct().getName() : "Transfer " + rows.size() + " products",
                         content);
 
         if (result.isPresent() && result.get() == ButtonType.OK){
             try {
-                int amt = Integer.parseInt(amountField.getText().trim());
+                Map<ProductWarehouse, Integer> amounts = new LinkedHashMap<>();
+                for (var entry : amountFields.entrySet())
+                    amounts.put(entry.getKey(), Integer.parseInt(entry.getValue().getText().trim()));
                 Warehouse dest = chosenTarget[0];
 
                 if (dest == null)
                     throw new CustomException("Please select a destination warehouse", "NOT_FOUND");
 
-                warehouseService.transferProduct(warehouse, pw, amt, dest);
+                warehouseService.transferProducts(warehouse, amounts, dest);
 
                 refresh();
                 AlertUtil.showAlert(Alert.AlertType.INFORMATION,
                         "Success",
-                        "Product transferred successfully.");
+                        rows.size() == 1 ? "Product transferred successfully." : "Products transferred successfully.");
 
             } catch (NumberFormatException ex){
                 AlertUtil.showAlert(Alert.AlertType.ERROR, "Invalid amount",
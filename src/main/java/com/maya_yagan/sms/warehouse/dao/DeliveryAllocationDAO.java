@@ -0,0 +1,109 @@
+package com.maya_yagan.sms.warehouse.dao;
+
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.util.OptimisticRetry;
+import com.maya_yagan.sms.warehouse.model.MovementType;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data Access Object (DAO) for splitting deliveries across warehouses.
+ * Free capacity and stock locations are read with one projection query each,
+ * without loading warehouses and their stock rows, and an allocation is
+ * written with the batched statements of {@link StockDeltaDAO}.
+ *
+ * @author Maya Yagan
+ */
+public class DeliveryAllocationDAO {
+    private final StockDeltaDAO stockDeltaDAO = new StockDeltaDAO();
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+
+    /**
+     * A warehouse and the room it has left.
+     */
+    public record FreeCapacity(int warehouseId, String name, int free) {}
+
+    /**
+     * @return every warehouse with its free capacity, most free first
+     */
+    public List<FreeCapacity> findFreeCapacities() {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<Object[]> rows = session.createQuery(
+                            "SELECT w.id, w.name, w.capacity - w.occupancy FROM Warehouse w " +
+                                    "ORDER BY w.capacity - w.occupancy DESC", Object[].class)
+                    .getResultList();
+            List<FreeCapacity> capacities = new ArrayList<>(rows.size());
+            for (Object[] row : rows)
+                capacities.add(new FreeCapacity((Integer) row[0], (String) row[1], Math.max(0, (Integer) row[2])));
+            return capacities;
+        }
+    }
+
+    /**
+     * @param productIds The products to look up
+     * @return amount in stock per warehouse id, per product id, for the warehouses holding them
+     */
+    public Map<Integer, Map<Integer, Integer>> findStockLocations(Collection<Integer> productIds) {
+        Map<Integer, Map<Integer, Integer>> locations = new HashMap<>();
+        if (productIds.isEmpty()) return locations;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<Object[]> rows = session.createQuery(
+                            "SELECT pw.product.id, pw.warehouse.id, pw.amount FROM ProductWarehouse pw " +
+                                    "WHERE pw.product.id IN (:productIds) AND pw.amount > 0", Object[].class)
+                    .setParameterList("productIds", productIds)
+                    .getResultList();
+            for (Object[] row : rows)
+                locations.computeIfAbsent((Integer) row[0], id -> new HashMap<>())
+                        .put((Integer) row[1], (Integer) row[2]);
+            return locations;
+        }
+    }
+
+    /**
+     * Adds an allocated delivery to its warehouses in one transaction. If a
+     * warehouse filled up since the capacities were read, nothing is written.
+     *
+     * @param quantities Quantity per product id, per warehouse id
+     * @param reference Note for the stock ledger, e.g. the order
+     * @throws CustomException with code STOCK_CONFLICT if a warehouse no longer has the room
+     */
+    public void allocate(Map<Integer, Map<Integer, Integer>> quantities, String reference) {
+        Transaction transaction = null;
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            transaction = session.beginTransaction();
+            for (var entry : quantities.entrySet()) {
+                int warehouseId = entry.getKey();
+                Map<Integer, Integer> amounts = entry.getValue();
+                List<Integer> missing;
+                try {
+                    missing = stockDeltaDAO.increase(session, warehouseId, amounts);
+                } catch (CustomException e) {
+                    throw new CustomException("The free capacity changed while the delivery was allocated.",
+                            OptimisticRetry.CONFLICT_CODE);
+                }
+                Map<Integer, Integer> newRows = new LinkedHashMap<>();
+                for (int productId : missing)
+                    newRows.put(productId, amounts.get(productId));
+                stockDeltaDAO.insert(session, warehouseId, newRows);
+                stockLotDAO.receiveWithProductExpiry(session, warehouseId, amounts);
+                stockLedgerDAO.record(session, MovementType.DELIVERY, warehouseId, amounts, reference);
+            }
+            transaction.commit();
+        } catch (Exception e) {
+            if (transaction != null) transaction.rollback();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+}
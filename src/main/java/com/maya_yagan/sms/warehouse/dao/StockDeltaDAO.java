@@ -0,0 +1,256 @@
+package com.maya_yagan.sms.warehouse.dao;
+
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Data Access Object (DAO) for relative stock changes.
+ * Each change is a single {@code UPDATE ... SET amount = amount ± q} on one
+ * Product_Warehouse row, so the cost does not depend on the size of the
+ * warehouse and concurrent lanes never overwrite each other's changes. The
+ * statements for several products are sent as one JDBC batch. The occupancy of
+ * the warehouse is changed by the same amount in the same transaction. All
+ * methods run inside the caller's session and transaction.
+ *
+ * <p>Every stock change updates the Warehouse row before any of its
+ * Product_Warehouse rows, so two transactions always lock them in the same order
+ * and cannot deadlock on them. A change spanning several warehouses locks them
+ * in id order first, with {@link #lockWarehouses}.</p>
+ *
+ * <p>Known limit: because the occupancy lives on the Warehouse row, every sale
+ * from a warehouse holds that one row until it commits, so the lanes of a
+ * warehouse write their sales one after the other. The journal keeps this off
+ * the checkout path; if it ever becomes the bottleneck, the occupancy has to be
+ * split into several rows per warehouse.</p>
+ *
+ * @author Maya Yagan
+ */
+public class StockDeltaDAO {
+    private static final String DECREASE =
+            "UPDATE Product_Warehouse SET amount = amount - ?, version = version + 1 " +
+                    "WHERE warehouse_id = ? AND product_id = ? AND amount >= ?";
+    private static final String INCREASE =
+            "UPDATE Product_Warehouse SET amount = amount + ?, version = version + 1 " +
+                    "WHERE warehouse_id = ? AND product_id = ?";
+    private static final String INSERT =
+            "INSERT INTO Product_Warehouse (warehouse_id, product_id, amount, version) VALUES (?, ?, ?, 0)";
+    private static final String EMPTY =
+            "UPDATE Product_Warehouse SET amount = 0, version = version + 1 " +
+                    "WHERE warehouse_id = ? AND product_id = ?";
+
+    /**
+     * Takes quantities out of stock. A product is only decreased if the warehouse
+     * has enough of it; the others are left unchanged and returned.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse to take the stock from
+     * @param quantities Quantity to take per product id
+     * @return ids of the products that are missing or short in the warehouse
+     */
+    public List<Integer> decrease(Session session, int warehouseId, Map<Integer, Integer> quantities) {
+        // the occupancy is taken first so the Warehouse row is locked before the stock rows,
+        // and what could not be taken is given back afterwards
+        addOccupancy(session, warehouseId, -quantities.values().stream().mapToInt(Integer::intValue).sum());
+        List<Integer> unchanged = session.doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(DECREASE)) {
+                for (var entry : quantities.entrySet()) {
+                    ps.setInt(1, entry.getValue());
+                    ps.setInt(2, warehouseId);
+                    ps.setInt(3, entry.getKey());
+                    ps.setInt(4, entry.getValue());
+                    ps.addBatch();
+                }
+                return unchanged(quantities.keySet(), ps.executeBatch());
+            }
+        });
+
+        int kept = 0;
+        for (int productId : unchanged)
+            kept += quantities.get(productId);
+        addOccupancy(session, warehouseId, kept);
+        return unchanged;
+    }
+
+    /**
+     * Adds quantities to stock. The whole quantity is first reserved against the
+     * capacity of the warehouse; products that have no row yet are returned and
+     * the caller inserts them with the quantity given here.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse to add the stock to
+     * @param quantities Quantity to add per product id
+     * @return ids of the products that have no row in the warehouse yet
+     * @throws CustomException if the warehouse does not have enough free capacity
+     */
+    public List<Integer> increase(Session session, int warehouseId, Map<Integer, Integer> quantities) {
+        int total = quantities.values().stream().mapToInt(Integer::intValue).sum();
+        if (!reserveCapacity(session, warehouseId, total))
+            throw new CustomException("This warehouse doesn't have enough capacity.", "INSUFFICIENT_CAPACITY");
+
+        return session.doReturningWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(INCREASE)) {
+                for (var entry : quantities.entrySet()) {
+                    ps.setInt(1, entry.getValue());
+                    ps.setInt(2, warehouseId);
+                    ps.setInt(3, entry.getKey());
+                    ps.addBatch();
+                }
+                return unchanged(quantities.keySet(), ps.executeBatch());
+            }
+        });
+    }
+
+    /**
+     * Inserts stock rows for products the warehouse does not have yet, as
+     * returned by {@link #increase}. Their quantity was already reserved against
+     * the capacity there, so the occupancy is not changed again.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse to add the rows to
+     * @param quantities Quantity per product id of the new rows
+     */
+    public void insert(Session session, int warehouseId, Map<Integer, Integer> quantities) {
+        if (quantities.isEmpty()) return;
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(INSERT)) {
+                for (var entry : quantities.entrySet()) {
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, entry.getKey());
+                    ps.setInt(3, entry.getValue());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Sets the stock of the given products to zero.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse holding the stock
+     * @param productIds The products to empty
+     */
+    public void empty(Session session, int warehouseId, Collection<Integer> productIds) {
+        if (productIds.isEmpty()) return;
+        session.createNativeQuery(
+                        "UPDATE Warehouse SET occupancy = occupancy - COALESCE((" +
+                                "SELECT SUM(amount) FROM Product_Warehouse " +
+                                "WHERE warehouse_id = :warehouseId AND product_id IN (:productIds)), 0) " +
+                                "WHERE id = :warehouseId")
+                .setParameter("warehouseId", warehouseId)
+                .setParameterList("productIds", productIds)
+                .executeUpdate();
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(EMPTY)) {
+                for (int productId : productIds) {
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, productId);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Deletes the rows of the given products that are down to zero.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse holding the stock
+     * @param productIds The products to check
+     * @return the number of rows deleted
+     */
+    public int deleteEmpty(Session session, int warehouseId, Collection<Integer> productIds) {
+        if (productIds.isEmpty()) return 0;
+        return session.createNativeQuery(
+                        "DELETE FROM Product_Warehouse " +
+                                "WHERE warehouse_id = :warehouseId AND amount = 0 AND product_id IN (:productIds)")
+                .setParameter("warehouseId", warehouseId)
+                .setParameterList("productIds", productIds)
+                .executeUpdate();
+    }
+
+    /**
+     * Locks the rows of several warehouses, in id order, for a change that spans
+     * them, e.g. a transfer.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseIds The warehouses
+     * @return the locked warehouses by id; warehouses that do not exist are left out
+     */
+    public Map<Integer, Warehouse> lockWarehouses(Session session, Collection<Integer> warehouseIds) {
+        Map<Integer, Warehouse> locked = new TreeMap<>();
+        for (int warehouseId : new TreeSet<>(warehouseIds)) {
+            Warehouse warehouse = session.get(Warehouse.class, warehouseId, LockMode.PESSIMISTIC_WRITE);
+            if (warehouse != null) locked.put(warehouseId, warehouse);
+        }
+        return locked;
+    }
+
+    /**
+     * Adds an amount to the occupancy of a warehouse if it stays within capacity.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse
+     * @param amount The amount to add
+     * @return true if the amount fit and was added
+     */
+    public boolean reserveCapacity(Session session, int warehouseId, int amount) {
+        return session.createNativeQuery(
+                        "UPDATE Warehouse SET occupancy = occupancy + :amount " +
+                                "WHERE id = :warehouseId AND occupancy + :amount <= capacity")
+                .setParameter("amount", amount)
+                .setParameter("warehouseId", warehouseId)
+                .executeUpdate() == 1;
+    }
+
+    /**
+     * Adds an amount to the occupancy of a warehouse without checking capacity.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse
+     * @param amount The amount to add, negative for stock that left the warehouse
+     */
+    public void addOccupancy(Session session, int warehouseId, int amount) {
+        if (amount == 0) return;
+        session.createNativeQuery("UPDATE Warehouse SET occupancy = occupancy + :amount WHERE id = :warehouseId")
+                .setParameter("amount", amount)
+                .setParameter("warehouseId", warehouseId)
+                .executeUpdate();
+    }
+
+    /**
+     * Recomputes the occupancy of a warehouse from its product-warehouse rows.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse
+     */
+    public void recount(Session session, int warehouseId) {
+        session.createNativeQuery(
+                        "UPDATE Warehouse SET occupancy = COALESCE((" +
+                                "SELECT SUM(amount) FROM Product_Warehouse WHERE warehouse_id = :warehouseId), 0) " +
+                                "WHERE id = :warehouseId")
+                .setParameter("warehouseId", warehouseId)
+                .executeUpdate();
+    }
+
+    private static List<Integer> unchanged(Collection<Integer> productIds, int[] counts) {
+        List<Integer> unchanged = new ArrayList<>();
+        int i = 0;
+        for (int productId : productIds) {
+            if (counts[i++] == 0) unchanged.add(productId);
+        }
+        return unchanged;
+    }
+}
@@ -0,0 +1,97 @@
+package com.maya_yagan.sms.warehouse.dao;
+
+import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.warehouse.model.MovementType;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Data Access Object (DAO) for bulk stock imports.
+ * Barcodes are resolved with one query per slice of barcodes instead of one
+ * per row, and stock rows are written with the batched statements of
+ * {@link StockDeltaDAO}, so no entities are loaded while importing.
+ *
+ * @author Maya Yagan
+ */
+public class StockImportDAO {
+    /** SQL Server accepts at most 2100 parameters per statement. */
+    private static final int IN_LIMIT = 1000;
+
+    private final StockDeltaDAO stockDeltaDAO = new StockDeltaDAO();
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+
+    /**
+     * @param barcodes The barcodes to look up
+     * @return product id per barcode, for the barcodes that exist
+     */
+    public Map<String, Integer> findProductIdsByBarcode(Collection<String> barcodes) {
+        Map<String, Integer> ids = new HashMap<>(barcodes.size() * 2);
+        if (barcodes.isEmpty()) return ids;
+        List<String> all = new ArrayList<>(barcodes);
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            for (int from = 0; from < all.size(); from += IN_LIMIT) {
+                List<Object[]> rows = session.createQuery(
+                                "SELECT p.barcode, p.id FROM Product p WHERE p.barcode IN (:barcodes)", Object[].class)
+                        .setParameterList("barcodes", all.subList(from, Math.min(all.size(), from + IN_LIMIT)))
+                        .getResultList();
+                for (Object[] row : rows)
+                    ids.put((String) row[0], (Integer) row[1]);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the ids of all warehouses
+     */
+    public Set<Integer> findWarehouseIds() {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return new HashSet<>(session.createQuery("SELECT w.id FROM Warehouse w", Integer.class).getResultList());
+        }
+    }
+
+    /**
+     * Adds stock to a warehouse in one transaction: the whole quantity is checked
+     * against the free capacity once, existing rows are increased and new rows
+     * inserted with batched statements.
+     *
+     * @param warehouseId The warehouse receiving the stock
+     * @param quantities Quantity to add per product id
+     * @param datedLots The parts of the quantities that came with an expiry date;
+     *                  the rest expires on the date set on the product
+     * @param reference Note for the stock ledger, e.g. the file name
+     * @throws com.maya_yagan.sms.util.CustomException with code INSUFFICIENT_CAPACITY if it does not fit
+     */
+    public void addStock(int warehouseId, Map<Integer, Integer> quantities,
+                         List<StockLotDAO.Lot> datedLots, String reference) {
+        Transaction transaction = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            transaction = session.beginTransaction();
+            List<Integer> missing = stockDeltaDAO.increase(session, warehouseId, quantities);
+            Map<Integer, Integer> newRows = new LinkedHashMap<>();
+            for (int productId : missing)
+                newRows.put(productId, quantities.get(productId));
+            stockDeltaDAO.insert(session, warehouseId, newRows);
+            Map<Integer, Integer> undated = new LinkedHashMap<>(quantities);
+            for (StockLotDAO.Lot lot : datedLots)
+                undated.merge(lot.productId(), -lot.quantity(), Integer::sum);
+            stockLotDAO.receive(session, warehouseId, datedLots);
+            stockLotDAO.receiveWithProductExpiry(session, warehouseId, undated);
+            stockLedgerDAO.record(session, MovementType.DELIVERY, warehouseId, quantities, reference);
+            transaction.commit();
+        } catch (Exception e) {
+            if (transaction != null) transaction.rollback();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.maya_yagan.sms.warehouse.dao;
+
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.warehouse.model.MovementType;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.query.Query;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data Access Object (DAO) for the stock movement ledger and its snapshots.
+ * Movements are appended with batched inserts inside the caller's session and
+ * transaction, next to the stock change they describe. Snapshots, "as of"
+ * queries and rebuilds open their own session.
+ *
+ * @author Maya Yagan
+ */
+public class StockLedgerDAO {
+    private static final String INSERT =
+            "INSERT INTO Stock_Movement (warehouse_id, product_id, quantity, type, reference, created_at) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final int REFERENCE_LENGTH = 80;
+
+    private final StockDeltaDAO stockDeltaDAO = new StockDeltaDAO();
+
+    /**
+     * Appends one movement per product.
+     *
+     * @param session The session of the caller's transaction
+     * @param type Why the stock changed
+     * @param warehouseId The warehouse whose stock changed
+     * @param quantities Change per product id, negative when stock left the warehouse
+     * @param reference Receipt code, order id or other note; may be null
+     */
+    public void record(Session session, MovementType type, int warehouseId,
+                       Map<Integer, Integer> quantities, String reference) {
+        if (quantities.isEmpty()) return;
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        String note = trim(reference);
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(INSERT)) {
+                for (var entry : quantities.entrySet()) {
+                    if (entry.getValue() == 0) continue;
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, entry.getKey());
+                    ps.setInt(3, entry.getValue());
+                    ps.setString(4, type.name());
+                    if (note == null) ps.setNull(5, Types.VARCHAR);
+                    else ps.setString(5, note);
+                    ps.setTimestamp(6, now);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Appends a movement for a single product.
+     *
+     * @see #record(Session, MovementType, int, Map, String)
+     */
+    public void record(Session session, MovementType type, int warehouseId,
+                       int productId, int quantity, String reference) {
+        record(session, type, warehouseId, Map.of(productId, quantity), reference);
+    }
+
+    /**
+     * Appends an adjustment that takes out all stock of a warehouse, before the
+     * warehouse is deleted.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse being deleted
+     */
+    public void recordWarehouseRemoval(Session session, int warehouseId) {
+        recordRemoval(session, "warehouse_id", warehouseId, "warehouse deleted");
+    }
+
+    /**
+     * Appends adjustments that take a product out of every warehouse, before the
+     * product is deleted.
+     *
+     * @param session The session of the caller's transaction
+     * @param productId The product being deleted
+     */
+    public void recordProductRemoval(Session session, int productId) {
+        recordRemoval(session, "product_id", productId, "product deleted");
+    }
+
+    private void recordRemoval(Session session, String column, int id, String reference) {
+        session.createNativeQuery(
+                        "INSERT INTO Stock_Movement (warehouse_id, product_id, quantity, type, reference, created_at) " +
+                                "SELECT warehouse_id, product_id, -amount, :type, :reference, :now " +
+                                "FROM Product_Warehouse WHERE " + column + " = :id AND amount <> 0")
+                .setParameter("type", MovementType.ADJUSTMENT.name())
+                .setParameter("reference", reference)
+                .setParameter("now", LocalDateTime.now())
+                .setParameter("id", id)
+                .executeUpdate();
+    }
+
+    /**
+     * Takes a snapshot of every product in every warehouse. The first snapshot
+     * copies the current stock rows; later ones add the movements since the
+     * previous snapshot to it, so they never read the whole history. The ledger
+     * is locked while the snapshot is taken, so no movement can commit with an id
+     * the snapshot already covers.
+     *
+     * @return the number of snapshot rows written, 0 if nothing moved since the last one
+     */
+    public int takeSnapshot() {
+        Transaction transaction = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            transaction = session.beginTransaction();
+            Long previous = lastSnapshot(session, null);
+            if (previous == null) {
+                // stock rows are changed before their movement is written; lock them first, like the writers do
+                session.createNativeQuery("SELECT COUNT(*) FROM Product_Warehouse WITH (TABLOCK, HOLDLOCK)")
+                        .getSingleResult();
+            }
+            long last = ((Number) session.createNativeQuery(
+                            "SELECT COALESCE(MAX(id), 0) FROM Stock_Movement WITH (TABLOCK, HOLDLOCK)")
+                    .getSingleResult()).longValue();
+            if (previous != null && previous == last) {
+                transaction.commit();
+                return 0;
+            }
+
+            int written = previous == null
+                    ? session.createNativeQuery(
+                                    "INSERT INTO Stock_Snapshot (warehouse_id, product_id, amount, movement_id, taken_at) " +
+                                            "SELECT warehouse_id, product_id, amount, :last, :now " +
+                                            "FROM Product_Warehouse WHERE amount <> 0")
+                            .setParameter("last", last)
+                            .setParameter("now", LocalDateTime.now())
+                            .executeUpdate()
+                    : session.createNativeQuery(
+                                    "INSERT INTO Stock_Snapshot (warehouse_id, product_id, amount, movement_id, taken_at) " +
+                                            "SELECT COALESCE(s.warehouse_id, m.warehouse_id), COALESCE(s.product_id, m.product_id), " +
+                                            "COALESCE(s.amount, 0) + COALESCE(m.delta, 0), :last, :now " +
+                                            "FROM (SELECT warehouse_id, product_id, amount FROM Stock_Snapshot " +
+                                            "      WHERE movement_id = :previous) s " +
+                                            "FULL OUTER JOIN (SELECT warehouse_id, product_id, SUM(quantity) AS delta " +
+                                            "      FROM Stock_Movement WHERE id > :previous AND id <= :last " +
+                                            "      GROUP BY warehouse_id, product_id) m " +
+                                            "ON m.warehouse_id = s.warehouse_id AND m.product_id = s.product_id " +
+                                            "WHERE COALESCE(s.amount, 0) + COALESCE(m.delta, 0) <> 0")
+                            .setParameter("previous", previous)
+                            .setParameter("last", last)
+                            .setParameter("now", LocalDateTime.now())
+                            .executeUpdate();
+            transaction.commit();
+            return written;
+        } catch (Exception e) {
+            if (transaction != null) transaction.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * @return how many movements were written since the last snapshot, or -1 if there is none
+     */
+    public long movementsSinceSnapshot() {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Long previous = lastSnapshot(session, null);
+            if (previous == null) return -1;
+            return ((Number) session.createNativeQuery("SELECT COUNT_BIG(*) FROM Stock_Movement WHERE id > :previous")
+                    .setParameter("previous", previous)
+                    .getSingleResult()).longValue();
+        }
+    }
+
+    /**
+     * @return when the last snapshot was taken, or null if there is none
+     */
+    public LocalDateTime lastSnapshotTime() {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return session.createQuery("SELECT MAX(s.takenAt) FROM StockSnapshot s", LocalDateTime.class)
+                    .uniqueResult();
+        }
+    }
+
+    /**
+     * Works out the stock of a warehouse at a past moment from the last snapshot
+     * before it and the movements between the two.
+     *
+     * @param warehouseId The warehouse
+     * @param at The moment
+     * @return amount per product id, without products that had none
+     * @throws CustomException with code NO_HISTORY if no snapshot is that old
+     */
+    public Map<Integer, Integer> getAmountsAsOf(int warehouseId, LocalDateTime at) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Long snapshot = lastSnapshot(session, at);
+            if (snapshot == null)
+                throw new CustomException("There is no stock history for that date yet.", "NO_HISTORY");
+            return ledgerAmounts(session, warehouseId, snapshot, at);
+        }
+    }
+
+    /**
+     * Compares the stock rows of a warehouse with what the ledger says they
+     * should be.
+     *
+     * @param warehouseId The warehouse
+     * @return the products whose stock row differs from the ledger
+     */
+    public List<Drift> findDrift(int warehouseId) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return drift(session, warehouseId);
+        }
+    }
+
+    /**
+     * Sets the stock rows of a warehouse to the amounts in the ledger and
+     * recounts its occupancy.
+     *
+     * @param warehouseId The warehouse
+     * @return the rows that were corrected
+     * @throws CustomException with code NO_HISTORY if no snapshot was taken yet
+     */
+    public List<Drift> rebuild(int warehouseId) {
+        Transaction transaction = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            transaction = session.beginTransaction();
+            stockDeltaDAO.lockWarehouses(session, List.of(warehouseId));
+            List<Drift> drift = drift(session, warehouseId);
+            Map<Integer, Integer> missing = new HashMap<>();
+            List<Drift> existing = new ArrayList<>();
+            for (Drift d : drift) {
+                if (d.stockRow() == null) missing.put(d.productId(), d.ledger());
+                else existing.add(d);
+            }
+            session.doWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "UPDATE Product_Warehouse SET amount = ?, version = version + 1 " +
+                                "WHERE warehouse_id = ? AND product_id = ?")) {
+                    for (Drift d : existing) {
+                        ps.setInt(1, d.ledger());
+                        ps.setInt(2, warehouseId);
+                        ps.setInt(3, d.productId());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            });
+            stockDeltaDAO.insert(session, warehouseId, missing);
+            stockDeltaDAO.recount(session, warehouseId);
+            transaction.commit();
+            return drift;
+        } catch (Exception e) {
+            if (transaction != null) transaction.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * @param warehouseId The warehouse
+     * @param productId The product
+     * @param stockRow Amount in the stock row, null if there is no row
+     * @param ledger Amount according to the ledger
+     */
+    public record Drift(int warehouseId, int productId, Integer stockRow, int ledger) {}
+
+    private List<Drift> drift(Session session, int warehouseId) {
+        Long snapshot = lastSnapshot(session, null);
+        if (snapshot == null)
+            throw new CustomException("No stock snapshot has been taken yet.", "NO_HISTORY");
+        Map<Integer, Integer> ledger = ledgerAmounts(session, warehouseId, snapshot, null);
+
+        List<Object[]> rows = session.createQuery(
+                        "SELECT pw.product.id, pw.amount FROM ProductWarehouse pw WHERE pw.warehouse.id = :warehouseId",
+                        Object[].class)
+                .setParameter("warehouseId", warehouseId)
+                .getResultList();
+        List<Drift> drift = new ArrayList<>();
+        for (Object[] row : rows) {
+            int productId = (Integer) row[0], amount = (Integer) row[1];
+            int expected = ledger.getOrDefault(productId, 0);
+            ledger.remove(productId);
+            if (amount != expected) drift.add(new Drift(warehouseId, productId, amount, expected));
+        }
+        ledger.forEach((productId, amount) -> drift.add(new Drift(warehouseId, productId, null, amount)));
+        return drift;
+    }
+
+    /**
+     * @param at Only movements up to this moment; null for all
+     */
+    private Map<Integer, Integer> ledgerAmounts(Session session, int warehouseId, long snapshot, LocalDateTime at) {
+        Map<Integer, Integer> amounts = new HashMap<>();
+        List<Object[]> base = session.createQuery(
+                        "SELECT s.productId, s.amount FROM StockSnapshot s " +
+                                "WHERE s.movementId = :snapshot AND s.warehouseId = :warehouseId", Object[].class)
+                .setParameter("snapshot", snapshot)
+                .setParameter("warehouseId", warehouseId)
+                .getResultList();
+        for (Object[] row : base)
+            amounts.put((Integer) row[0], (Integer) row[1]);
+
+        Query<Object[]> moved = session.createQuery(
+                        "SELECT m.productId, SUM(m.quantity) FROM StockMovement m " +
+                                "WHERE m.warehouseId = :warehouseId AND m.id > :snapshot " +
+                                (at == null ? "" : "AND m.createdAt <= :at ") +
+                                "GROUP BY m.productId", Object[].class)
+                .setParameter("warehouseId", warehouseId)
+                .setParameter("snapshot", snapshot);
+        if (at != null) moved.setParameter("at", at);
+        for (Object[] row : moved.getResultList())
+            amounts.merge((Integer) row[0], ((Number) row[1]).intValue(), Integer::sum);
+        amounts.values().removeIf(amount -> amount == 0);
+        return amounts;
+    }
+
+    /**
+     * @param at Latest moment the snapshot may have been taken; null for the last one
+     * @return the movement id of the snapshot, or null if there is none
+     */
+    private Long lastSnapshot(Session session, LocalDateTime at) {
+        Query<Long> query = session.createQuery(
+                "SELECT MAX(s.movementId) FROM StockSnapshot s" + (at == null ? "" : " WHERE s.takenAt <= :at"),
+                Long.class);
+        if (at != null) query.setParameter("at", at);
+        return query.uniqueResult();
+    }
+
+    private static String trim(String reference) {
+        if (reference == null) return null;
+        return reference.length() > REFERENCE_LENGTH ? reference.substring(0, REFERENCE_LENGTH) : reference;
+    }
+}
@@ -0,0 +1,342 @@
+package com.maya_yagan.sms.warehouse.dao;
+
+import com.maya_yagan.sms.util.HibernateUtil;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.query.Query;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data Access Object (DAO) for the lots stock is made of.
+ * Stock is picked first-expired-first-out: lots without an expiry date come
+ * last. The writing methods run inside the caller's session and transaction
+ * and are meant to follow the change of the stock row itself, whose row lock
+ * keeps two lanes from picking the same lots at once. The statements for
+ * several products are sent as one JDBC batch.
+ *
+ * @author Maya Yagan
+ */
+public class StockLotDAO {
+    /** SQL Server accepts at most 2100 parameters per statement. */
+    private static final int IN_LIMIT = 1000;
+    private static final String FEFO_ORDER =
+            "CASE WHEN expiration_date IS NULL THEN 1 ELSE 0 END, expiration_date, id";
+
+    private static final String INSERT =
+            "INSERT INTO Stock_Lot (warehouse_id, product_id, quantity, expiration_date, received_at) " +
+                    "VALUES (?, ?, ?, ?, ?)";
+    private static final String INSERT_WITH_PRODUCT_EXPIRY =
+            "INSERT INTO Stock_Lot (warehouse_id, product_id, quantity, expiration_date, received_at) " +
+                    "SELECT ?, id, ?, expirationDate, ? FROM Product WHERE id = ?";
+    // takes q from the lots of one product in FEFO order: the running total
+    // before each lot tells how much of q is left for it; a MERGE rather than
+    // UPDATE ... FROM so the test database runs the same statement
+    private static final String PICK =
+            "MERGE INTO Stock_Lot AS l USING (" +
+                    "SELECT id, SUM(quantity) OVER (ORDER BY " + FEFO_ORDER + " ROWS UNBOUNDED PRECEDING) " +
+                    "- quantity AS picked_before " +
+                    "FROM Stock_Lot WHERE warehouse_id = ? AND product_id = ? AND quantity > 0) AS o ON o.id = l.id " +
+                    "WHEN MATCHED AND o.picked_before < ? THEN UPDATE SET quantity = " +
+                    "CASE WHEN o.picked_before + l.quantity <= ? THEN 0 " +
+                    "ELSE l.quantity - (? - o.picked_before) END;";
+    private static final String DELETE_EMPTY =
+            "DELETE FROM Stock_Lot WHERE warehouse_id = ? AND product_id = ? AND quantity = 0";
+
+    /**
+     * Stock received with a known expiry date, or a part of a lot.
+     */
+    public record Lot(int productId, int quantity, LocalDate expirationDate) {}
+
+    /**
+     * A lot that expires soon, with the names needed to report it.
+     */
+    public record ExpiringLot(long id, int warehouseId, String warehouseName, int productId,
+                              String productName, int quantity, LocalDate expirationDate) {}
+
+    /**
+     * Adds lots to a warehouse.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse receiving the stock
+     * @param lots The lots received
+     */
+    public void receive(Session session, int warehouseId, Collection<Lot> lots) {
+        if (lots.isEmpty()) return;
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(INSERT)) {
+                for (Lot lot : lots) {
+                    if (lot.quantity() <= 0) continue;
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, lot.productId());
+                    ps.setInt(3, lot.quantity());
+                    if (lot.expirationDate() == null) ps.setNull(4, Types.DATE);
+                    else ps.setDate(4, Date.valueOf(lot.expirationDate()));
+                    ps.setTimestamp(5, now);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Adds one lot per product that expires on the date set on the product,
+     * for deliveries that do not come with their own dates.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse receiving the stock
+     * @param quantities Quantity received per product id
+     */
+    public void receiveWithProductExpiry(Session session, int warehouseId, Map<Integer, Integer> quantities) {
+        if (quantities.isEmpty()) return;
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(INSERT_WITH_PRODUCT_EXPIRY)) {
+                for (var entry : quantities.entrySet()) {
+                    if (entry.getValue() <= 0) continue;
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, entry.getValue());
+                    ps.setTimestamp(3, now);
+                    ps.setInt(4, entry.getKey());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Gives the stock that no lot covers, e.g. stock from before lots existed or
+     * stock that came back with a refund, a lot that expires on the date set on
+     * its product, so it is no longer sold after every dated lot. Products
+     * without an expiry date are left as they are. Running it again only adds
+     * lots for stock that is still uncovered.
+     *
+     * @return the number of lots created
+     */
+    public int backfill() {
+        Transaction transaction = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            transaction = session.beginTransaction();
+            int created = session.createNativeQuery(
+                            "INSERT INTO Stock_Lot (warehouse_id, product_id, quantity, expiration_date, received_at) " +
+                                    "SELECT pw.warehouse_id, pw.product_id, pw.amount - COALESCE(l.covered, 0), " +
+                                    "p.expirationDate, :now " +
+                                    "FROM Product_Warehouse pw JOIN Product p ON p.id = pw.product_id " +
+                                    "LEFT JOIN (SELECT warehouse_id, product_id, SUM(quantity) AS covered " +
+                                    "FROM Stock_Lot GROUP BY warehouse_id, product_id) l " +
+                                    "ON l.warehouse_id = pw.warehouse_id AND l.product_id = pw.product_id " +
+                                    "WHERE p.expirationDate IS NOT NULL AND pw.amount > COALESCE(l.covered, 0)")
+                    .setParameter("now", Timestamp.valueOf(LocalDateTime.now()))
+                    .executeUpdate();
+            transaction.commit();
+            return created;
+        } catch (Exception e) {
+            if (transaction != null) transaction.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes quantities out of the lots, first expired first. Whatever the lots
+     * do not cover came from stock without a lot.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse the stock left
+     * @param quantities Quantity taken per product id
+     */
+    public void pick(Session session, int warehouseId, Map<Integer, Integer> quantities) {
+        if (quantities.isEmpty()) return;
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(PICK)) {
+                for (var entry : quantities.entrySet()) {
+                    int quantity = entry.getValue();
+                    if (quantity <= 0) continue;
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, entry.getKey());
+                    ps.setInt(3, quantity);
+                    ps.setInt(4, quantity);
+                    ps.setInt(5, quantity);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+        deleteEmpty(session, warehouseId, quantities.keySet());
+    }
+
+    /**
+     * Takes quantities out of the lots like {@link #pick}, and returns the parts
+     * taken so they can be received elsewhere with their expiry dates.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse the stock leaves
+     * @param quantities Quantity taken per product id
+     * @return the parts taken, one per product and expiry date
+     */
+    public List<Lot> take(Session session, int warehouseId, Map<Integer, Integer> quantities) {
+        Map<Integer, Integer> left = new HashMap<>(quantities);
+        Map<Long, Integer> taken = new LinkedHashMap<>();
+        Map<Part, Integer> parts = new LinkedHashMap<>();
+        List<Integer> productIds = new ArrayList<>(quantities.keySet());
+
+        for (int from = 0; from < productIds.size(); from += IN_LIMIT) {
+            List<Integer> slice = productIds.subList(from, Math.min(productIds.size(), from + IN_LIMIT));
+            session.doWork(connection -> {
+                String in = String.join(",", Collections.nCopies(slice.size(), "?"));
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT id, product_id, quantity, expiration_date FROM Stock_Lot " +
+                                "WHERE warehouse_id = ? AND quantity > 0 AND product_id IN (" + in + ") " +
+                                "ORDER BY product_id, " + FEFO_ORDER)) {
+                    ps.setInt(1, warehouseId);
+                    for (int i = 0; i < slice.size(); i++)
+                        ps.setInt(i + 2, slice.get(i));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            int productId = rs.getInt(2);
+                            int wanted = left.get(productId);
+                            if (wanted == 0) continue;
+                            int amount = Math.min(wanted, rs.getInt(3));
+                            Date expiry = rs.getDate(4);
+                            taken.put(rs.getLong(1), amount);
+                            left.put(productId, wanted - amount);
+                            parts.merge(new Part(productId, expiry == null ? null : expiry.toLocalDate()),
+                                    amount, Integer::sum);
+                        }
+                    }
+                }
+            });
+        }
+
+        if (!taken.isEmpty())
+            session.doWork(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "UPDATE Stock_Lot SET quantity = quantity - ? WHERE id = ?")) {
+                    for (var entry : taken.entrySet()) {
+                        ps.setInt(1, entry.getValue());
+                        ps.setLong(2, entry.getKey());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            });
+        deleteEmpty(session, warehouseId, quantities.keySet());
+
+        List<Lot> lots = new ArrayList<>(parts.size());
+        parts.forEach((part, amount) -> lots.add(new Lot(part.productId(), amount, part.expirationDate())));
+        return lots;
+    }
+
+    /**
+     * Drops the lots of a product in a warehouse, when its stock row is deleted.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse
+     * @param productId The product
+     */
+    public void removeStock(Session session, int warehouseId, int productId) {
+        session.createNativeQuery("DELETE FROM Stock_Lot WHERE warehouse_id = :warehouseId AND product_id = :productId")
+                .setParameter("warehouseId", warehouseId)
+                .setParameter("productId", productId)
+                .executeUpdate();
+    }
+
+    /**
+     * Drops the lots of a warehouse that is being deleted.
+     *
+     * @param session The session of the caller's transaction
+     * @param warehouseId The warehouse
+     */
+    public void removeWarehouse(Session session, int warehouseId) {
+        session.createNativeQuery("DELETE FROM Stock_Lot WHERE warehouse_id = :id")
+                .setParameter("id", warehouseId)
+                .executeUpdate();
+    }
+
+    /**
+     * Drops the lots of a product that is being deleted.
+     *
+     * @param session The session of the caller's transaction
+     * @param productId The product
+     */
+    public void removeProduct(Session session, int productId) {
+        session.createNativeQuery("DELETE FROM Stock_Lot WHERE product_id = :id")
+                .setParameter("id", productId)
+                .executeUpdate();
+    }
+
+    /**
+     * Lists lots by expiry date, reading only the range asked for from the
+     * expiry index.
+     *
+     * @param after Only lots expiring after this date, or null for no lower bound
+     * @param until Only lots expiring on or before this date
+     * @return the lots in that range that still hold stock, earliest first
+     */
+    public List<ExpiringLot> findExpiring(LocalDate after, LocalDate until) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Query<Object[]> query = session.createQuery(
+                    "SELECT l.id, w.id, w.name, p.id, p.name, l.quantity, l.expirationDate " +
+                            "FROM StockLot l, Warehouse w, Product p " +
+                            "WHERE w.id = l.warehouseId AND p.id = l.productId AND l.quantity > 0 " +
+                            "AND l.expirationDate <= :until" +
+                            (after == null ? "" : " AND l.expirationDate > :after") +
+                            " ORDER BY l.expirationDate, l.id", Object[].class);
+            query.setParameter("until", until);
+            if (after != null) query.setParameter("after", after);
+            return query.getResultList().stream()
+                    .map(r -> new ExpiringLot((Long) r[0], (Integer) r[1], (String) r[2], (Integer) r[3],
+                            (String) r[4], (Integer) r[5], (LocalDate) r[6]))
+                    .toList();
+        }
+    }
+
+    /**
+     * @param warehouseId The warehouse
+     * @return the earliest expiry date of the lots of each product that has dated lots
+     */
+    public Map<Integer, LocalDate> findEarliestExpiry(int warehouseId) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            Map<Integer, LocalDate> earliest = new HashMap<>();
+            for (Object[] row : session.createQuery(
+                            "SELECT l.productId, MIN(l.expirationDate) FROM StockLot l " +
+                                    "WHERE l.warehouseId = :warehouseId AND l.quantity > 0 " +
+                                    "AND l.expirationDate IS NOT NULL GROUP BY l.productId", Object[].class)
+                    .setParameter("warehouseId", warehouseId)
+                    .getResultList())
+                earliest.put((Integer) row[0], (LocalDate) row[1]);
+            return earliest;
+        }
+    }
+
+    private record Part(int productId, LocalDate expirationDate) {}
+
+    private void deleteEmpty(Session session, int warehouseId, Collection<Integer> productIds) {
+        if (productIds.isEmpty()) return;
+        session.doWork(connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(DELETE_EMPTY)) {
+                for (int productId : productIds) {
+                    ps.setInt(1, warehouseId);
+                    ps.setInt(2, productId);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        });
+    }
+}
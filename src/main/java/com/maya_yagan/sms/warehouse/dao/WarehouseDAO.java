@@ -2,14 +2,20 @@ package com.maya_yagan.sms.warehouse.dao;
 
 import com.maya_yagan.sms.product.model.Product;
 import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.model.MovementType;
 import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
 import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.util.OptimisticRetry;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import org.hibernate.Hibernate;
+import java.util.Set;
+import org.hibernate.LockMode;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.hibernate.query.Query;
@@ -21,6 +27,13 @@ import org.hibernate.query.Query;
  * @author Maya Yagan
  */
 public class WarehouseDAO {
+    /** SQL Server accepts at most 2100 parameters per statement. */
+    private static final int IN_LIMIT = 1000;
+
+    private final StockDeltaDAO stockDeltaDAO = new StockDeltaDAO();
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+
     /**
      * Inserts a new warehouse into the database.
      * 
@@ -58,33 +71,12 @@ public class WarehouseDAO {
                 throw new CustomException("Product not found", "NOT_FOUND");
             }
 
-            Hibernate.initialize(warehouse.getProductWarehouses());
-
-            int currentTotal = warehouse.getProductWarehouses()
-                    .stream()
-                    .mapToInt(ProductWarehouse::getAmount)
-                    .sum();
-            if (currentTotal + amount > warehouse.getCapacity()) {
-                throw new CustomException(
-                        "This warehouse doesn't have enough capacity.",
-                        "INSUFFICIENT_CAPACITY");
-            }
-
             // Either bump existing amount or create a new ProductWarehouse row
-            ProductWarehouse pw = warehouse.getProductWarehouses()
-                    .stream()
-                    .filter(x -> x.getProduct().getId() == productId)
-                    .findFirst()
-                    .orElseGet(() -> {
-                        ProductWarehouse newPw =
-                                new ProductWarehouse(warehouse, product, 0);
-                        warehouse.getProductWarehouses().add(newPw);
-                        return newPw;
-                    });
-
-            pw.setAmount(pw.getAmount() + amount);
-
-            session.merge(warehouse);
+            if (!stockDeltaDAO.increase(session, warehouseId, Map.of(productId, amount)).isEmpty())
+                session.persist(new ProductWarehouse(warehouse, product, amount));
+            stockLotDAO.receiveWithProductExpiry(session, warehouseId, Map.of(productId, amount));
+            stockLedgerDAO.record(session, MovementType.ADJUSTMENT, warehouseId, productId, amount, null);
+
             tx.commit();
         } catch (Exception e) {
             if (tx != null) tx.rollback();
@@ -110,19 +102,22 @@ public class WarehouseDAO {
     }
     
     /**
-     * Retrieves a list of products stored in a specific warehouse.
+     * Retrieves the ids of the products of one category that a warehouse stocks,
+     * without loading the products themselves.
      * 
-     * @param warehouse The warehouse from which to retrieve products
-     * @return List of products in the specified warehouse
+     * @param warehouseId The unique identifier of the warehouse
+     * @param categoryName The name of the category
+     * @return ids of the products in both the warehouse and the category
      */
-    public List<Product> getProductWithWarehouse(Warehouse warehouse){
+    public Set<Integer> getProductIdsInCategory(int warehouseId, String categoryName){
         try (Session session = HibernateUtil.getSessionFactory().openSession()){
-            Query<Product> query = session.createQuery("SELECT p FROM Product p JOIN FETCH p.productWarehouses pw WHERE pw.warehouse = :warehouse", Product.class);
-            query.setParameter("warehouse", warehouse);
-            return query.getResultList();
-        } catch (Exception e){
-            e.printStackTrace();
-            return null;
+            return new HashSet<>(session.createQuery(
+                            "SELECT pw.product.id FROM ProductWarehouse pw " +
+                                    "WHERE pw.warehouse.id = :warehouseId AND pw.product.category.name = :category",
+                            Integer.class)
+                    .setParameter("warehouseId", warehouseId)
+                    .setParameter("category", categoryName)
+                    .getResultList());
         }
     }
 
@@ -142,42 +137,103 @@ public class WarehouseDAO {
     }
     
     /**
-     * Updates an existing warehouse in the database.
+     * Updates the name and capacity of a warehouse without touching its stock.
+     * The capacity is checked against the occupancy of the locked warehouse row,
+     * so stock that arrived since the caller's snapshot was loaded is counted.
      * 
-     * @param warehouse The warehouse with updated data
+     * @param id The unique identifier of the warehouse
+     * @param name The new name
+     * @param capacity The new capacity
+     * @throws CustomException with code INVALID_CAPACITY if the current stock does not fit
      */
-    public void updateWarehouse(Warehouse warehouse) {
+    public void updateWarehouseDetails(int id, String name, int capacity) {
         Transaction transaction = null;
         try (Session session = HibernateUtil.getSessionFactory().openSession()) {
             transaction = session.beginTransaction();
-            Warehouse managedWarehouse = session.get(Warehouse.class, warehouse.getId());
-            if (managedWarehouse != null) {
-                managedWarehouse.setName(warehouse.getName());
-                managedWarehouse.setCapacity(warehouse.getCapacity());
-                Hibernate.initialize(managedWarehouse.getProductWarehouses());
-
-                // Synchronize product warehouses
-                Map<Product, ProductWarehouse> existingMap = managedWarehouse.getProductWarehouses().stream()
-                        .collect(Collectors.toMap(ProductWarehouse::getProduct, pw -> pw));
-
-                for(ProductWarehouse pw : warehouse.getProductWarehouses()){
-                    ProductWarehouse existingPw = existingMap.get(pw.getProduct());
-                    if(existingPw != null)
-                        existingPw.setAmount(pw.getAmount());
-                    else 
-                        managedWarehouse.getProductWarehouses().add(
-                                new ProductWarehouse(managedWarehouse, pw.getProduct(), pw.getAmount()));
-                }
-                session.merge(managedWarehouse);
-            }
-            session.flush();
+            Warehouse managedWarehouse = session.get(Warehouse.class, id, LockMode.PESSIMISTIC_WRITE);
+            if (managedWarehouse == null)
+                throw new CustomException("Warehouse not found", "NOT_FOUND");
+            if (managedWarehouse.getOccupancy() > capacity)
+                throw new CustomException("The new capacity cannot be less than the current stock ("
+                        + managedWarehouse.getOccupancy() + ").", "INVALID_CAPACITY");
+            managedWarehouse.setName(name);
+            managedWarehouse.setCapacity(capacity);
             transaction.commit();
         } catch (Exception e) {
             if (transaction != null) transaction.rollback();
-            e.printStackTrace();
+            throw e;
         }
     }
-    
+
+    /**
+     * Sets the amount of a stock row, provided nobody changed it since the given
+     * copy was loaded. The copy is brought up to date on success.
+     * 
+     * @param productWarehouse The copy of the row the new amount is based on
+     * @param newAmount The new amount
+     * @throws CustomException with code STOCK_CONFLICT if the row changed meanwhile
+     */
+    public void setProductAmount(ProductWarehouse productWarehouse, int newAmount) {
+        Transaction transaction = null;
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            transaction = session.beginTransaction();
+            Object[] current = session.createQuery(
+                            "SELECT pw.amount, pw.warehouse.id FROM ProductWarehouse pw " +
+                                    "WHERE pw.id = :id AND pw.version = :version", Object[].class)
+                    .setParameter("id", productWarehouse.getId())
+                    .setParameter("version", productWarehouse.getVersion())
+                    .uniqueResult();
+            if (current != null)
+                changeOccupancy(session, (Integer) current[1], newAmount - (Integer) current[0]);
+
+            int updated = current == null ? 0 : session.createQuery(
+                            "UPDATE VERSIONED ProductWarehouse pw SET pw.amount = :amount " +
+                                    "WHERE pw.id = :id AND pw.version = :version")
+                    .setParameter("amount", newAmount)
+                    .setParameter("id", productWarehouse.getId())
+                    .setParameter("version", productWarehouse.getVersion())
+                    .executeUpdate();
+            if (updated == 0)
+                throw new CustomException(
+                        "The stock of " + productWarehouse.getProduct().getName()
+                                + " was changed by someone else. Please reload and try again.",
+                        OptimisticRetry.CONFLICT_CODE);
+            Map<Integer, Integer> change = Map.of(productWarehouse.getProduct().getId(), newAmount - (Integer) current[0]);
+            stockLedgerDAO.record(session, MovementType.ADJUSTMENT, (Integer) current[1], change, null);
+            stockLotDAO.pick(session, (Integer) current[1], decreases(change));
+            transaction.commit();
+            productWarehouse.setAmount(newAmount);
+            productWarehouse.setVersion(productWarehouse.getVersion() + 1);
+        } catch (Exception e) {
+            // rolled back before the session is closed, or the work stays on the pooled connection
+            if (transaction != null) transaction.rollback();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Stock taken out by hand is picked from the lots; stock added by hand gets no lot.
+     *
+     * @return the quantity taken out per product, for the changes that decrease stock
+     */
+    private static Map<Integer, Integer> decreases(Map<Integer, Integer> changes) {
+        Map<Integer, Integer> decreases = new LinkedHashMap<>();
+        changes.forEach((productId, change) -> {
+            if (change < 0) decreases.put(productId, -change);
+        });
+        return decreases;
+    }
+
+    private void changeOccupancy(Session session, int warehouseId, int delta) {
+        if (delta > 0 && !stockDeltaDAO.reserveCapacity(session, warehouseId, delta))
+            throw new CustomException("The warehouse doesn't have enough free space for this amount.",
+                    "INSUFFICIENT_CAPACITY");
+        if (delta < 0) stockDeltaDAO.addOccupancy(session, warehouseId, delta);
+    }
+
     /**
      * Deletes a product from a specific warehouse.
      * 
@@ -195,7 +251,13 @@ public class WarehouseDAO {
             query.setParameter("warehouse", warehouse);
             query.setParameter("product", product);
             ProductWarehouse productWarehouse = query.uniqueResult();
-            if(productWarehouse != null) session.delete(productWarehouse);
+            if(productWarehouse != null) {
+                stockDeltaDAO.addOccupancy(session, warehouse.getId(), -productWarehouse.getAmount());
+                stockLedgerDAO.record(session, MovementType.ADJUSTMENT, warehouse.getId(),
+                        product.getId(), -productWarehouse.getAmount(), null);
+                stockLotDAO.removeStock(session, warehouse.getId(), product.getId());
+                session.delete(productWarehouse);
+            }
             transaction.commit();
         } catch(Exception e){
             if(transaction != null) transaction.rollback();
@@ -203,55 +265,92 @@ public class WarehouseDAO {
         }
     }
 
-    public void transferProduct(int productId, int amount,
-                                int sourceWarehouseId, int targetWarehouseId) {
+    /**
+     * Moves stock of several products from one warehouse to another in one
+     * transaction. The source stock of all products and the free capacity of the
+     * target are checked with one query each before anything is changed, so every
+     * problem is reported at once; the stock is then moved with batched relative
+     * updates.
+     * 
+     * @param quantities Quantity to move per product id
+     * @param sourceWarehouseId The warehouse the stock is taken from
+     * @param targetWarehouseId The warehouse the stock is moved to
+     * @throws CustomException with code INSUFFICIENT_STOCK or INSUFFICIENT_CAPACITY if the transfer does not fit
+     */
+    public void transferProducts(Map<Integer, Integer> quantities,
+                                 int sourceWarehouseId, int targetWarehouseId) {
 
         if (sourceWarehouseId == targetWarehouseId)
             throw new CustomException("Source and destination warehouses are the same",
                     "INVALID_TARGET");
+        if (quantities.isEmpty()) return;
 
         Transaction tx = null;
         try (Session session = HibernateUtil.getSessionFactory().openSession()) {
             tx = session.beginTransaction();
 
-            Warehouse source = session.get(Warehouse.class, sourceWarehouseId);
-            Warehouse target = session.get(Warehouse.class, targetWarehouseId);
-            Product   product = session.get(Product.class, productId);
+            // both warehouses are locked in id order, so opposite transfers cannot deadlock
+            Map<Integer, Warehouse> warehouses = stockDeltaDAO.lockWarehouses(session,
+                    List.of(sourceWarehouseId, targetWarehouseId));
+            if (warehouses.size() < 2)
+                throw new CustomException("Source/Target warehouse not found", "NOT_FOUND");
+            Warehouse target = warehouses.get(targetWarehouseId);
+            int free = target.getCapacity() - target.getOccupancy();
 
-            if (source == null || target == null || product == null)
-                throw new CustomException("Source/Target warehouse or product not found", "NOT_FOUND");
+            Map<Integer, Object[]> stock = new HashMap<>();
+            List<Integer> productIds = new ArrayList<>(quantities.keySet());
+            for (int from = 0; from < productIds.size(); from += IN_LIMIT)
+                for (Object[] row : session.createQuery(
+                                "SELECT p.id, p.name, pw.amount FROM ProductWarehouse pw JOIN pw.product p " +
+                                        "WHERE pw.warehouse.id = :warehouseId AND p.id IN (:productIds)", Object[].class)
+                        .setParameter("warehouseId", sourceWarehouseId)
+                        .setParameterList("productIds",
+                                productIds.subList(from, Math.min(productIds.size(), from + IN_LIMIT)))
+                        .getResultList())
+                    stock.put((Integer) row[0], row);
 
-            Hibernate.initialize(source.getProductWarehouses());
-            Hibernate.initialize(target.getProductWarehouses());
+            List<String> shortages = new ArrayList<>();
+            int total = 0;
+            for (var entry : quantities.entrySet()) {
+                if (entry.getValue() <= 0)
+                    throw new CustomException("Amount must be greater than 0", "INVALID_NUMBER");
+                Object[] row = stock.get(entry.getKey());
+                if (row == null)
+                    shortages.add("product " + entry.getKey() + " (not in the source warehouse)");
+                else if ((Integer) row[2] < entry.getValue())
+                    shortages.add(row[1] + " (" + row[2] + " of " + entry.getValue() + ")");
+                total += entry.getValue();
+            }
+            if (!shortages.isEmpty())
+                throw new CustomException("Not enough stock in the source warehouse for: "
+                        + String.join(", ", shortages), "INSUFFICIENT_STOCK");
+            if (total > free)
+                throw new CustomException("The destination inventory has room for " + free
+                        + " more units, but " + total + " are being transferred.", "INSUFFICIENT_CAPACITY");
 
             // ---- remove from SOURCE ---------------------------------------------------------------
-            ProductWarehouse sourcePw = source.getProductWarehouses().stream()
-                    .filter(pw -> pw.getProduct().getId() == productId)
-                    .findFirst()
-                    .orElseThrow(() -> new CustomException("Product not in source warehouse",
-                            "NOT_FOUND"));
-
-            int newSourceAmount = sourcePw.getAmount() - amount;
-            if (newSourceAmount == 0) {
-                source.getProductWarehouses().remove(sourcePw);
-                session.delete(sourcePw);
-            } else {
-                sourcePw.setAmount(newSourceAmount);
-            }
+            // the check above ran before the updates, so a lane may still have sold some meanwhile
+            if (!stockDeltaDAO.decrease(session, sourceWarehouseId, quantities).isEmpty())
+                throw new CustomException(
+                        "The stock was changed by another lane at the same time. Please try again.",
+                        OptimisticRetry.CONFLICT_CODE);
+            stockDeltaDAO.deleteEmpty(session, sourceWarehouseId, quantities.keySet());
+            List<StockLotDAO.Lot> lots = stockLotDAO.take(session, sourceWarehouseId, quantities);
 
             // ---- add to TARGET --------------------------------------------------------------------
-            ProductWarehouse targetPw = target.getProductWarehouses().stream()
-                    .filter(pw -> pw.getProduct().getId() == productId)
-                    .findFirst()
-                    .orElseGet(() -> {
-                        ProductWarehouse pw = new ProductWarehouse(target, product, 0);
-                        target.getProductWarehouses().add(pw);
-                        return pw;
-                    });
-            targetPw.setAmount(targetPw.getAmount() + amount);
-
-            session.merge(source);
-            session.merge(target);
+            List<Integer> missing = stockDeltaDAO.increase(session, targetWarehouseId, quantities);
+            Map<Integer, Integer> newRows = new LinkedHashMap<>();
+            for (int productId : missing)
+                newRows.put(productId, quantities.get(productId));
+            stockDeltaDAO.insert(session, targetWarehouseId, newRows);
+            stockLotDAO.receive(session, targetWarehouseId, lots);
+
+            Map<Integer, Integer> out = new LinkedHashMap<>();
+            quantities.forEach((productId, amount) -> out.put(productId, -amount));
+            stockLedgerDAO.record(session, MovementType.TRANSFER_OUT, sourceWarehouseId, out,
+                    "to warehouse " + targetWarehouseId);
+            stockLedgerDAO.record(session, MovementType.TRANSFER_IN, targetWarehouseId, quantities,
+                    "from warehouse " + sourceWarehouseId);
             tx.commit();
         } catch (Exception e) {
             if (tx != null) tx.rollback();
@@ -260,6 +359,52 @@ public class WarehouseDAO {
     }
 
 
+    /**
+     * Finds warehouses whose occupancy differs from the sum of their stock rows.
+     * 
+     * @return the warehouses that are out of step, empty if all are correct
+     */
+    public List<OccupancyMismatch> findOccupancyMismatches() {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            List<Object[]> rows = session.createNativeQuery(
+                            "SELECT w.id, w.name, w.occupancy, COALESCE(SUM(pw.amount), 0) " +
+                                    "FROM Warehouse w LEFT JOIN Product_Warehouse pw ON pw.warehouse_id = w.id " +
+                                    "GROUP BY w.id, w.name, w.occupancy " +
+                                    "HAVING w.occupancy <> COALESCE(SUM(pw.amount), 0)")
+                    .getResultList();
+            return rows.stream()
+                    .map(r -> new OccupancyMismatch(((Number) r[0]).intValue(), (String) r[1],
+                            ((Number) r[2]).intValue(), ((Number) r[3]).intValue()))
+                    .toList();
+        }
+    }
+
+    /**
+     * Recomputes the occupancy of every warehouse from its stock rows.
+     * 
+     * @return the number of warehouses updated
+     */
+    public int repairOccupancy() {
+        Transaction transaction = null;
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            transaction = session.beginTransaction();
+            int updated = session.createNativeQuery(
+                            "UPDATE Warehouse SET occupancy = COALESCE((" +
+                                    "SELECT SUM(pw.amount) FROM Product_Warehouse pw WHERE pw.warehouse_id = Warehouse.id), 0)")
+                    .executeUpdate();
+            transaction.commit();
+            return updated;
+        } catch (Exception e) {
+            if (transaction != null) transaction.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * A warehouse whose recorded occupancy differs from its actual stock.
+     */
+    public record OccupancyMismatch(int warehouseId, String name, int recorded, int actual) {}
+
     /**
      * Deletes a warehouse by its unique identifier.
      * 
@@ -269,8 +414,13 @@ public class WarehouseDAO {
         Transaction transaction = null;
         try (Session session = HibernateUtil.getSessionFactory().openSession()){
             transaction = session.beginTransaction();
-            Warehouse warehouse = session.get(Warehouse.class, id);
-            if(warehouse != null) session.delete(warehouse);
+            // locked before its stock rows are deleted, like in every other stock change
+            Warehouse warehouse = session.get(Warehouse.class, id, LockMode.PESSIMISTIC_WRITE);
+            if(warehouse != null) {
+                stockLedgerDAO.recordWarehouseRemoval(session, id);
+                stockLotDAO.removeWarehouse(session, id);
+                session.delete(warehouse);
+            }
             transaction.commit();
         } catch(Exception e){
             if(transaction != null) transaction.rollback();
@@ -0,0 +1,10 @@
+package com.maya_yagan.sms.warehouse.model;
+
+/**
+ * Why the stock of a product in a warehouse changed.
+ *
+ * @author Maya Yagan
+ */
+public enum MovementType {
+    SALE, REFUND, TRANSFER_IN, TRANSFER_OUT, DELIVERY, ADJUSTMENT
+}
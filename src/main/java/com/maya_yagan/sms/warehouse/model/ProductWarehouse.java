@@ -29,6 +29,10 @@ public class ProductWarehouse {
     @Column(name = "amount")
     private int amount;
 
+    @Version
+    @Column(name = "version", columnDefinition = "int default 0 not null")
+    private int version;
+
     /**
      * Default constructor
      * Needed for Hibernate to function properly.
@@ -111,6 +115,27 @@ public class ProductWarehouse {
         this.amount = amount;
     }
 
+    /**
+     * Returns the version of the row, which Hibernate increments on every update.
+     * An update made from an older version is rejected instead of overwriting
+     * the newer amount.
+     * 
+     * @return the version of the product-warehouse entry
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the product-warehouse entry.
+     * Only used to bring a detached copy up to date after it was saved.
+     * 
+     * @param version Version to be set
+     */
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     /**
      * Returns a string representation of the product-warehouse entry,
      * including the warehouse name, product name, and amount.
@@ -0,0 +1,68 @@
+package com.maya_yagan.sms.warehouse.model;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * A part of the stock of a product in a warehouse that expires on one date.
+ * The lots of a stock row break its amount down by expiry date; stock that
+ * came in without a lot (e.g. refunds, manual increases, stock from before
+ * lots existed) is the part of the amount the lots do not cover, until the
+ * start-up backfill puts it into a lot dated by its product. Like the stock
+ * rows, lots are keyed by warehouse and product id.
+ *
+ * @author Maya Yagan
+ */
+@Entity
+@Table(name = "Stock_Lot", indexes = {
+        @Index(name = "idx_lot_stock", columnList = "warehouse_id, product_id, expiration_date"),
+        @Index(name = "idx_lot_expiry", columnList = "expiration_date")
+})
+public class StockLot {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "warehouse_id", nullable = false)
+    private int warehouseId;
+
+    @Column(name = "product_id", nullable = false)
+    private int productId;
+
+    @Column(name = "quantity", nullable = false)
+    private int quantity;
+
+    @Column(name = "expiration_date")
+    private LocalDate expirationDate;          // null for stock that does not expire
+
+    @Column(name = "received_at", nullable = false)
+    private LocalDateTime receivedAt;
+
+    public StockLot(){}
+
+    public Long getId() {
+        return id;
+    }
+
+    public int getWarehouseId() {
+        return warehouseId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public LocalDate getExpirationDate() {
+        return expirationDate;
+    }
+
+    public LocalDateTime getReceivedAt() {
+        return receivedAt;
+    }
+}
@@ -0,0 +1,73 @@
+package com.maya_yagan.sms.warehouse.model;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * One change to the stock of a product in a warehouse. Movements are only ever
+ * appended, in the same transaction as the change itself, so the amount of a
+ * product at any moment is the sum of its movements up to then. Warehouse and
+ * product are kept as plain ids so the history survives their deletion.
+ *
+ * @author Maya Yagan
+ */
+@Entity
+@Table(name = "Stock_Movement", indexes = {
+        @Index(name = "idx_movement_stock", columnList = "warehouse_id, product_id, id"),
+        @Index(name = "idx_movement_time", columnList = "created_at")
+})
+public class StockMovement {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "warehouse_id", nullable = false)
+    private int warehouseId;
+
+    @Column(name = "product_id", nullable = false)
+    private int productId;
+
+    @Column(name = "quantity", nullable = false)
+    private int quantity;                      // negative when stock left the warehouse
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "type", nullable = false, length = 16)
+    private MovementType type;
+
+    @Column(name = "reference", length = 80)
+    private String reference;                  // receipt code, order id, ...
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    public StockMovement(){}
+
+    public Long getId() {
+        return id;
+    }
+
+    public int getWarehouseId() {
+        return warehouseId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public MovementType getType() {
+        return type;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+}
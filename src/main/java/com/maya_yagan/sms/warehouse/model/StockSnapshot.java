@@ -0,0 +1,65 @@
+package com.maya_yagan.sms.warehouse.model;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * The amount of a product in a warehouse after all movements up to a given
+ * movement id. Snapshots are taken for every product at once, so rebuilding
+ * stock or asking for it at a past moment starts from the last snapshot
+ * before then and only adds the movements that came after it.
+ *
+ * @author Maya Yagan
+ */
+@Entity
+@Table(name = "Stock_Snapshot", indexes = {
+        @Index(name = "idx_snapshot_movement", columnList = "movement_id"),
+        @Index(name = "idx_snapshot_time", columnList = "taken_at")
+})
+public class StockSnapshot {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "warehouse_id", nullable = false)
+    private int warehouseId;
+
+    @Column(name = "product_id", nullable = false)
+    private int productId;
+
+    @Column(name = "amount", nullable = false)
+    private int amount;
+
+    @Column(name = "movement_id", nullable = false)
+    private long movementId;                   // last movement included
+
+    @Column(name = "taken_at", nullable = false)
+    private LocalDateTime takenAt;
+
+    public StockSnapshot(){}
+
+    public Long getId() {
+        return id;
+    }
+
+    public int getWarehouseId() {
+        return warehouseId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    public long getMovementId() {
+        return movementId;
+    }
+
+    public LocalDateTime getTakenAt() {
+        return takenAt;
+    }
+}
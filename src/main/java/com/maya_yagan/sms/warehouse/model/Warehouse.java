@@ -2,7 +2,9 @@ package com.maya_yagan.sms.warehouse.model;
 
 import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
 import com.maya_yagan.sms.product.model.Product;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import javax.persistence.CascadeType;
@@ -13,6 +15,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 /**
  * Represents a warehouse in the supermarket management system.
@@ -34,8 +37,13 @@ public class Warehouse {
     private String name;
     @Column(name = "capacity")
     private int capacity;
+    @Column(name = "occupancy", insertable = false, updatable = false,
+            columnDefinition = "int default 0 not null")
+    private int occupancy;
     @OneToMany(mappedBy = "warehouse", cascade = CascadeType.ALL, orphanRemoval = true)
     private Set<ProductWarehouse> productWarehouses;
+    @Transient
+    private volatile Map<Integer, ProductWarehouse> byProductId;
     
     /**
      * Default constructor
@@ -82,6 +90,17 @@ public class Warehouse {
     public int getCapacity() {
         return capacity;
     }
+
+    /**
+     * Returns the total amount of products in the warehouse as of loading.
+     * The column is only written by the stock update statements, which keep it
+     * in step with the product-warehouse rows.
+     * 
+     * @return the total amount of products in the warehouse
+     */
+    public int getOccupancy() {
+        return occupancy;
+    }
     
     /**
      * Returns a set of products stored in the warehouse.
@@ -103,6 +122,25 @@ public class Warehouse {
         return productWarehouses;
     }
 
+    /**
+     * Returns the product-warehouse association of a product. The associations
+     * are indexed by product id on the first call.
+     * 
+     * @param productId The unique identifier of the product
+     * @return the association, or null if the warehouse does not hold the product
+     */
+    public ProductWarehouse getProductWarehouse(int productId) {
+        Map<Integer, ProductWarehouse> index = byProductId;
+        if (index == null) {
+            if (productWarehouses == null) return null;
+            index = new HashMap<>(Math.max(16, productWarehouses.size() * 4 / 3 + 1));
+            for (ProductWarehouse pw : productWarehouses)
+                index.putIfAbsent(pw.getProduct().getId(), pw);
+            byProductId = index;
+        }
+        return index.get(productId);
+    }
+
     /**
      * Sets the name of the warehouse.
      * 
@@ -128,6 +166,7 @@ public class Warehouse {
      */
     public void setProductWarehouses(Set<ProductWarehouse> productWarehouses) {
         this.productWarehouses = productWarehouses;
+        this.byProductId = null;
     }
     
     /**
@@ -139,6 +178,7 @@ public class Warehouse {
     public void setProducts(Set<Product> products, int defaultQuantity){
         if(this.productWarehouses == null) this.productWarehouses = new HashSet<>();
         else this.productWarehouses.clear();
+        this.byProductId = null;
         for(Product product : products)
             this.productWarehouses.add(new ProductWarehouse(this, product, defaultQuantity));
     }
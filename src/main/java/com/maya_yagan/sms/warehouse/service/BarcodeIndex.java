@@ -0,0 +1,88 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-warehouse barcode → product id index used by the checkout scanner.
+ * The index of a warehouse is built on the first lookup and kept until it is
+ * invalidated, which every change to the products a warehouse holds must do
+ * through {@link #invalidate(int)} or {@link #remove(int, Product)}, and every
+ * barcode change through {@link #invalidateAll()}. It only
+ * holds product ids, never stock rows, so stock changes do not touch it; a hit
+ * is resolved to the row of the snapshot the caller holds.
+ *
+ * @author Maya Yagan
+ */
+public class BarcodeIndex {
+    private static final BarcodeIndex instance = new BarcodeIndex();
+
+    private final Map<Integer, Map<String, Integer>> entries = new ConcurrentHashMap<>();
+
+    private BarcodeIndex() {}
+
+    public static BarcodeIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Looks up a product in the warehouse by its barcode.
+     * Builds the warehouse's index from the given snapshot if it has none.
+     *
+     * @param warehouse The warehouse snapshot to search in
+     * @param barcode The scanned barcode
+     * @return the matching product-warehouse entry of the snapshot, if any
+     */
+    public Optional<ProductWarehouse> find(Warehouse warehouse, String barcode) {
+        if (warehouse == null || barcode == null) return Optional.empty();
+        Set<ProductWarehouse> source = warehouse.getProductWarehouses();
+        if (source == null) return Optional.empty();
+
+        Integer productId = entries.computeIfAbsent(warehouse.getId(), id -> build(source)).get(barcode);
+        if (productId == null) return Optional.empty();
+        return Optional.ofNullable(warehouse.getProductWarehouse(productId));
+    }
+
+    /**
+     * Removes a product from the index of a warehouse.
+     *
+     * @param warehouseId The warehouse the product was removed from
+     * @param product The removed product
+     */
+    public void remove(int warehouseId, Product product) {
+        Map<String, Integer> byBarcode = entries.get(warehouseId);
+        if (byBarcode == null || product.getBarcode() == null) return;
+        byBarcode.remove(product.getBarcode(), product.getId());
+    }
+
+    /**
+     * Drops the index of a warehouse so it is rebuilt on the next lookup.
+     *
+     * @param warehouseId The warehouse whose index should be dropped
+     */
+    public void invalidate(int warehouseId) {
+        entries.remove(warehouseId);
+    }
+
+    /**
+     * Drops the index of every warehouse, e.g. after a product's barcode changed.
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private static Map<String, Integer> build(Set<ProductWarehouse> source) {
+        Map<String, Integer> byBarcode = new ConcurrentHashMap<>(Math.max(16, source.size() * 4 / 3 + 1));
+        for (ProductWarehouse pw : source) {
+            String barcode = pw.getProduct().getBarcode();
+            if (barcode != null) byBarcode.putIfAbsent(barcode, pw.getProduct().getId());
+        }
+        return byBarcode;
+    }
+}
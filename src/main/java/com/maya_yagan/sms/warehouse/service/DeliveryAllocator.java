@@ -0,0 +1,134 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.order.model.Order;
+import com.maya_yagan.sms.order.model.OrderProduct;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.OptimisticRetry;
+import com.maya_yagan.sms.warehouse.dao.DeliveryAllocationDAO;
+import com.maya_yagan.sms.warehouse.dao.DeliveryAllocationDAO.FreeCapacity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the products of a delivered order across warehouses.
+ * Each product goes first to the preferred warehouse, then to the warehouses
+ * that already stock it (most stock first), then to the ones with the most
+ * free capacity, so a product stays together where it can. Larger order lines
+ * are placed first. The plan is written in one transaction and planned again
+ * from fresh capacities if another delivery took the room meanwhile.
+ *
+ * @author Maya Yagan
+ */
+public class DeliveryAllocator {
+    private final DeliveryAllocationDAO deliveryAllocationDAO = new DeliveryAllocationDAO();
+    private final BarcodeIndex barcodeIndex = BarcodeIndex.getInstance();
+
+    /**
+     * Where part of an order line was put.
+     */
+    public record Part(int warehouseId, String warehouseName, int productId, String productName, int amount) {}
+
+    /**
+     * @param parts The parts of the order, in the order they were placed
+     */
+    public record Allocation(List<Part> parts) {
+        /**
+         * @return the names of the warehouses that received stock
+         */
+        public List<String> warehouseNames() {
+            return parts.stream().map(Part::warehouseName).distinct().toList();
+        }
+
+        /**
+         * @return one line per warehouse listing what it received
+         */
+        public String describe() {
+            return parts.stream()
+                    .collect(Collectors.groupingBy(Part::warehouseName, LinkedHashMap::new,
+                            Collectors.mapping(p -> p.amount() + " x " + p.productName(), Collectors.joining(", "))))
+                    .entrySet().stream()
+                    .map(e -> e.getKey() + ": " + e.getValue())
+                    .collect(Collectors.joining("\n"));
+        }
+    }
+
+    /**
+     * Allocates and stores the products of an order.
+     *
+     * @param order The delivered order
+     * @param preferredWarehouseId The warehouse to fill first, or 0 for none
+     * @return where the products were put
+     * @throws CustomException with code INSUFFICIENT_CAPACITY if all warehouses together lack the room
+     */
+    public Allocation allocate(Order order, int preferredWarehouseId) {
+        Map<Integer, Integer> ordered = new LinkedHashMap<>();
+        Map<Integer, String> names = new HashMap<>();
+        for (OrderProduct op : order.getOrderProducts()) {
+            if (op.getAmount() <= 0) continue;
+            ordered.merge(op.getProduct().getId(), op.getAmount(), Integer::sum);
+            names.put(op.getProduct().getId(), op.getProduct().getName());
+        }
+        if (ordered.isEmpty())
+            throw new CustomException("The order has no products to deliver.", "EMPTY_ORDER");
+
+        Allocation allocation = OptimisticRetry.run(() -> {
+            Allocation planned = plan(ordered, names, preferredWarehouseId);
+            // warehouses are written in id order, so two deliveries cannot lock them crosswise
+            Map<Integer, Map<Integer, Integer>> byWarehouse = new TreeMap<>();
+            for (Part part : planned.parts())
+                byWarehouse.computeIfAbsent(part.warehouseId(), id -> new LinkedHashMap<>())
+                        .merge(part.productId(), part.amount(), Integer::sum);
+            deliveryAllocationDAO.allocate(byWarehouse, "order " + order.getId());
+            return planned;
+        });
+        for (Part part : allocation.parts())
+            barcodeIndex.invalidate(part.warehouseId());
+        return allocation;
+    }
+
+    private Allocation plan(Map<Integer, Integer> ordered, Map<Integer, String> names, int preferredWarehouseId) {
+        List<FreeCapacity> capacities = deliveryAllocationDAO.findFreeCapacities();
+        long needed = ordered.values().stream().mapToLong(Integer::longValue).sum();
+        long free = capacities.stream().mapToLong(FreeCapacity::free).sum();
+        if (needed > free)
+            throw new CustomException("The warehouses have room for " + free + " more units, but the order has "
+                    + needed + ". Please make room or add a warehouse.", "INSUFFICIENT_CAPACITY");
+
+        Map<Integer, Map<Integer, Integer>> locations = deliveryAllocationDAO.findStockLocations(ordered.keySet());
+        Map<Integer, Integer> remaining = new HashMap<>();
+        for (FreeCapacity capacity : capacities)
+            remaining.put(capacity.warehouseId(), capacity.free());
+
+        List<Map.Entry<Integer, Integer>> lines = new ArrayList<>(ordered.entrySet());
+        lines.sort(Map.Entry.<Integer, Integer>comparingByValue().reversed());
+
+        List<Part> parts = new ArrayList<>();
+        for (var line : lines) {
+            int productId = line.getKey();
+            int left = line.getValue();
+            Map<Integer, Integer> stocked = locations.getOrDefault(productId, Map.of());
+            List<FreeCapacity> candidates = new ArrayList<>(capacities);
+            candidates.sort(Comparator
+                    .comparing((FreeCapacity c) -> c.warehouseId() != preferredWarehouseId)
+                    .thenComparing(c -> -stocked.getOrDefault(c.warehouseId(), 0))
+                    .thenComparing(c -> -remaining.get(c.warehouseId())));
+            for (FreeCapacity candidate : candidates) {
+                if (left == 0) break;
+                int room = remaining.get(candidate.warehouseId());
+                int amount = Math.min(left, room);
+                if (amount == 0) continue;
+                parts.add(new Part(candidate.warehouseId(), candidate.name(), productId, names.get(productId), amount));
+                remaining.put(candidate.warehouseId(), room - amount);
+                left -= amount;
+            }
+        }
+        return new Allocation(parts);
+    }
+}
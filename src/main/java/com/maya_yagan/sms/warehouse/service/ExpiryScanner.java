@@ -0,0 +1,92 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.homepage.dao.NotificationDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLotDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLotDAO.ExpiringLot;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports lots that are about to expire or have expired.
+ * Every scan reads only the date range that is new since the previous scan from
+ * the expiry index of the lots, so a lot is reported once when it comes within
+ * {@value #WARNING_DAYS} days of its expiry and once when it expires, however
+ * large the catalog is. The first scan after start-up reports everything already
+ * in range.
+ *
+ * @author Maya Yagan
+ */
+public class ExpiryScanner {
+    private static final Log log = LogFactory.getLog(ExpiryScanner.class);
+    private static final int WARNING_DAYS = 7;
+    private static final ExpiryScanner instance = new ExpiryScanner();
+
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+    private final NotificationDAO notificationDAO = new NotificationDAO();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "expiry-scanner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The day of the last scan, null before the first one. */
+    private LocalDate lastScan;
+
+    private ExpiryScanner() {
+        scheduler.scheduleWithFixedDelay(this::scanQuietly, 1, 60, TimeUnit.MINUTES);
+    }
+
+    public static ExpiryScanner getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param days How many days ahead to look
+     * @return the lots expiring by then, expired ones included, earliest first
+     */
+    public List<ExpiringLot> getExpiringLots(int days) {
+        return stockLotDAO.findExpiring(null, LocalDate.now().plusDays(days));
+    }
+
+    /**
+     * Reports the lots that came within the warning period or expired since the
+     * last scan. Runs at most once a day.
+     *
+     * @return the number of notifications written
+     */
+    public synchronized int scan() {
+        LocalDate today = LocalDate.now();
+        if (today.equals(lastScan)) return 0;
+
+        List<String> messages = new ArrayList<>();
+        // a lot expires on the day after its expiry date
+        LocalDate expiredAfter = lastScan == null ? null : lastScan.minusDays(1);
+        for (ExpiringLot lot : stockLotDAO.findExpiring(expiredAfter, today.minusDays(1)))
+            messages.add(String.format("%d of %s in %s expired on %s. Take them off the shelf.",
+                    lot.quantity(), lot.productName(), lot.warehouseName(), lot.expirationDate()));
+        LocalDate warnedUntil = lastScan == null ? today.minusDays(1) : lastScan.plusDays(WARNING_DAYS);
+        for (ExpiringLot lot : stockLotDAO.findExpiring(warnedUntil, today.plusDays(WARNING_DAYS)))
+            messages.add(String.format("%d of %s in %s expire on %s.",
+                    lot.quantity(), lot.productName(), lot.warehouseName(), lot.expirationDate()));
+
+        if (!messages.isEmpty()) notificationDAO.insertSystemNotifications(messages);
+        lastScan = today;
+        return messages.size();
+    }
+
+    private void scanQuietly() {
+        try {
+            int reported = scan();
+            if (reported > 0) log.info("Reported " + reported + " expiring lots");
+        } catch (RuntimeException e) {
+            log.error("Expiry scan failed", e);
+        }
+    }
+}
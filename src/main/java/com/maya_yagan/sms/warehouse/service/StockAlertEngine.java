@@ -0,0 +1,137 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.homepage.dao.NotificationDAO;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns stock updates into low-stock and out-of-stock notifications.
+ * An alert is raised when a product crosses into a worse level (low, then out)
+ * in a warehouse, not on every update below the limit; the product has to go
+ * back above its limit, or be restocked, before it can alert again. Alerts are
+ * collected per product and warehouse and written together every
+ * {@value #WINDOW_SECONDS} seconds by a background thread, so a window holds at
+ * most one alert per product, showing its latest amount, and checkout only
+ * touches memory.
+ *
+ * <p>Levels are kept in memory, so after a restart the first update of a product
+ * that is already low raises one alert.</p>
+ *
+ * @author Maya Yagan
+ */
+public class StockAlertEngine {
+    private static final Log log = LogFactory.getLog(StockAlertEngine.class);
+    private static final long WINDOW_SECONDS = 30;
+    private static final StockAlertEngine instance = new StockAlertEngine();
+
+    private final NotificationDAO notificationDAO = new NotificationDAO();
+    private final Map<Long, Seen> seen = new ConcurrentHashMap<>();
+    private final Map<Long, Alert> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stock-alerts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private StockAlertEngine() {
+        writer.scheduleWithFixedDelay(this::flushQuietly, WINDOW_SECONDS, WINDOW_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static StockAlertEngine getInstance() {
+        return instance;
+    }
+
+    private enum Level {
+        OK, LOW, OUT;
+
+        static Level of(int amount, int limit) {
+            if (amount <= 0) return OUT;
+            return limit > 0 && amount <= limit ? LOW : OK;
+        }
+    }
+
+    /** The level and amount of a stock row at its last update. */
+    private record Seen(Level level, int amount) {}
+
+    private record Alert(Level level, String product, String unit, String warehouse, int amount) {
+        String message() {
+            if (level == Level.OUT)
+                return String.format("%s is out of stock in %s. Make an order ASAP!", product, warehouse);
+            return String.format("Low stock on %s: %d %s remaining in %s. Place a reorder ASAP!",
+                    product, amount, unit, warehouse);
+        }
+    }
+
+    /**
+     * Records the new amount of a stock row. Cheap enough to call from the
+     * checkout thread: nothing is written here.
+     *
+     * @param productWarehouse The stock row after the update
+     */
+    public void update(ProductWarehouse productWarehouse) {
+        Product product = productWarehouse.getProduct();
+        update(productWarehouse.getWarehouse().getId(), productWarehouse.getWarehouse().getName(),
+                product, productWarehouse.getAmount());
+    }
+
+    /**
+     * Records that a product was taken out of a warehouse altogether.
+     *
+     * @param warehouseId The warehouse
+     * @param warehouseName Its name, for the message
+     * @param product The product removed
+     */
+    public void removed(int warehouseId, String warehouseName, Product product) {
+        update(warehouseId, warehouseName, product, 0);
+    }
+
+    private void update(int warehouseId, String warehouseName, Product product, int amount) {
+        long key = ((long) warehouseId << 32) | (product.getId() & 0xFFFFFFFFL);
+        Level now = Level.of(amount, product.getMinLimit());
+        // compute is atomic per key, so two lanes selling the same product agree on the crossing
+        seen.compute(key, (k, last) -> {
+            // more stock than last time means a delivery came in between, which re-arms the alert
+            Level before = last == null || amount > last.amount ? Level.OK : last.level;
+            if (now == Level.OK) {
+                pending.remove(key);
+            } else if (pending.containsKey(key) || now.compareTo(before) > 0) {
+                pending.put(key, new Alert(now, product.getName(), product.getUnit().getShortName(),
+                        warehouseName, amount));
+            }
+            return new Seen(now, amount);
+        });
+    }
+
+    /**
+     * Writes the alerts collected so far.
+     *
+     * @return the number of notifications written
+     */
+    public int flush() {
+        List<String> messages = new ArrayList<>(pending.size());
+        for (Long key : pending.keySet()) {
+            Alert alert = pending.remove(key);
+            if (alert != null) messages.add(alert.message());
+        }
+        if (!messages.isEmpty()) notificationDAO.insertSystemNotifications(messages);
+        return messages.size();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Writing stock alerts failed", e);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.dao.StockImportDAO;
+import com.maya_yagan.sms.warehouse.dao.StockLotDAO;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Imports stock into warehouses from a CSV or TSV file.
+ * The file is read as a stream and handled in chunks of {@value #CHUNK_ROWS}
+ * rows, so memory use does not grow with the size of the file. For each chunk
+ * the barcodes are resolved in bulk and every warehouse gets one transaction
+ * that checks its capacity once and writes the rows in batches. A chunk that
+ * does not fit in a warehouse is rejected as a whole for that warehouse; chunks
+ * already imported stay imported.
+ *
+ * <p>Columns are barcode, amount and optionally the warehouse id and the expiry
+ * date of the lot (yyyy-MM-dd), in that order, or in any order under a header
+ * row naming them. Rows without an expiry date get the one set on the product. The delimiter is a tab if the
+ * first line has one, otherwise a semicolon or comma. Rows that cannot be
+ * imported are written to the reject file with their line number and reason.</p>
+ *
+ * @author Maya Yagan
+ */
+public class StockImportService {
+    private static final Log log = LogFactory.getLog(StockImportService.class);
+    static final int CHUNK_ROWS = 5000;
+
+    private final StockImportDAO stockImportDAO = new StockImportDAO();
+    private final BarcodeIndex barcodeIndex = BarcodeIndex.getInstance();
+
+    /**
+     * @param file The file to import
+     * @param warehouseId The warehouse for rows without a warehouse column, or 0 if every row has one
+     * @param rejectFile Where to write the rows that were not imported
+     * @return counts of the imported and rejected rows
+     * @throws CustomException if the file cannot be read or the reject file written
+     */
+    public ImportResult importStock(Path file, int warehouseId, Path rejectFile) {
+        long start = System.nanoTime();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             BufferedWriter rejects = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8)) {
+            Import run = new Import(warehouseId, stockImportDAO.findWarehouseIds(), rejects,
+                    "import " + file.getFileName());
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && line.startsWith("\uFEFF")) line = line.substring(1);
+                run.read(lineNumber, line);
+            }
+            run.flush();
+            ImportResult result = new ImportResult(run.rowsRead, run.rowsImported, run.rowsRejected,
+                    run.unitsImported, (System.nanoTime() - start) / 1_000_000, rejectFile);
+            log.info("Stock import of " + file.getFileName() + ": " + result);
+            return result;
+        } catch (IOException | UncheckedIOException e) {
+            throw new CustomException("The stock file could not be read: " + e.getMessage(), "IMPORT_FAILED");
+        }
+    }
+
+    /**
+     * @param rowsRead Data rows in the file
+     * @param rowsImported Rows added to stock
+     * @param rowsRejected Rows written to the reject file
+     * @param unitsImported Total amount added to stock
+     * @param elapsedMillis How long the import took
+     * @param rejectFile The reject file
+     */
+    public record ImportResult(long rowsRead, long rowsImported, long rowsRejected,
+                               long unitsImported, long elapsedMillis, Path rejectFile) {
+        @Override
+        public String toString() {
+            return String.format("%d rows read, %d imported (%d units), %d rejected in %d ms",
+                    rowsRead, rowsImported, unitsImported, rowsRejected, elapsedMillis);
+        }
+    }
+
+    private record Row(int lineNumber, String line, String barcode, int amount, int warehouseId, LocalDate expiry) {}
+
+    /**
+     * The state of one import: column layout, the current chunk and the counts.
+     */
+    private final class Import {
+        private final int defaultWarehouseId;
+        private final Set<Integer> warehouseIds;
+        private final BufferedWriter rejects;
+        private final String reference;
+        private final List<Row> chunk = new ArrayList<>(CHUNK_ROWS);
+        private final Set<Integer> touched = new HashSet<>();
+
+        private char delimiter;
+        private int barcodeColumn = 0, amountColumn = 1, warehouseColumn = 2, expiryColumn = 3;
+        private long rowsRead, rowsImported, rowsRejected, unitsImported;
+
+        private Import(int defaultWarehouseId, Set<Integer> warehouseIds, BufferedWriter rejects, String reference) {
+            this.defaultWarehouseId = defaultWarehouseId;
+            this.warehouseIds = warehouseIds;
+            this.rejects = rejects;
+            this.reference = reference;
+        }
+
+        private void read(int lineNumber, String line) throws IOException {
+            if (line.isBlank()) return;
+            if (delimiter == 0) {
+                delimiter = line.indexOf('\t') >= 0 ? '\t'
+                        : line.indexOf(';') >= 0 && line.indexOf(',') < 0 ? ';' : ',';
+                if (readHeader(split(line))) return;
+            }
+            rowsRead++;
+
+            List<String> fields = split(line);
+            String barcode = field(fields, barcodeColumn);
+            String amountText = field(fields, amountColumn);
+            String warehouseText = field(fields, warehouseColumn);
+            String expiryText = field(fields, expiryColumn);
+            if (barcode.isEmpty() || amountText.isEmpty()) {
+                reject(lineNumber, line, "missing barcode or amount");
+                return;
+            }
+
+            int amount, warehouseId;
+            try {
+                amount = Integer.parseInt(amountText);
+                warehouseId = warehouseText.isEmpty() ? defaultWarehouseId : Integer.parseInt(warehouseText);
+            } catch (NumberFormatException e) {
+                reject(lineNumber, line, "amount and warehouse must be whole numbers");
+                return;
+            }
+            if (amount <= 0) {
+                reject(lineNumber, line, "amount must be greater than 0");
+                return;
+            }
+            if (!warehouseIds.contains(warehouseId)) {
+                reject(lineNumber, line, warehouseId == 0 ? "no warehouse given" : "unknown warehouse " + warehouseId);
+                return;
+            }
+
+            LocalDate expiry;
+            try {
+                expiry = expiryText.isEmpty() ? null : LocalDate.parse(expiryText);
+            } catch (DateTimeParseException e) {
+                reject(lineNumber, line, "expiry must be a date like 2030-12-31");
+                return;
+            }
+
+            chunk.add(new Row(lineNumber, line, barcode, amount, warehouseId, expiry));
+            if (chunk.size() == CHUNK_ROWS) flush();
+        }
+
+        /**
+         * @return true if the line is a header row
+         */
+        private boolean readHeader(List<String> fields) {
+            int barcode = -1, amount = -1, warehouse = -1, expiry = -1;
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.get(i).trim().toLowerCase(Locale.ROOT).replace("_", "");
+                switch (name) {
+                    case "barcode" -> barcode = i;
+                    case "amount", "quantity" -> amount = i;
+                    case "warehouse", "warehouseid" -> warehouse = i;
+                    case "expiry", "expirydate", "expirationdate", "bestbefore" -> expiry = i;
+                    default -> {}
+                }
+            }
+            if (barcode < 0 || amount < 0) return false;
+            barcodeColumn = barcode;
+            amountColumn = amount;
+            warehouseColumn = warehouse;
+            expiryColumn = expiry;
+            return true;
+        }
+
+        private void flush() throws IOException {
+            if (chunk.isEmpty()) return;
+            Set<String> barcodes = new HashSet<>();
+            for (Row row : chunk) barcodes.add(row.barcode);
+            Map<String, Integer> productIds = stockImportDAO.findProductIdsByBarcode(barcodes);
+
+            Map<Integer, Map<Integer, Integer>> quantities = new LinkedHashMap<>();
+            Map<Integer, List<Row>> rows = new LinkedHashMap<>();
+            Map<Integer, List<StockLotDAO.Lot>> datedLots = new LinkedHashMap<>();
+            for (Row row : chunk) {
+                Integer productId = productIds.get(row.barcode);
+                if (productId == null) {
+                    reject(row.lineNumber, row.line, "unknown barcode " + row.barcode);
+                    continue;
+                }
+                quantities.computeIfAbsent(row.warehouseId, id -> new LinkedHashMap<>())
+                        .merge(productId, row.amount, Math::addExact);
+                rows.computeIfAbsent(row.warehouseId, id -> new ArrayList<>()).add(row);
+                if (row.expiry != null)
+                    datedLots.computeIfAbsent(row.warehouseId, id -> new ArrayList<>())
+                            .add(new StockLotDAO.Lot(productId, row.amount, row.expiry));
+            }
+
+            for (var entry : quantities.entrySet()) {
+                List<Row> warehouseRows = rows.get(entry.getKey());
+                try {
+                    stockImportDAO.addStock(entry.getKey(), entry.getValue(),
+                            datedLots.getOrDefault(entry.getKey(), List.of()), reference);
+                    touched.add(entry.getKey());
+                    rowsImported += warehouseRows.size();
+                    for (Row row : warehouseRows) unitsImported += row.amount;
+                } catch (CustomException e) {
+                    for (Row row : warehouseRows) reject(row.lineNumber, row.line, e.getMessage());
+                } catch (RuntimeException e) {
+                    log.error("Stock import into warehouse " + entry.getKey() + " failed", e);
+                    for (Row row : warehouseRows) reject(row.lineNumber, row.line, "database error");
+                }
+            }
+            chunk.clear();
+            for (int id : touched) barcodeIndex.invalidate(id);
+        }
+
+        private void reject(int lineNumber, String line, String reason) throws IOException {
+            rowsRejected++;
+            rejects.write(lineNumber + String.valueOf(delimiter) + quote(reason) + delimiter + line);
+            rejects.newLine();
+        }
+
+        private String quote(String text) {
+            return text.indexOf(delimiter) < 0 && text.indexOf('"') < 0
+                    ? text
+                    : '"' + text.replace("\"", "\"\"") + '"';
+        }
+
+        /**
+         * Splits a line at the delimiter, honouring double-quoted fields.
+         */
+        private List<String> split(String line) {
+            List<String> fields = new ArrayList<>(4);
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = !quoted;
+                    }
+                } else if (c == delimiter && !quoted) {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+
+    private static String field(List<String> fields, int column) {
+        return column >= 0 && column < fields.size() ? fields.get(column).trim() : "";
+    }
+}
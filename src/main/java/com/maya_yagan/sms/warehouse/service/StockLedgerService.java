@@ -0,0 +1,105 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.dao.StockLedgerDAO;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the stock movement ledger and keeps its snapshots current.
+ * The stock rows stay the place checkout reads amounts from; the ledger is the
+ * history they are a projection of. A snapshot is taken in the background once
+ * {@link #SNAPSHOT_EVERY} movements have been written since the last one, or
+ * after a day, so an "as of" query or rebuild never adds up more than about a
+ * day of movements.
+ *
+ * @author Maya Yagan
+ */
+public class StockLedgerService {
+    private static final Log log = LogFactory.getLog(StockLedgerService.class);
+    private static final long SNAPSHOT_EVERY = 10_000;
+    private static final Duration SNAPSHOT_MAX_AGE = Duration.ofDays(1);
+    private static final StockLedgerService instance = new StockLedgerService();
+
+    private final StockLedgerDAO stockLedgerDAO = new StockLedgerDAO();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stock-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private StockLedgerService() {
+        scheduler.scheduleWithFixedDelay(this::snapshotIfDue, 1, 60, TimeUnit.MINUTES);
+    }
+
+    public static StockLedgerService getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes a snapshot if none was taken yet, enough movements piled up or the
+     * last one is too old.
+     */
+    public void snapshotIfDue() {
+        try {
+            long since = stockLedgerDAO.movementsSinceSnapshot();
+            LocalDateTime last = stockLedgerDAO.lastSnapshotTime();
+            boolean due = since < 0 || since >= SNAPSHOT_EVERY
+                    || (since > 0 && last.isBefore(LocalDateTime.now().minus(SNAPSHOT_MAX_AGE)));
+            if (due) takeSnapshot();
+        } catch (RuntimeException e) {
+            log.error("Stock snapshot failed", e);
+        }
+    }
+
+    /**
+     * @return the number of snapshot rows written
+     */
+    public int takeSnapshot() {
+        long start = System.nanoTime();
+        int rows = stockLedgerDAO.takeSnapshot();
+        log.info(String.format("Stock snapshot of %d rows taken in %.1f ms", rows, (System.nanoTime() - start) / 1e6));
+        return rows;
+    }
+
+    /**
+     * @param warehouseId The warehouse
+     * @param at A past moment
+     * @return amount per product id the warehouse had at that moment
+     * @throws CustomException with code NO_HISTORY if the ledger does not go back that far
+     */
+    public Map<Integer, Integer> getStockAsOf(int warehouseId, LocalDateTime at) {
+        return stockLedgerDAO.getAmountsAsOf(warehouseId, at);
+    }
+
+    /**
+     * @param warehouseId The warehouse
+     * @return the products whose stock row disagrees with the ledger, e.g. after
+     *         a change made directly in the database
+     */
+    public List<StockLedgerDAO.Drift> findDrift(int warehouseId) {
+        return stockLedgerDAO.findDrift(warehouseId);
+    }
+
+    /**
+     * Sets the stock rows of a warehouse back to what the ledger says.
+     *
+     * @param warehouseId The warehouse
+     * @return the rows that were corrected
+     */
+    public List<StockLedgerDAO.Drift> rebuild(int warehouseId) {
+        List<StockLedgerDAO.Drift> corrected = stockLedgerDAO.rebuild(warehouseId);
+        BarcodeIndex.getInstance().invalidate(warehouseId);
+        if (!corrected.isEmpty())
+            log.warn("Rebuilt " + corrected.size() + " stock rows of warehouse " + warehouseId + " from the ledger");
+        return corrected;
+    }
+}
@@ -0,0 +1,232 @@
+package com.maya_yagan.sms.warehouse.service;
+
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds stock for products that are in a basket but not paid for yet, so two
+ * lanes cannot both sell the last units of a product.
+ * Each product in a warehouse has its own counter of stock and held quantity,
+ * packed into one AtomicLong and updated with compare-and-set, so lanes never
+ * wait on each other. A hold that is not renewed expires after {@link #TTL_MINUTES}
+ * minutes, which frees the stock of baskets that were abandoned.
+ *
+ * @author Maya Yagan
+ */
+public class StockReservationService {
+    private static final long TTL_MINUTES = 15;
+    private static final StockReservationService instance = new StockReservationService();
+
+    private final Map<Long, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Map<Long, Hold>> holds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "stock-hold-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private StockReservationService() {
+        sweeper.scheduleWithFixedDelay(this::expireHolds, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public static StockReservationService getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return a new id for a basket that will hold stock
+     */
+    public String newHolder() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Sets the quantity a basket holds of a product, replacing what it held before.
+     *
+     * @param holder The basket holding the stock
+     * @param productWarehouse The product being bought
+     * @param quantity The quantity in the basket
+     * @throws CustomException if the other baskets leave too little stock
+     */
+    public void reserve(String holder, ProductWarehouse productWarehouse, double quantity) {
+        long key = key(productWarehouse);
+        int wanted = (int) quantity; // stock is decremented by whole units at checkout
+        Counter counter = counter(productWarehouse);
+
+        while (true) {
+            Map<Long, Hold> basket = holds.computeIfAbsent(holder, h -> new ConcurrentHashMap<>());
+            synchronized (basket) {
+                // the sweeper or a release may have dropped the basket while we waited for its lock
+                if (holds.get(holder) != basket) continue;
+                Hold hold = basket.get(key);
+                int held = hold == null ? 0 : hold.quantity;
+                if (!counter.hold(wanted - held)) {
+                    int available = Math.max(0, counter.available() + held);
+                    throw new CustomException(
+                            "Only " + available + " " + productWarehouse.getProduct().getUnit().getShortName()
+                                    + " of " + productWarehouse.getProduct().getName()
+                                    + " are left. The rest is in other baskets.",
+                            "INSUFFICIENT_STOCK");
+                }
+                basket.put(key, new Hold(counter, wanted, expiry()));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives back what a basket held of a product.
+     *
+     * @param holder The basket holding the stock
+     * @param productWarehouse The product removed from the basket
+     */
+    public void release(String holder, ProductWarehouse productWarehouse) {
+        Map<Long, Hold> basket = holds.get(holder);
+        if (basket == null) return;
+        synchronized (basket) {
+            Hold hold = basket.remove(key(productWarehouse));
+            if (hold != null) hold.counter.hold(-hold.quantity);
+        }
+    }
+
+    /**
+     * Gives back everything a basket held.
+     *
+     * @param holder The basket holding the stock
+     */
+    public void releaseAll(String holder) {
+        Map<Long, Hold> basket = holds.remove(holder);
+        if (basket == null) return;
+        synchronized (basket) {
+            basket.values().forEach(hold -> hold.counter.hold(-hold.quantity));
+            basket.clear();
+        }
+    }
+
+    /**
+     * Turns the holds of a paid basket into sold stock.
+     *
+     * @param holder The basket that was paid for
+     */
+    public void commit(String holder) {
+        Map<Long, Hold> basket = holds.remove(holder);
+        if (basket == null) return;
+        synchronized (basket) {
+            basket.values().forEach(hold -> hold.counter.sell(hold.quantity));
+            basket.clear();
+        }
+    }
+
+    /**
+     * @param productWarehouse The product
+     * @return how much of the product is not held by any basket
+     */
+    public int available(ProductWarehouse productWarehouse) {
+        return counter(productWarehouse).available();
+    }
+
+    private Counter counter(ProductWarehouse productWarehouse) {
+        Counter counter = counters.computeIfAbsent(key(productWarehouse),
+                k -> new Counter(productWarehouse.getAmount(), productWarehouse.getVersion()));
+        counter.refresh(productWarehouse.getAmount(), productWarehouse.getVersion());
+        return counter;
+    }
+
+    private void expireHolds() {
+        long now = System.currentTimeMillis();
+        for (var entry : holds.entrySet()) {
+            Map<Long, Hold> basket = entry.getValue();
+            synchronized (basket) {
+                basket.values().removeIf(hold -> {
+                    if (hold.expiresAt > now) return false;
+                    hold.counter.hold(-hold.quantity);
+                    return true;
+                });
+                if (basket.isEmpty()) holds.remove(entry.getKey(), basket);
+            }
+        }
+    }
+
+    private static long expiry() {
+        return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(TTL_MINUTES);
+    }
+
+    private static long key(ProductWarehouse productWarehouse) {
+        return ((long) productWarehouse.getWarehouse().getId() << 32) | (productWarehouse.getProduct().getId() & 0xFFFFFFFFL);
+    }
+
+    private record Hold(Counter counter, int quantity, long expiresAt) {}
+
+    /**
+     * Stock and held quantity of one product in one warehouse, packed as
+     * (stock << 32 | held) so both change in a single compare-and-set.
+     */
+    private static final class Counter {
+        private final AtomicLong state;
+        private final AtomicInteger version;
+
+        Counter(int stock, int version) {
+            this.state = new AtomicLong(pack(stock, 0));
+            this.version = new AtomicInteger(version);
+        }
+
+        int available() {
+            long s = state.get();
+            return stock(s) - held(s);
+        }
+
+        /**
+         * Adds to the held quantity. An increase only succeeds if it fits in the
+         * stock not held by others; a decrease always succeeds.
+         */
+        boolean hold(int delta) {
+            while (true) {
+                long s = state.get();
+                int held = held(s) + delta;
+                if (delta > 0 && held > stock(s)) return false;
+                if (state.compareAndSet(s, pack(stock(s), Math.max(0, held)))) return true;
+            }
+        }
+
+        void sell(int quantity) {
+            while (true) {
+                long s = state.get();
+                long next = pack(Math.max(0, stock(s) - quantity), Math.max(0, held(s) - quantity));
+                if (state.compareAndSet(s, next)) return;
+            }
+        }
+
+        /**
+         * Takes the stock from a copy of the row that is newer than any seen before.
+         */
+        void refresh(int stock, int rowVersion) {
+            int seen = version.get();
+            if (rowVersion <= seen || !version.compareAndSet(seen, rowVersion)) return;
+            while (true) {
+                long s = state.get();
+                if (state.compareAndSet(s, pack(stock, held(s)))) return;
+            }
+        }
+
+        private static long pack(int stock, int held) {
+            return ((long) stock << 32) | (held & 0xFFFFFFFFL);
+        }
+
+        private static int stock(long state) {
+            return (int) (state >>> 32);
+        }
+
+        private static int held(long state) {
+            return (int) state;
+        }
+    }
+}
@@ -1,90 +1,125 @@
 package com.maya_yagan.sms.warehouse.service;
 
-import com.maya_yagan.sms.homepage.service.HomePageService;
 import com.maya_yagan.sms.order.model.Order;
-import com.maya_yagan.sms.order.model.OrderProduct;
 import com.maya_yagan.sms.payment.model.Receipt;
 import com.maya_yagan.sms.payment.model.ReceiptItem;
 import com.maya_yagan.sms.product.model.Product;
 import com.maya_yagan.sms.product.service.ProductService;
 import com.maya_yagan.sms.util.CustomException;
 import com.maya_yagan.sms.common.ValidationService;
+import com.maya_yagan.sms.warehouse.dao.StockLotDAO;
 import com.maya_yagan.sms.warehouse.dao.WarehouseDAO;
 import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
 import com.maya_yagan.sms.warehouse.model.Warehouse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public class WarehouseService {
+    private static final Log log = LogFactory.getLog(WarehouseService.class);
+
     private final WarehouseDAO warehouseDAO = new WarehouseDAO();
     private final ValidationService validationService = new ValidationService();
     private final ProductService productService = new ProductService();
-    private final HomePageService homePageService = new HomePageService();
+    private final BarcodeIndex barcodeIndex = BarcodeIndex.getInstance();
+    private final StockAlertEngine stockAlerts = StockAlertEngine.getInstance();
+    private final DeliveryAllocator deliveryAllocator = new DeliveryAllocator();
+    private final StockLotDAO stockLotDAO = new StockLotDAO();
+    private static final int NAME_MATCHES = 50;
+    private static final int NAME_SUGGESTIONS = 5;
 
     public List<Warehouse> getAllWarehouses() { return warehouseDAO.getWarehouses(); }
 
-    public Set<Product> getFilteredWarehouseProducts(Warehouse warehouse, String categoryName){
-        Set<Product> categoryFilteredProducts = productService.getFilteredProductsByCategory(categoryName);
-
-        return warehouseDAO.getProductWithWarehouse(warehouse)
-                .stream()
-                .filter(categoryFilteredProducts::contains)
-                .collect(Collectors.toSet());
-    }
-
+    /**
+     * Filters the stock rows of a warehouse snapshot by category. Only the ids of
+     * the matching products are read from the database; the rows returned are
+     * the snapshot's own, so lanes keep working on the same objects.
+     *
+     * @param warehouse The warehouse snapshot
+     * @param categoryName The category, or "All Categories"
+     * @return the rows of the snapshot in that category
+     */
     public List<ProductWarehouse> getProductWarehousesByCategory(Warehouse warehouse, String categoryName) {
         Set<ProductWarehouse> all = warehouse.getProductWarehouses();
-        Set<Integer> filteredIds = getFilteredWarehouseProducts(warehouse, categoryName)
-                .stream()
-                .map(Product::getId)
-                .collect(Collectors.toSet());
+        if ("All Categories".equals(categoryName))
+            return List.copyOf(all);
+        Set<Integer> filteredIds = warehouseDAO.getProductIdsInCategory(warehouse.getId(), categoryName);
         return all.stream()
                 .filter(pw -> filteredIds.contains(pw.getProduct().getId()))
                 .toList();
     }
 
+    /**
+     * @param warehouse The warehouse
+     * @return the earliest expiry date of each product's lots, for products with dated lots
+     */
+    public Map<Integer, LocalDate> getEarliestExpiry(Warehouse warehouse){
+        return stockLotDAO.findEarliestExpiry(warehouse.getId());
+    }
+
     public void deleteWarehouse(int id){
         warehouseDAO.deleteWarehouse(id);
     }
 
     public void deleteProductFromWarehouse(Warehouse warehouse, Product product){
         warehouseDAO.deleteProductFromWarehouse(warehouse, product);
-        String msg = String.format(
-                "%s is out of stock in %s. Make an order ASAP!",
-                product.getName(), warehouse.getName());
-        homePageService.notify(msg, true, true);
+        barcodeIndex.remove(warehouse.getId(), product);
+        stockAlerts.removed(warehouse.getId(), warehouse.getName(), product);
     }
 
     public int calculateTotalProducts(Warehouse warehouse){
-        if(warehouse.getProductWarehouses() == null) return 0;
-        return warehouse.getProductWarehouses()
-                .stream()
-                .mapToInt(ProductWarehouse::getAmount)
-                .sum();
+        return warehouse.getOccupancy();
     }
 
+    /**
+     * Renames or resizes a warehouse. Whether the stock still fits the new
+     * capacity is checked against the database, not the snapshot, which may be stale.
+     *
+     * @param warehouse The warehouse snapshot, updated once the change is saved
+     * @param name The new name
+     * @param capacity The new capacity as typed
+     */
     public void updateWarehouse(Warehouse warehouse, String name, String capacity){
         int newCapacity = validationService.parseAndValidateInt(capacity, "capacity");
-        int totalProducts = calculateTotalProducts(warehouse);
+        validationService.validateWarehouse(name, newCapacity);
+        warehouseDAO.updateWarehouseDetails(warehouse.getId(), name, newCapacity);
         warehouse.setName(name);
         warehouse.setCapacity(newCapacity);
-        validationService.validateWarehouse(name, newCapacity, totalProducts);
-        warehouseDAO.updateWarehouse(warehouse);
     }
 
     public void updateProductStock(Warehouse warehouse, ProductWarehouse productWarehouse, int newTotalForProduct){
-        int currentQty = productWarehouse.getAmount();
-        int delta      = newTotalForProduct - currentQty;
-        int freeSpace = warehouse.getCapacity() - calculateTotalProducts(warehouse);
+        if (newTotalForProduct < 0)
+            throw new CustomException("The amount cannot be negative.", "INVALID_NUMBER");
 
-        if (delta > 0)
-            validationService.validateStockAmount(delta, freeSpace);
+        // the capacity check happens in the same statement as the occupancy update
+        warehouseDAO.setProductAmount(productWarehouse, newTotalForProduct);
+        stockAlerts.update(productWarehouse);
+    }
 
-        productWarehouse.setAmount(newTotalForProduct);
-        warehouseDAO.updateWarehouse(warehouse);
-        checkStock(productWarehouse);
+    /**
+     * Copies stock rows saved by another unit of work into the warehouse snapshot.
+     * Rows the snapshot does not have yet are picked up on its next reload.
+     *
+     * @param warehouse The warehouse snapshot
+     * @param saved The rows as they are now in the database
+     */
+    public void syncStock(Warehouse warehouse, List<ProductWarehouse> saved){
+        Map<Integer, ProductWarehouse> byProduct = new LinkedHashMap<>();
+        for (ProductWarehouse pw : saved)
+            byProduct.put(pw.getProduct().getId(), pw);
+        for (ProductWarehouse pw : warehouse.getProductWarehouses()) {
+            ProductWarehouse row = byProduct.get(pw.getProduct().getId());
+            if (row == null) continue;
+            pw.setAmount(row.getAmount());
+            pw.setVersion(row.getVersion());
+        }
+        barcodeIndex.invalidate(warehouse.getId());
     }
 
     public void addWarehouse(String name, String capacity){
@@ -95,120 +130,172 @@ public class WarehouseService {
         warehouseDAO.insertWarehouse(warehouse);
     }
 
-    public void allocateOrder(Order order, Warehouse warehouse){
-        Warehouse fresh = warehouseDAO.getWarehouseById(warehouse.getId());
-        if(fresh == null) throw new CustomException("Warehouse not found", "NOT_FOUND");
-        int currentUsage = calculateTotalProducts(fresh);
-        int orderTotal = order.getOrderProducts()
-                .stream()
-                .mapToInt(OrderProduct::getAmount)
-                .sum();
-        if(currentUsage + orderTotal > fresh.getCapacity())
-            throw new CustomException(
-                    "This warehouse doesn't have enough capacity for this order. Please choose another warehouse.",
-                    "INSUFFICIENT_CAPACITY");
-
-        for(var op : order.getOrderProducts()){
-            fresh.getProductWarehouses().stream()
-                    .filter(pw -> pw.getProduct().equals(op.getProduct()))
-                    .findFirst()
-                    .ifPresentOrElse(
-                            pw -> pw.setAmount(pw.getAmount() + op.getAmount()),
-                            () -> fresh.getProductWarehouses()
-                                    .add(new ProductWarehouse(fresh, op.getProduct(), op.getAmount()))
-                    );
-        }
-        warehouseDAO.updateWarehouse(fresh);
+    /**
+     * Stores a delivered order, filling the chosen warehouse first and putting
+     * what does not fit into the others.
+     *
+     * @param order The delivered order
+     * @param warehouse The preferred warehouse
+     * @return where the products were put
+     */
+    public DeliveryAllocator.Allocation allocateOrder(Order order, Warehouse warehouse){
+        return deliveryAllocator.allocate(order, warehouse.getId());
     }
 
-    private void checkStock(ProductWarehouse pw) {
-        Product product = pw.getProduct();
-        Warehouse warehouse = pw.getWarehouse();
-        int amount = pw.getAmount();
-        int limit = product.getMinLimit();
-
-        if (amount == 0) {
-            String msg = String.format(
-                    "%s is out of stock in %s. Make an order ASAP!",
-                    product.getName(), warehouse.getName());
-            homePageService.notify(msg, true, true);
-            return;
+    /**
+     * Checks every warehouse's occupancy against its stock rows and corrects the
+     * ones that drifted, e.g. after stock was edited directly in the database.
+     *
+     * @return the warehouses that were out of step
+     */
+    public List<WarehouseDAO.OccupancyMismatch> verifyAndRepairOccupancy(){
+        List<WarehouseDAO.OccupancyMismatch> mismatches = warehouseDAO.findOccupancyMismatches();
+        if (!mismatches.isEmpty()) {
+            mismatches.forEach(m -> log.warn("Occupancy of " + m.name() + " was " + m.recorded()
+                    + ", actual stock is " + m.actual()));
+            warehouseDAO.repairOccupancy();
         }
+        return mismatches;
+    }
 
-        if (limit > 0 && amount <= limit) {
-            String msg = String.format(
-                    "Low stock on %s: %d %s remaining in %s. "
-                            + "Place a reorder ASAP!",
-                    product.getName(), amount, product.getUnit().getShortName(), warehouse.getName());
-            homePageService.notify(msg, true, true);
-        }
+    /**
+     * Puts stock that no lot covers into lots dated by its product's expiry date,
+     * so stock from before lots existed is not picked after every dated lot.
+     *
+     * @return the number of lots created
+     */
+    public int backfillStockLots(){
+        int created = stockLotDAO.backfill();
+        if (created > 0) log.info("Created " + created + " lots for stock without one");
+        return created;
     }
 
+    /**
+     * Finds the product of the warehouse with exactly the given name, ignoring
+     * case and accents.
+     *
+     * @param warehouse The warehouse snapshot to search in
+     * @param name The typed name
+     * @return the product-warehouse entry of that name, if the warehouse holds it
+     */
     public Optional<ProductWarehouse> findProductWarehouseByName(Warehouse warehouse, String name){
         if (warehouse == null) return Optional.empty();
+        return productService.findProductByName(name)
+                .map(product -> warehouse.getProductWarehouse(product.getId()));
+    }
 
-        return warehouse.getProductWarehouses()
-                .stream()
-                .filter(pw -> pw.getProduct()
-                        .getName()
-                        .equalsIgnoreCase(name))
-                .findFirst();
+    /**
+     * Suggests products of the warehouse for typed text that names none of them,
+     * using the product name index: prefixes first, then names within a typo.
+     *
+     * @param warehouse The warehouse snapshot to search in
+     * @param text The typed text
+     * @return at most {@value #NAME_SUGGESTIONS} product-warehouse entries, best match first
+     */
+    public List<ProductWarehouse> suggestProductWarehouses(Warehouse warehouse, String text){
+        List<ProductWarehouse> suggestions = new ArrayList<>();
+        if (warehouse == null) return suggestions;
+        for (Product product : productService.searchProductsByName(text, NAME_MATCHES)) {
+            ProductWarehouse pw = warehouse.getProductWarehouse(product.getId());
+            if (pw != null) suggestions.add(pw);
+            if (suggestions.size() == NAME_SUGGESTIONS) break;
+        }
+        return suggestions;
     }
 
     public Optional<ProductWarehouse> findProductWarehouseByBarcode(Warehouse warehouse, String barcode){
-        if (warehouse == null) return Optional.empty();
-
-        return warehouse.getProductWarehouses()
-                .stream()
-                .filter(pw -> barcode.equals(pw.getProduct().getBarcode()))
-                .findFirst();
+        return barcodeIndex.find(warehouse, barcode);
     }
 
-    public void decreaseReceiptItemFromWarehouse(Receipt receipt, Warehouse warehouse) {
+    /**
+     * Works out the stock a sale leaves in the in-memory warehouse snapshot,
+     * without changing the snapshot.
+     *
+     * @param warehouse The warehouse snapshot the sale is made from
+     * @param receipt The receipt being completed
+     * @return the new amount per stock row of the snapshot
+     * @throws CustomException if a product is missing or short in the snapshot
+     */
+    public Map<ProductWarehouse, Integer> planSaleFromSnapshot(Warehouse warehouse, Receipt receipt) {
+        Map<ProductWarehouse, Integer> newAmounts = new LinkedHashMap<>();
         for (ReceiptItem item : receipt.getItems()) {
             Product product = item.getProduct();
-            double quantity = item.getQuantity();
-
-            findProductWarehouseByName(warehouse, product.getName())
-                    .ifPresentOrElse(pw -> {
-                        int currentAmount = pw.getAmount();
-                        int newAmount = currentAmount - (int) quantity;
-                        if (newAmount < 0) {
-                            throw new CustomException("Insufficient stock for product: " + product.getName(), "INSUFFICIENT_STOCK");
-                        }
-                        if (newAmount == 0) {
-                            deleteProductFromWarehouse(warehouse, product);
-                        } else {
-                            updateProductStock(warehouse, pw, newAmount);
-                        }
-                    }, () -> {
-                        throw new CustomException("Product not found in warehouse: " + product.getName(), "PRODUCT_NOT_FOUND");
-                    });
+            ProductWarehouse pw = warehouse.getProductWarehouse(product.getId());
+            if (pw == null)
+                throw new CustomException("Product not found in warehouse: " + product.getName(), "PRODUCT_NOT_FOUND");
+
+            int newAmount = newAmounts.getOrDefault(pw, pw.getAmount()) - item.getQuantity().intValue();
+            if (newAmount < 0)
+                throw new CustomException("Insufficient stock for product: " + product.getName(), "INSUFFICIENT_STOCK");
+            newAmounts.put(pw, newAmount);
         }
+        return newAmounts;
+    }
+
+    /**
+     * Takes a journaled sale out of the in-memory warehouse snapshot so the lane
+     * sees the new stock before the sale reaches the database.
+     *
+     * @param newAmounts The amounts returned by {@link #planSaleFromSnapshot(Warehouse, Receipt)}
+     */
+    public void takeSaleFromSnapshot(Map<ProductWarehouse, Integer> newAmounts) {
+        newAmounts.forEach(ProductWarehouse::setAmount);
+    }
+
+    /**
+     * Passes rows decremented by a committed sale to the stock alerts.
+     *
+     * @param soldRows The product-warehouse rows after the decrement
+     */
+    public void applySale(List<ProductWarehouse> soldRows) {
+        for (ProductWarehouse pw : soldRows)
+            stockAlerts.update(pw);
     }
 
     public void addProductToWarehouse(Warehouse warehouse, Product product, int amount){
         warehouseDAO.addProductToWarehouse(warehouse.getId(), product.getId(), amount);
+        barcodeIndex.invalidate(warehouse.getId());
     }
 
     public void transferProduct(Warehouse           sourceWarehouse,
                                 ProductWarehouse     sourcePw,
                                 int                  amount,
                                 Warehouse            targetWarehouse) {
+        transferProducts(sourceWarehouse, Map.of(sourcePw, amount), targetWarehouse);
+    }
+
+    /**
+     * Moves several products to another warehouse in one transaction. Either
+     * all of them are moved or, if any is short or the target lacks room, none.
+     *
+     * @param sourceWarehouse The warehouse snapshot the stock is taken from
+     * @param amounts Quantity to move per stock row of the source
+     * @param targetWarehouse The warehouse the stock is moved to
+     */
+    public void transferProducts(Warehouse                      sourceWarehouse,
+                                 Map<ProductWarehouse, Integer>  amounts,
+                                 Warehouse                      targetWarehouse) {
 
         if (sourceWarehouse.getId() == targetWarehouse.getId())
             throw new CustomException("Please choose a different destination warehouse", "GENERAL");
 
         int freeSpaceInTarget = targetWarehouse.getCapacity()
                 - calculateTotalProducts(targetWarehouse);
+        int total = 0;
+        Map<Integer, Integer> quantities = new LinkedHashMap<>();
+        for (var entry : amounts.entrySet()) {
+            validationService.validateTransfer(entry.getKey().getAmount(),
+                    entry.getValue(),
+                    freeSpaceInTarget - total);
+            total += entry.getValue();
+            quantities.merge(entry.getKey().getProduct().getId(), entry.getValue(), Integer::sum);
+        }
 
-        validationService.validateTransfer(sourcePw.getAmount(),
-                amount,
-                freeSpaceInTarget);
-
-        warehouseDAO.transferProduct(sourcePw.getProduct().getId(),
-                amount,
+        warehouseDAO.transferProducts(quantities,
                 sourceWarehouse.getId(),
                 targetWarehouse.getId());
+
+        // the target may now hold products it did not before
+        barcodeIndex.invalidate(targetWarehouse.getId());
     }
 }
\ No newline at end of file
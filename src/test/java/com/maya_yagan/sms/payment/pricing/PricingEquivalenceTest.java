@@ -0,0 +1,156 @@
+package com.maya_yagan.sms.payment.pricing;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the long arithmetic of Money, Quantity and Rate gives the same
+ * cents as the BigDecimal code the checkout used before, on random prices,
+ * discounts, tax rates and quantities.
+ *
+ * @author Maya Yagan
+ */
+class PricingEquivalenceTest {
+    private static final int ROUNDS = 20_000;
+    private static final float[] TAX_RATES = {0f, 0.01f, 0.08f, 0.18f, 0.2f, 0.0725f};
+
+    private final Random random = new Random(42);
+
+    @Test
+    void discountedPriceMatchesBigDecimal() {
+        for (int i = 0; i < ROUNDS; i++) {
+            float price = price();
+            float discount = discount();
+
+            BigDecimal expected = oldDiscountedPrice(price, discount);
+            Money actual = Money.of(price).applyDiscount(Money.basisPoints(discount), RoundingMode.HALF_UP);
+
+            assertEquals(expected, actual.toBigDecimal(), "price " + price + ", discount " + discount);
+        }
+    }
+
+    @Test
+    void basketSubtotalAndTaxMatchBigDecimal() {
+        for (int i = 0; i < ROUNDS / 10; i++) {
+            BigDecimal expectedSubtotal = BigDecimal.ZERO;
+            BigDecimal expectedTax = BigDecimal.ZERO;
+            long grossSum = 0, taxSum = 0;
+
+            int lines = 1 + random.nextInt(30);
+            for (int l = 0; l < lines; l++) {
+                float price = price();
+                float discount = discount();
+                float taxRate = taxRate();
+                double quantity = quantity();
+
+                // PaymentService.calculateSubtotal and calculateTotalTax before the long arithmetic
+                BigDecimal unitPrice = oldDiscountedPrice(price, discount);
+                BigDecimal gross = unitPrice.multiply(BigDecimal.valueOf(quantity));
+                expectedSubtotal = expectedSubtotal.add(gross);
+                expectedTax = expectedTax.add(gross.multiply(BigDecimal.valueOf(taxRate))
+                        .setScale(2, RoundingMode.HALF_UP));
+
+                // Basket
+                long lineGross = Money.of(price).applyDiscount(Money.basisPoints(discount), RoundingMode.HALF_UP)
+                        .times(Quantity.of(quantity));
+                grossSum += lineGross;
+                taxSum += Rate.of(taxRate).applyToCents(lineGross, 5, RoundingMode.HALF_UP);
+            }
+
+            assertEquals(expectedSubtotal.setScale(2, RoundingMode.HALF_UP),
+                    Money.ofFraction(grossSum, 1000, RoundingMode.HALF_UP).toBigDecimal());
+            assertEquals(expectedTax.setScale(2, RoundingMode.HALF_UP), Money.ofCents(taxSum).toBigDecimal());
+        }
+    }
+
+    @Test
+    void refundTotalMatchesBigDecimalWheneverItCanRound() {
+        int rounded = 0;
+        for (int i = 0; i < ROUNDS / 10; i++) {
+            BigDecimal expected = BigDecimal.ZERO;
+            Rate.Accumulator total = new Rate.Accumulator(5);
+
+            int lines = 1 + random.nextInt(30);
+            for (int l = 0; l < lines; l++) {
+                BigDecimal unitPrice = oldDiscountedPrice(price(), discount());
+                float taxRate = taxRate();
+                double quantity = quantity();
+
+                // RefundService.calculateRefundTotalExact
+                expected = expected.add(unitPrice.multiply(BigDecimal.valueOf(quantity))
+                        .multiply(BigDecimal.valueOf(1 + taxRate)));
+                total.add(Money.of(unitPrice).times(Quantity.of(quantity)), Rate.of(1 + taxRate));
+            }
+
+            if (!total.canRound(RoundingMode.HALF_UP)) continue;
+            rounded++;
+            assertEquals(expected.setScale(2, RoundingMode.HALF_UP),
+                    Money.ofCents(total.toCents(RoundingMode.HALF_UP)).toBigDecimal());
+        }
+        // the exact fallback is for the rare sum right next to half a cent
+        assertTrue(rounded > ROUNDS / 20, "only " + rounded + " sums could be rounded in long arithmetic");
+    }
+
+    @Test
+    void divideRoundsLikeBigDecimal() {
+        for (RoundingMode mode : RoundingMode.values()) {
+            if (mode == RoundingMode.UNNECESSARY) continue;
+            for (int i = 0; i < ROUNDS; i++) {
+                long dividend = random.nextInt(2_000_001) - 1_000_000;
+                long divisor = 1 + random.nextInt(10_000);
+
+                long expected = BigDecimal.valueOf(dividend)
+                        .divide(BigDecimal.valueOf(divisor), 0, mode)
+                        .longValueExact();
+
+                assertEquals(expected, Money.divide(dividend, divisor, mode),
+                        dividend + " / " + divisor + " " + mode);
+            }
+        }
+    }
+
+    /**
+     * PaymentService.calculateDiscountedPrice before the long arithmetic.
+     */
+    private static BigDecimal oldDiscountedPrice(float price, float discount) {
+        BigDecimal p = BigDecimal.valueOf(price).setScale(2, RoundingMode.HALF_UP);
+        BigDecimal discountP = BigDecimal.valueOf(discount)
+                .divide(BigDecimal.valueOf(100), 4, RoundingMode.HALF_UP);
+        return p.multiply(BigDecimal.ONE.subtract(discountP)).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * Mostly prices in whole cents, sometimes a float with more decimals.
+     */
+    private float price() {
+        return random.nextInt(4) == 0
+                ? random.nextFloat() * 1000
+                : (1 + random.nextInt(100_000)) / 100f;
+    }
+
+    private float discount() {
+        return switch (random.nextInt(3)) {
+            case 0 -> 0f;
+            case 1 -> random.nextInt(51);
+            default -> random.nextFloat() * 50;
+        };
+    }
+
+    private float taxRate() {
+        return TAX_RATES[random.nextInt(TAX_RATES.length)];
+    }
+
+    /**
+     * Whole pieces or a weight with up to three decimals, as the basket keeps them.
+     */
+    private double quantity() {
+        return random.nextBoolean()
+                ? 1 + random.nextInt(20)
+                : (1 + random.nextInt(25_000)) / 1000.0;
+    }
+}
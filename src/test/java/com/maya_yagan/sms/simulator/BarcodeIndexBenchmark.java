@@ -0,0 +1,111 @@
+package com.maya_yagan.sms.simulator;
+
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.product.model.ProductUnit;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+import com.maya_yagan.sms.warehouse.service.BarcodeIndex;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures how long a barcode scan takes to find its product as the catalog of
+ * a warehouse grows, once with the linear search over the stock rows the scanner
+ * used to do and once with the {@link BarcodeIndex}. Products are made up in
+ * memory, so no database is needed.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.maya_yagan.sms.simulator.BarcodeIndexBenchmark \
+ *     -Dexec.args="[scans] [catalogSize...]"
+ * </pre>
+ *
+ * @author Maya Yagan
+ */
+public class BarcodeIndexBenchmark {
+    private final Warehouse warehouse;
+    private final String[] barcodes;
+
+    public BarcodeIndexBenchmark(int warehouseId, int productCount) {
+        this.warehouse = Fixtures.withId(new Warehouse("Warehouse " + warehouseId, Integer.MAX_VALUE, null), warehouseId);
+        Set<ProductWarehouse> stock = new HashSet<>();
+        this.barcodes = new String[productCount];
+        for (int i = 0; i < productCount; i++) {
+            Product product = Fixtures.withId(new Product("Product " + (i + 1), 1 + i % 50, LocalDate.now(), null,
+                    ProductUnit.PIECES), i + 1);
+            barcodes[i] = String.format("869%010d", i + 1);
+            product.setBarcode(barcodes[i]);
+            stock.add(new ProductWarehouse(warehouse, product, 100));
+        }
+        warehouse.setProductWarehouses(stock);
+    }
+
+    public static void main(String[] args) {
+        int scans = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1_000, 10_000, 50_000};
+
+        for (int i = 0; i < sizes.length; i++) {
+            BarcodeIndexBenchmark benchmark = new BarcodeIndexBenchmark(i + 1, sizes[i]);
+            // warm up both paths before measuring
+            benchmark.run(scans / 10, false);
+            benchmark.run(scans / 10, true);
+            System.out.println("Linear:  " + benchmark.run(scans, false));
+            System.out.println("Indexed: " + benchmark.run(scans, true));
+        }
+    }
+
+    /**
+     * Scans random barcodes of the catalog.
+     *
+     * @param scans How many barcodes to look up
+     * @param indexed Whether to use the index rather than the linear search
+     * @return the time per lookup
+     */
+    public Report run(int scans, boolean indexed) {
+        Random random = new Random(7);
+        BarcodeIndex index = BarcodeIndex.getInstance();
+        index.invalidate(warehouse.getId());
+        long[] times = new long[scans];
+        int found = 0;
+
+        for (int i = 0; i < scans; i++) {
+            String barcode = barcodes[random.nextInt(barcodes.length)];
+            long start = System.nanoTime();
+            Optional<ProductWarehouse> pw = indexed ? index.find(warehouse, barcode) : scan(barcode);
+            times[i] = System.nanoTime() - start;
+            if (pw.isPresent()) found++;
+        }
+        Arrays.sort(times);
+        return new Report(scans, barcodes.length, Arrays.stream(times).average().orElse(0),
+                times[Math.max(0, (int) Math.ceil(0.99 * scans) - 1)], found);
+    }
+
+    private Optional<ProductWarehouse> scan(String barcode) {
+        return warehouse.getProductWarehouses()
+                .stream()
+                .filter(pw -> barcode.equals(pw.getProduct().getBarcode()))
+                .findFirst();
+    }
+
+    /**
+     * @param scans Lookups measured
+     * @param products Products in the warehouse
+     * @param averageNanos Average time per lookup, the first one building the index included
+     * @param p99Nanos 99th percentile of the time per lookup
+     * @param found Lookups that found their product, to compare both runs
+     */
+    public record Report(int scans, int products, double averageNanos, long p99Nanos, int found) {
+        @Override
+        public String toString() {
+            return String.format("%d scans in %d products: avg %.0f ns, p99 %d ns, %d found",
+                    scans, products, averageNanos, p99Nanos, found);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.maya_yagan.sms.simulator;
+
+import com.maya_yagan.sms.payment.model.Basket;
+import com.maya_yagan.sms.payment.model.CompactBasket;
+import com.maya_yagan.sms.payment.service.CheckoutEngine;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.product.model.ProductUnit;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated per scan by the old {@code Map<ProductWarehouse, Double>}
+ * basket, the {@link CompactBasket} on its own and the full {@link Basket} with
+ * pricing. A scan adds one unit of a random product, as the barcode field does.
+ * Products are made up in memory, so no database is needed.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.maya_yagan.sms.simulator.BasketAllocationBenchmark \
+ *     -Dexec.args="[linesPerBasket] [baskets]"
+ * </pre>
+ *
+ * @author Maya Yagan
+ */
+public class BasketAllocationBenchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final ProductWarehouse[] products;
+    private final int linesPerBasket;
+
+    public BasketAllocationBenchmark(int productCount, int linesPerBasket) {
+        this.products = new ProductWarehouse[productCount];
+        for (int i = 0; i < productCount; i++) {
+            Product product = Fixtures.withId(
+                    new Product("Product " + (i + 1), 1 + i % 50, LocalDate.now(), null, ProductUnit.PIECES), i + 1);
+            product.setTaxPercentage(0.18f);
+            products[i] = new ProductWarehouse(null, product, Integer.MAX_VALUE);
+        }
+        this.linesPerBasket = linesPerBasket;
+    }
+
+    public static void main(String[] args) {
+        int linesPerBasket = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int baskets = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        BasketAllocationBenchmark benchmark = new BasketAllocationBenchmark(linesPerBasket * 2, linesPerBasket);
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT, so escape analysis is in effect for the second
+            String prefix = round == 0 ? "warm-up " : "";
+            System.out.printf("%sLinkedHashMap: %.1f bytes/scan%n", prefix, benchmark.mapBasket(baskets));
+            System.out.printf("%sCompactBasket: %.1f bytes/scan%n", prefix, benchmark.compactBasket(baskets));
+            System.out.printf("%sBasket:        %.1f bytes/scan%n", prefix, benchmark.basket(baskets));
+        }
+    }
+
+    /**
+     * @return bytes allocated per scan by the map the basket used to be
+     */
+    public double mapBasket(int baskets) {
+        Random random = new Random(7);
+        Map<ProductWarehouse, Double> basket = new LinkedHashMap<>();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int b = 0; b < baskets; b++) {
+            for (int i = 0; i < linesPerBasket; i++) {
+                ProductWarehouse pw = products[random.nextInt(products.length)];
+                basket.put(pw, basket.getOrDefault(pw, 0.0) + 1);
+            }
+            basket.clear();
+        }
+        return perScan(before, baskets);
+    }
+
+    /**
+     * @return bytes allocated per scan by the compact table alone
+     */
+    public double compactBasket(int baskets) {
+        Random random = new Random(7);
+        CompactBasket<ProductWarehouse> basket = new CompactBasket<>(linesPerBasket);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int b = 0; b < baskets; b++) {
+            for (int i = 0; i < linesPerBasket; i++) {
+                ProductWarehouse pw = products[random.nextInt(products.length)];
+                int productId = pw.getProduct().getId();
+                basket.put(productId, pw, basket.getQuantityMilli(productId) + 1000);
+            }
+            basket.clear();
+        }
+        return perScan(before, baskets);
+    }
+
+    /**
+     * @return bytes allocated per scan by the checkout basket, pricing and totals included
+     */
+    public double basket(int baskets) {
+        Random random = new Random(7);
+        Basket basket = new Basket(CheckoutEngine::unitPrice);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int b = 0; b < baskets; b++) {
+            for (int i = 0; i < linesPerBasket; i++) {
+                ProductWarehouse pw = products[random.nextInt(products.length)];
+                basket.put(pw, basket.getQuantity(pw) + 1);
+            }
+            basket.clear();
+        }
+        return perScan(before, baskets);
+    }
+
+    private double perScan(long before, int baskets) {
+        return (threads.getCurrentThreadAllocatedBytes() - before) / (double) (baskets * linesPerBasket);
+    }
+}
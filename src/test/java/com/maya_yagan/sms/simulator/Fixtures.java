@@ -0,0 +1,30 @@
+package com.maya_yagan.sms.simulator;
+
+import java.lang.reflect.Field;
+
+/**
+ * Builds entities for the benchmarks, which run without a database. Ids are
+ * given by the database, so the entities have no setters for them and the
+ * benchmarks set them through reflection.
+ *
+ * @author Maya Yagan
+ */
+final class Fixtures {
+    private Fixtures() {}
+
+    /**
+     * @param entity A new entity with an {@code id} field
+     * @param id The id to give it
+     * @return the entity
+     */
+    static <T> T withId(T entity, int id) {
+        try {
+            Field field = entity.getClass().getDeclaredField("id");
+            field.setAccessible(true);
+            field.set(entity, id);
+            return entity;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot set the id of " + entity.getClass().getSimpleName(), e);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.maya_yagan.sms.simulator;
+
+import com.maya_yagan.sms.finance.dao.CashBoxDAO;
+import com.maya_yagan.sms.finance.model.CashBox;
+import com.maya_yagan.sms.payment.journal.JournalDrainer;
+import com.maya_yagan.sms.payment.journal.SalesJournal;
+import com.maya_yagan.sms.payment.model.PaymentMethod;
+import com.maya_yagan.sms.payment.service.CheckoutEngine;
+import com.maya_yagan.sms.user.dao.UserDAO;
+import com.maya_yagan.sms.user.model.User;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.warehouse.dao.WarehouseDAO;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a number of virtual checkout lanes against the {@link CheckoutEngine}
+ * and reports how many sales per second they complete and how long committing
+ * a sale takes. Each lane has its own warehouse snapshot and shares stock holds
+ * with the others, as separate tills do.
+ *
+ * <p>The sales are real: they go through the sales journal into the configured
+ * database and take stock out of the warehouse, so run it against a test
+ * database. A cash box must be open.</p>
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.maya_yagan.sms.simulator.LoadSimulator \
+ *     -Dexec.args="warehouseId cashierId [lanes] [seconds] [linesPerBasket]"
+ * </pre>
+ *
+ * @author Maya Yagan
+ */
+public class LoadSimulator {
+    private final CheckoutEngine engine = new CheckoutEngine();
+    private final int warehouseId;
+    private final User cashier;
+    private final CashBox cashBox;
+    private final int linesPerBasket;
+
+    public LoadSimulator(int warehouseId, User cashier, CashBox cashBox, int linesPerBasket) {
+        this.warehouseId = warehouseId;
+        this.cashier = cashier;
+        this.cashBox = cashBox;
+        this.linesPerBasket = linesPerBasket;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: LoadSimulator warehouseId cashierId [lanes] [seconds] [linesPerBasket]");
+            return;
+        }
+        int warehouseId = Integer.parseInt(args[0]);
+        int cashierId = Integer.parseInt(args[1]);
+        int lanes = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int linesPerBasket = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+        User cashier = new UserDAO().getUserById(cashierId);
+        CashBox cashBox = new CashBoxDAO().getOpenCashBox();
+        if (cashier == null || cashBox == null) {
+            System.out.println("The cashier must exist and a cash box must be open.");
+            return;
+        }
+
+        JournalDrainer.getInstance();
+        Report report = new LoadSimulator(warehouseId, cashier, cashBox, linesPerBasket).run(lanes, seconds);
+        System.out.println(report);
+
+        // give the drainer time to write the journaled sales to the database
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        while (!SalesJournal.getInstance().isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(500);
+        System.out.println(SalesJournal.getInstance().isEmpty()
+                ? "All sales were written to the database."
+                : "Some sales are still in the journal; they are written on the next start.");
+        System.exit(0);
+    }
+
+    /**
+     * Runs the lanes in parallel until the time is up or the warehouse is sold out.
+     *
+     * @param lanes The number of virtual lanes
+     * @param seconds How long to sell
+     * @return the measured throughput and latencies
+     */
+    public Report run(int lanes, int seconds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(lanes);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<LaneResult>> futures = new ArrayList<>();
+        for (int i = 0; i < lanes; i++)
+            futures.add(executor.submit(() -> runLane(deadline)));
+
+        List<LaneResult> results = new ArrayList<>();
+        for (Future<LaneResult> future : futures)
+            results.add(future.get());
+        executor.shutdown();
+        return Report.of(lanes, System.nanoTime() - start, results);
+    }
+
+    private LaneResult runLane(long deadline) {
+        Warehouse warehouse = new WarehouseDAO().getWarehouseById(warehouseId);
+        if (warehouse == null)
+            throw new CustomException("Warehouse " + warehouseId + " was not found.", "NOT_FOUND");
+        CheckoutEngine.Lane lane = engine.openLane(cashier, cashBox, warehouse);
+        List<ProductWarehouse> stock = new ArrayList<>(warehouse.getProductWarehouses());
+        LaneResult result = new LaneResult();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (System.nanoTime() < deadline) {
+            stock.removeIf(pw -> pw.getAmount() <= 0);
+            if (stock.isEmpty()) break;
+
+            for (int i = 0; i < linesPerBasket; i++) {
+                ProductWarehouse pw = stock.get(random.nextInt(stock.size()));
+                try {
+                    lane.add(pw, lane.getBasket().getQuantity(pw) + 1);
+                } catch (CustomException e) {
+                    result.held++;
+                }
+            }
+            // other lanes hold or sold everything this lane picked; its snapshot does not know yet
+            if (lane.getBasket().isEmpty()) continue;
+
+            long begin = System.nanoTime();
+            try {
+                lane.checkout(PaymentMethod.CASH, lane.getBasket().getTotal());
+                result.add(System.nanoTime() - begin);
+            } catch (CustomException e) {
+                result.failed++;
+                lane.cancel();
+            }
+        }
+        lane.cancel();
+        return result;
+    }
+
+    private static final class LaneResult {
+        private long[] latencies = new long[1024];
+        private int sales;
+        private int failed;
+        private int held;
+
+        private void add(long nanos) {
+            if (sales == latencies.length) latencies = Arrays.copyOf(latencies, sales * 2);
+            latencies[sales++] = nanos;
+        }
+    }
+
+    /**
+     * @param lanes The number of lanes that ran
+     * @param sales Completed sales
+     * @param failed Checkouts that failed
+     * @param held Products that could not be added because other lanes held them
+     * @param salesPerSecond Completed sales per second over all lanes
+     * @param p50Millis Median time to commit a sale
+     * @param p99Millis 99th percentile of the time to commit a sale
+     */
+    public record Report(int lanes, int sales, int failed, int held,
+                         double salesPerSecond, double p50Millis, double p99Millis) {
+
+        static Report of(int lanes, long elapsedNanos, List<LaneResult> results) {
+            int sales = 0, failed = 0, held = 0;
+            for (LaneResult r : results) {
+                sales += r.sales;
+                failed += r.failed;
+                held += r.held;
+            }
+            long[] all = new long[sales];
+            int i = 0;
+            for (LaneResult r : results) {
+                System.arraycopy(r.latencies, 0, all, i, r.sales);
+                i += r.sales;
+            }
+            Arrays.sort(all);
+            return new Report(lanes, sales, failed, held,
+                    sales / (elapsedNanos / 1e9),
+                    percentile(all, 0.50) / 1e6,
+                    percentile(all, 0.99) / 1e6);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lanes: %d sales (%.1f/s), %d failed, %d lines held by other lanes, "
+                    + "commit p50 %.2f ms, p99 %.2f ms", lanes, sales, salesPerSecond, failed, held, p50Millis, p99Millis);
+        }
+    }
+}
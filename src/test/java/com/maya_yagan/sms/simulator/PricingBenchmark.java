@@ -0,0 +1,187 @@
+package com.maya_yagan.sms.simulator;
+
+import com.maya_yagan.sms.payment.pricing.Money;
+import com.maya_yagan.sms.payment.pricing.Quantity;
+import com.maya_yagan.sms.payment.pricing.Rate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how long pricing a basket takes, once with the BigDecimal arithmetic
+ * the checkout used to do and once with the long fixed-point {@link Money},
+ * {@link Quantity} and {@link Rate}. Both paths start from the float fields of
+ * the products, take the discount off, and sum the subtotal and the tax rounded
+ * per line, as PaymentService did and Basket does. A second pair of runs starts
+ * from the unit price and tax rate already worked out per line, as Basket keeps
+ * them while quantities change, to time the arithmetic alone. Baskets are made
+ * up in memory, so no database is needed.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.maya_yagan.sms.simulator.PricingBenchmark \
+ *     -Dexec.args="[linesPerBasket] [baskets]"
+ * </pre>
+ *
+ * @author Maya Yagan
+ */
+public class PricingBenchmark {
+    private static final float[] TAX_RATES = {0f, 0.01f, 0.08f, 0.18f, 0.2f};
+
+    private final float[][] prices;
+    private final float[][] discounts;
+    private final float[][] taxRates;
+    private final double[][] quantities;
+    private final BigDecimal[][] unitPrices;
+    private final BigDecimal[][] rates;
+    private final Money[][] unitMoney;
+    private final Rate[][] rateOf;
+
+    public PricingBenchmark(int baskets, int linesPerBasket, long seed) {
+        Random random = new Random(seed);
+        prices = new float[baskets][linesPerBasket];
+        discounts = new float[baskets][linesPerBasket];
+        taxRates = new float[baskets][linesPerBasket];
+        quantities = new double[baskets][linesPerBasket];
+        unitPrices = new BigDecimal[baskets][linesPerBasket];
+        rates = new BigDecimal[baskets][linesPerBasket];
+        unitMoney = new Money[baskets][linesPerBasket];
+        rateOf = new Rate[baskets][linesPerBasket];
+        for (int b = 0; b < baskets; b++) {
+            for (int l = 0; l < linesPerBasket; l++) {
+                prices[b][l] = (1 + random.nextInt(100_000)) / 100f;
+                discounts[b][l] = random.nextBoolean() ? 0f : random.nextInt(51);
+                taxRates[b][l] = TAX_RATES[random.nextInt(TAX_RATES.length)];
+                quantities[b][l] = random.nextBoolean()
+                        ? 1 + random.nextInt(10)
+                        : (1 + random.nextInt(5_000)) / 1000.0;
+                unitPrices[b][l] = oldUnitPrice(prices[b][l], discounts[b][l]);
+                rates[b][l] = BigDecimal.valueOf(taxRates[b][l]);
+                unitMoney[b][l] = Money.of(prices[b][l])
+                        .applyDiscount(Money.basisPoints(discounts[b][l]), RoundingMode.HALF_UP);
+                rateOf[b][l] = Rate.of(taxRates[b][l]);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int linesPerBasket = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int baskets = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        PricingBenchmark benchmark = new PricingBenchmark(baskets, linesPerBasket, 11);
+        // warm up both paths before measuring
+        for (int i = 0; i < 3; i++) {
+            for (boolean cached : new boolean[]{false, true}) {
+                benchmark.run(false, cached);
+                benchmark.run(true, cached);
+            }
+        }
+        System.out.println("From product fields");
+        System.out.println("  BigDecimal:  " + benchmark.run(false, false));
+        System.out.println("  Fixed-point: " + benchmark.run(true, false));
+        System.out.println("From prices and rates kept per line");
+        System.out.println("  BigDecimal:  " + benchmark.run(false, true));
+        System.out.println("  Fixed-point: " + benchmark.run(true, true));
+    }
+
+    /**
+     * Prices every basket once.
+     *
+     * @param fixedPoint Whether to use Money, Quantity and Rate rather than BigDecimal
+     * @param cached Whether to start from the unit prices and tax rates worked out beforehand
+     * @return the time per basket, and the sum of all totals to compare the runs
+     */
+    public Report run(boolean fixedPoint, boolean cached) {
+        long[] times = new long[prices.length];
+        long totalCents = 0;
+        for (int b = 0; b < prices.length; b++) {
+            long start = System.nanoTime();
+            long cents = cached
+                    ? (fixedPoint ? fixedPointTotalCached(b) : bigDecimalTotalCached(b))
+                    : (fixedPoint ? fixedPointTotal(b) : bigDecimalTotal(b));
+            times[b] = System.nanoTime() - start;
+            totalCents += cents;
+        }
+        Arrays.sort(times);
+        return new Report(prices.length, prices[0].length, Arrays.stream(times).average().orElse(0),
+                times[Math.max(0, (int) Math.ceil(0.99 * times.length) - 1)], totalCents);
+    }
+
+    /**
+     * PaymentService.calculateSubtotal plus calculateTotalTax before the long arithmetic.
+     */
+    private long bigDecimalTotal(int b) {
+        BigDecimal subtotal = BigDecimal.ZERO;
+        BigDecimal tax = BigDecimal.ZERO;
+        for (int l = 0; l < prices[b].length; l++) {
+            BigDecimal gross = oldUnitPrice(prices[b][l], discounts[b][l])
+                    .multiply(BigDecimal.valueOf(quantities[b][l]));
+            subtotal = subtotal.add(gross);
+            tax = tax.add(gross.multiply(BigDecimal.valueOf(taxRates[b][l])).setScale(2, RoundingMode.HALF_UP));
+        }
+        return subtotal.setScale(2, RoundingMode.HALF_UP).add(tax).unscaledValue().longValueExact();
+    }
+
+    private long bigDecimalTotalCached(int b) {
+        BigDecimal subtotal = BigDecimal.ZERO;
+        BigDecimal tax = BigDecimal.ZERO;
+        for (int l = 0; l < prices[b].length; l++) {
+            BigDecimal gross = unitPrices[b][l].multiply(BigDecimal.valueOf(quantities[b][l]));
+            subtotal = subtotal.add(gross);
+            tax = tax.add(gross.multiply(rates[b][l]).setScale(2, RoundingMode.HALF_UP));
+        }
+        return subtotal.setScale(2, RoundingMode.HALF_UP).add(tax).unscaledValue().longValueExact();
+    }
+
+    /**
+     * What Basket does for the same lines.
+     */
+    private long fixedPointTotal(int b) {
+        long grossSum = 0, taxSum = 0;
+        for (int l = 0; l < prices[b].length; l++) {
+            long gross = Money.of(prices[b][l])
+                    .applyDiscount(Money.basisPoints(discounts[b][l]), RoundingMode.HALF_UP)
+                    .times(Quantity.of(quantities[b][l]));
+            grossSum += gross;
+            taxSum += Rate.of(taxRates[b][l]).applyToCents(gross, 5, RoundingMode.HALF_UP);
+        }
+        return Money.ofFraction(grossSum, 1000, RoundingMode.HALF_UP).getCents() + taxSum;
+    }
+
+    private long fixedPointTotalCached(int b) {
+        long grossSum = 0, taxSum = 0;
+        for (int l = 0; l < prices[b].length; l++) {
+            long gross = unitMoney[b][l].times(Quantity.of(quantities[b][l]));
+            grossSum += gross;
+            taxSum += rateOf[b][l].applyToCents(gross, 5, RoundingMode.HALF_UP);
+        }
+        return Money.ofFraction(grossSum, 1000, RoundingMode.HALF_UP).getCents() + taxSum;
+    }
+
+    /**
+     * PaymentService.calculateDiscountedPrice before the long arithmetic.
+     */
+    private static BigDecimal oldUnitPrice(float price, float discount) {
+        BigDecimal p = BigDecimal.valueOf(price).setScale(2, RoundingMode.HALF_UP);
+        BigDecimal discountP = BigDecimal.valueOf(discount)
+                .divide(BigDecimal.valueOf(100), 4, RoundingMode.HALF_UP);
+        return p.multiply(BigDecimal.ONE.subtract(discountP)).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * @param baskets Baskets priced
+     * @param lines Lines per basket
+     * @param averageNanos Average time per basket
+     * @param p99Nanos 99th percentile of the time per basket
+     * @param totalCents Sum of the basket totals, the same for every run
+     */
+    public record Report(int baskets, int lines, double averageNanos, long p99Nanos, long totalCents) {
+        @Override
+        public String toString() {
+            return String.format("%d baskets of %d lines: avg %.0f ns, p99 %d ns, total %d cents",
+                    baskets, lines, averageNanos, p99Nanos, totalCents);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.maya_yagan.sms.simulator;
+
+import com.maya_yagan.sms.payment.model.Basket;
+import com.maya_yagan.sms.payment.service.CheckoutEngine;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.product.model.ProductUnit;
+import com.maya_yagan.sms.promotion.model.Promotion;
+import com.maya_yagan.sms.promotion.model.PromotionType;
+import com.maya_yagan.sms.promotion.service.PromotionCatalog;
+import com.maya_yagan.sms.promotion.service.PromotionEvaluator;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures how long a scan takes with thousands of promotions, once with the
+ * incremental evaluation the checkout uses and once re-evaluating the promotions
+ * of the whole basket after every scan. Products and promotions are made up in
+ * memory, so no database is needed.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.maya_yagan.sms.simulator.PromotionBenchmark \
+ *     -Dexec.args="[products] [promotions] [linesPerBasket] [baskets]"
+ * </pre>
+ *
+ * @author Maya Yagan
+ */
+public class PromotionBenchmark {
+    private static final PromotionType[] TYPES = PromotionType.values();
+
+    private final List<ProductWarehouse> products;
+    private final PromotionCatalog catalog;
+    private final int linesPerBasket;
+
+    public PromotionBenchmark(int productCount, int promotionCount, int linesPerBasket, long seed) {
+        Random random = new Random(seed);
+        this.products = new ArrayList<>(productCount);
+        for (int i = 1; i <= productCount; i++) {
+            Product product = Fixtures.withId(new Product("Product " + i, 1 + random.nextInt(5000) / 100f,
+                    LocalDate.now(), null, ProductUnit.PIECES), i);
+            product.setTaxPercentage(random.nextBoolean() ? 0.08f : 0.18f);
+            products.add(new ProductWarehouse(null, product, Integer.MAX_VALUE));
+        }
+
+        List<Promotion> promotions = new ArrayList<>(promotionCount);
+        for (int i = 1; i <= promotionCount; i++) {
+            PromotionType type = TYPES[random.nextInt(TYPES.length)];
+            Set<Integer> productIds = new LinkedHashSet<>();
+            int size = type == PromotionType.BUNDLE ? 2 + random.nextInt(2) : 1 + random.nextInt(3);
+            while (productIds.size() < size)
+                productIds.add(1 + random.nextInt(productCount));
+
+            Promotion promotion = Fixtures.withId(new Promotion("Promotion " + i, type, productIds), i);
+            promotion.setBuyQuantity(3);
+            promotion.setPayQuantity(2);
+            promotion.setBundlePrice(BigDecimal.valueOf(5 + random.nextInt(20)));
+            promotion.setPercentOff(5 + random.nextInt(30));
+            promotion.setStartTime(LocalTime.MIDNIGHT);
+            promotion.setEndTime(LocalTime.MIDNIGHT.minusMinutes(1));
+            promotions.add(promotion);
+        }
+        this.catalog = PromotionCatalog.of(promotions);
+        this.linesPerBasket = linesPerBasket;
+    }
+
+    public static void main(String[] args) {
+        int productCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int promotionCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int linesPerBasket = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        int baskets = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+        PromotionBenchmark benchmark = new PromotionBenchmark(productCount, promotionCount, linesPerBasket, 42);
+        // warm up both paths before measuring
+        benchmark.run(baskets / 4, true);
+        benchmark.run(baskets / 4, false);
+        System.out.println("Incremental: " + benchmark.run(baskets, true));
+        System.out.println("Full:        " + benchmark.run(baskets, false));
+    }
+
+    /**
+     * Scans the given number of baskets, one unit at a time.
+     *
+     * @param baskets How many baskets to scan
+     * @param incremental Whether to evaluate only the scanned product's promotions
+     * @return the time per scan
+     */
+    public Report run(int baskets, boolean incremental) {
+        Random random = new Random(7);
+        long[] scans = new long[baskets * linesPerBasket];
+        int count = 0;
+        long discount = 0;
+
+        for (int b = 0; b < baskets; b++) {
+            PromotionEvaluator evaluator = new PromotionEvaluator(catalog);
+            Basket basket = incremental
+                    ? new Basket(CheckoutEngine::unitPrice, evaluator)
+                    : new Basket(CheckoutEngine::unitPrice);
+            Map<Integer, Basket.Line> lines = new HashMap<>();
+
+            for (int i = 0; i < linesPerBasket; i++) {
+                // a few products in a small range, so multi-buys and bundles trigger
+                ProductWarehouse pw = products.get(random.nextInt(Math.min(products.size(), 200)));
+                double quantity = basket.getQuantity(pw) + 1;
+
+                long start = System.nanoTime();
+                basket.put(pw, quantity);
+                if (!incremental) {
+                    for (Basket.Line line : basket.getLines())
+                        lines.put(line.getProductWarehouse().getProduct().getId(), line);
+                    evaluator.clear();
+                    for (int productId : lines.keySet())
+                        evaluator.update(productId, lines::get);
+                }
+                scans[count++] = System.nanoTime() - start;
+            }
+            discount += evaluator.getDiscountCents();
+        }
+        Arrays.sort(scans, 0, count);
+        return new Report(count, catalog.size(), Arrays.stream(scans, 0, count).average().orElse(0),
+                scans[Math.max(0, (int) Math.ceil(0.99 * count) - 1)], discount);
+    }
+
+    /**
+     * @param scans Scans measured
+     * @param promotions Promotions in the catalog
+     * @param averageNanos Average time per scan
+     * @param p99Nanos 99th percentile of the time per scan
+     * @param discountCents Total discount given, to compare both runs
+     */
+    public record Report(int scans, int promotions, double averageNanos, long p99Nanos, long discountCents) {
+        @Override
+        public String toString() {
+            return String.format("%d scans with %d promotions: avg %.0f ns, p99 %d ns, discount %d cents",
+                    scans, promotions, averageNanos, p99Nanos, discountCents);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.maya_yagan.sms.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.OptimisticLockException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks how {@link OptimisticRetry} reruns conflicting work. Concurrent stock
+ * changes through the DAOs are tested in ConcurrentStockTest.
+ *
+ * @author Maya Yagan
+ */
+class OptimisticRetryTest {
+
+    @Test
+    void retriesUntilTheWorkStopsConflicting() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = OptimisticRetry.run(() -> {
+            if (attempts.incrementAndGet() < 3) throw new OptimisticLockException("row changed");
+            return "done";
+        });
+
+        assertEquals("done", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void givesUpWithConflictCodeWhenEveryAttemptConflicts() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        CustomException e = assertThrows(CustomException.class, () -> OptimisticRetry.run(() -> {
+            attempts.incrementAndGet();
+            throw new OptimisticLockException("row changed");
+        }));
+
+        assertEquals(OptimisticRetry.CONFLICT_CODE, e.getErrorCode());
+        assertEquals(OptimisticRetry.DEFAULT_ATTEMPTS, attempts.get());
+    }
+
+    @Test
+    void otherFailuresAreNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(IllegalStateException.class, () -> OptimisticRetry.run(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("broken");
+        }));
+
+        assertEquals(1, attempts.get());
+    }
+}
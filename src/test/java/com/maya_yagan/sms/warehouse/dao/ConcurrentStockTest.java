@@ -0,0 +1,316 @@
+package com.maya_yagan.sms.warehouse.dao;
+
+import com.maya_yagan.sms.finance.model.CashBox;
+import com.maya_yagan.sms.finance.model.CashBoxStatus;
+import com.maya_yagan.sms.payment.dao.CheckoutDAO;
+import com.maya_yagan.sms.payment.journal.JournaledSale;
+import com.maya_yagan.sms.payment.model.PaymentMethod;
+import com.maya_yagan.sms.payment.model.Receipt;
+import com.maya_yagan.sms.payment.model.ReceiptItem;
+import com.maya_yagan.sms.payment.model.ReceiptStatus;
+import com.maya_yagan.sms.product.model.Category;
+import com.maya_yagan.sms.product.model.Product;
+import com.maya_yagan.sms.product.model.ProductUnit;
+import com.maya_yagan.sms.user.model.User;
+import com.maya_yagan.sms.util.CustomException;
+import com.maya_yagan.sms.util.HibernateUtil;
+import com.maya_yagan.sms.util.OptimisticRetry;
+import com.maya_yagan.sms.util.StatementCounter;
+import com.maya_yagan.sms.warehouse.model.ProductWarehouse;
+import com.maya_yagan.sms.warehouse.model.Warehouse;
+import org.hibernate.Session;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Sells one product from many lanes at once through the DAOs, against the
+ * in-memory database of the tests: sales go through
+ * {@link CheckoutDAO#commitSale}, adjustments through
+ * {@link WarehouseDAO#setProductAmount} with copies that go stale while other
+ * lanes write. Besides the stock row, the occupancy of the warehouse, the lots
+ * and the ledger must all agree with what was taken. Every test seeds its own
+ * warehouse, so they share the database.
+ *
+ * @author Maya Yagan
+ */
+class ConcurrentStockTest {
+    private static final int LANES = 8;
+    private static final AtomicInteger codes = new AtomicInteger();
+
+    private final CheckoutDAO checkoutDAO = new CheckoutDAO();
+    private final WarehouseDAO warehouseDAO = new WarehouseDAO();
+
+    @Test
+    void concurrentSalesTakeExactlyWhatWasSold() throws Exception {
+        int initial = 1000;
+        Fixture fixture = seed(initial);
+        Random random = new Random(7);
+        int[][] quantities = new int[LANES][20];
+        for (int[] lane : quantities)
+            for (int s = 0; s < lane.length; s++)
+                lane[s] = 1 + random.nextInt(3);
+
+        int sold = runLanes(lane -> {
+            int laneSold = 0;
+            for (int quantity : quantities[lane]) {
+                CheckoutDAO.CommittedSale sale = checkoutDAO.commitSale(fixture.sale(quantity), new StatementCounter());
+                assertTrue(sale.shortfalls().isEmpty());
+                assertNonNegative(sale);
+                laneSold += quantity;
+            }
+            return laneSold;
+        });
+
+        assertEquals(initial - sold, amount(fixture));
+        assertEquals(amount(fixture), occupancy(fixture));
+        assertEquals(amount(fixture), lots(fixture));
+        assertEquals(-sold, movements(fixture, "SALE"));
+        assertEquals(LANES * 20, receipts(fixture));
+    }
+
+    @Test
+    void concurrentSalesNeverTakeStockBelowZero() throws Exception {
+        int initial = 100;
+        Fixture fixture = seed(initial);
+
+        // 160 sales of one piece for 100 pieces: the sales that find none left are short
+        int accepted = runLanes(lane -> {
+            int laneAccepted = 0;
+            for (int s = 0; s < 20; s++) {
+                CheckoutDAO.CommittedSale sale = checkoutDAO.commitSale(fixture.sale(1), new StatementCounter());
+                assertNonNegative(sale);
+                if (sale.shortfalls().isEmpty()) laneAccepted++;
+            }
+            return laneAccepted;
+        });
+
+        assertEquals(initial, accepted);
+        assertEquals(0, amount(fixture));
+        assertEquals(0, occupancy(fixture));
+        assertEquals(0, lots(fixture));
+        assertEquals(-accepted, movements(fixture, "SALE"));
+    }
+
+    @Test
+    void staleCopyIsRejected() {
+        Fixture fixture = seed(10);
+        ProductWarehouse first = read(fixture);
+        ProductWarehouse second = read(fixture);
+
+        warehouseDAO.setProductAmount(first, 9);
+        CustomException e = assertThrows(CustomException.class, () -> warehouseDAO.setProductAmount(second, 8));
+
+        assertEquals(OptimisticRetry.CONFLICT_CODE, e.getErrorCode());
+        assertEquals(9, amount(fixture));
+        assertEquals(9, occupancy(fixture));
+        assertEquals(9, lots(fixture));
+        assertEquals(-1, movements(fixture, "ADJUSTMENT"));
+    }
+
+    @Test
+    void concurrentAdjustmentsFromStaleCopiesLoseNoUpdate() throws Exception {
+        int initial = 200;
+        Fixture fixture = seed(initial);
+
+        // 320 attempts for 200 pieces; a lane that keeps conflicting gives up on that piece
+        int taken = runLanes(lane -> {
+            int laneTaken = 0;
+            for (int s = 0; s < 40; s++) {
+                try {
+                    if (OptimisticRetry.run(() -> takeOne(fixture))) laneTaken++;
+                } catch (CustomException e) {
+                    assertEquals(OptimisticRetry.CONFLICT_CODE, e.getErrorCode());
+                }
+            }
+            return laneTaken;
+        });
+
+        assertTrue(taken > 0);
+        int amount = amount(fixture);
+        assertTrue(amount >= 0);
+        assertEquals(initial - taken, amount);
+        assertEquals(amount, occupancy(fixture));
+        assertEquals(amount, lots(fixture));
+        assertEquals(-taken, movements(fixture, "ADJUSTMENT"));
+    }
+
+    /**
+     * Takes one piece out with the copy just read, which other lanes may make stale.
+     *
+     * @return false if there was nothing left
+     */
+    private boolean takeOne(Fixture fixture) {
+        ProductWarehouse copy = read(fixture);
+        if (copy.getAmount() == 0) return false;
+        Thread.yield(); // let other lanes read the same version
+        warehouseDAO.setProductAmount(copy, copy.getAmount() - 1);
+        return true;
+    }
+
+    private static void assertNonNegative(CheckoutDAO.CommittedSale sale) {
+        for (ProductWarehouse row : sale.stock())
+            assertTrue(row.getAmount() >= 0, "stock went down to " + row.getAmount());
+    }
+
+    /**
+     * Runs the work on every lane, all lanes starting together.
+     *
+     * @return the sum of what the lanes returned
+     */
+    private static int runLanes(Lane work) throws Exception {
+        ExecutorService lanes = Executors.newFixedThreadPool(LANES);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < LANES; i++) {
+                int lane = i;
+                results.add(lanes.submit((Callable<Integer>) () -> {
+                    start.await();
+                    return work.run(lane);
+                }));
+            }
+            start.countDown();
+
+            int total = 0;
+            for (Future<Integer> result : results)
+                total += result.get(60, TimeUnit.SECONDS);
+            return total;
+        } finally {
+            lanes.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Lane {
+        int run(int lane) throws Exception;
+    }
+
+    /**
+     * A warehouse holding one product, with a cashier and an open cash box to sell it.
+     */
+    private record Fixture(int warehouseId, Product product, User cashier, CashBox cashBox) {
+        JournaledSale sale(int quantity) {
+            BigDecimal total = BigDecimal.valueOf(product.getPrice()).multiply(BigDecimal.valueOf(quantity));
+            Receipt receipt = new Receipt("T" + codes.incrementAndGet(), LocalDateTime.now(), cashier,
+                    PaymentMethod.CASH);
+            receipt.setStatus(ReceiptStatus.COMPLETED);
+            receipt.setPaidAmount(total);
+            receipt.setChangeGiven(BigDecimal.ZERO);
+            receipt.setTotalCost(total);
+            receipt.setCashBox(cashBox);
+            ReceiptItem item = new ReceiptItem();
+            item.setProduct(product);
+            item.setProductName(product.getName());
+            item.setUnitPrice(BigDecimal.valueOf(product.getPrice()));
+            item.setQuantity((double) quantity);
+            receipt.setItems(List.of(item));
+            return JournaledSale.from(receipt, warehouseId, "Sale");
+        }
+    }
+
+    private static Fixture seed(int amount) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            session.beginTransaction();
+            Category category = new Category("Test");
+            session.persist(category);
+            int number = codes.incrementAndGet();
+            Product product = new Product("Product " + number, 2.5f, LocalDate.now(), null, category,
+                    ProductUnit.PIECES, 0f, "TEST" + number);
+            session.persist(product);
+            Warehouse warehouse = new Warehouse("Warehouse", amount * 2, new HashSet<>());
+            session.persist(warehouse);
+            session.persist(new ProductWarehouse(warehouse, product, amount));
+            session.flush();
+            // two lots, so the picks run through both in expiry order
+            new StockLotDAO().receive(session, warehouse.getId(), List.of(
+                    new StockLotDAO.Lot(product.getId(), amount / 2, LocalDate.now().plusDays(10)),
+                    new StockLotDAO.Lot(product.getId(), amount - amount / 2, LocalDate.now().plusDays(20))));
+            User cashier = new User("Test", "Cashier", "cashier" + codes.incrementAndGet() + "@test", "secret",
+                    new HashSet<>());
+            session.persist(cashier);
+            CashBox cashBox = new CashBox();
+            cashBox.setTotalBalance(BigDecimal.ZERO);
+            cashBox.setStatus(CashBoxStatus.OPEN);
+            cashBox.setOpenedAt(LocalDateTime.now());
+            cashBox.setOpenedBy(cashier);
+            session.persist(cashBox);
+            session.flush();
+            session.createNativeQuery("UPDATE Warehouse SET occupancy = :amount WHERE id = :id")
+                    .setParameter("amount", amount)
+                    .setParameter("id", warehouse.getId())
+                    .executeUpdate();
+            session.getTransaction().commit();
+            return new Fixture(warehouse.getId(), product, cashier, cashBox);
+        }
+    }
+
+    private static ProductWarehouse read(Fixture fixture) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return session.createQuery(
+                            "SELECT pw FROM ProductWarehouse pw JOIN FETCH pw.product " +
+                                    "WHERE pw.warehouse.id = :warehouseId", ProductWarehouse.class)
+                    .setParameter("warehouseId", fixture.warehouseId())
+                    .uniqueResult();
+        }
+    }
+
+    /**
+     * @return the stock left, 0 once the row was deleted
+     */
+    private static int amount(Fixture fixture) {
+        ProductWarehouse row = read(fixture);
+        return row == null ? 0 : row.getAmount();
+    }
+
+    private static int occupancy(Fixture fixture) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return ((Number) session.createNativeQuery("SELECT occupancy FROM Warehouse WHERE id = :id")
+                    .setParameter("id", fixture.warehouseId())
+                    .uniqueResult()).intValue();
+        }
+    }
+
+    private static int lots(Fixture fixture) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return ((Number) session.createNativeQuery(
+                            "SELECT COALESCE(SUM(quantity), 0) FROM Stock_Lot WHERE warehouse_id = :id")
+                    .setParameter("id", fixture.warehouseId())
+                    .uniqueResult()).intValue();
+        }
+    }
+
+    private static int movements(Fixture fixture, String type) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return ((Number) session.createNativeQuery(
+                            "SELECT COALESCE(SUM(quantity), 0) FROM Stock_Movement " +
+                                    "WHERE warehouse_id = :id AND type = :type")
+                    .setParameter("id", fixture.warehouseId())
+                    .setParameter("type", type)
+                    .uniqueResult()).intValue();
+        }
+    }
+
+    private static long receipts(Fixture fixture) {
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            return session.createQuery("SELECT COUNT(r) FROM Receipt r WHERE r.cashier.id = :id", Long.class)
+                    .setParameter("id", fixture.cashier().getId())
+                    .uniqueResult();
+        }
+    }
+}